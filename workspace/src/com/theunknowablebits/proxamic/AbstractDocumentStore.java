@@ -1,6 +1,7 @@
 package com.theunknowablebits.proxamic;
 
 import java.nio.ByteBuffer;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -10,6 +11,8 @@ public abstract class AbstractDocumentStore implements DocumentStore {
 	protected final Supplier<Document> docFromNothing;
 	protected final Function<ByteBuffer,Document> docFromBytes;
 	protected final Supplier<String> idSupplier;
+
+	private volatile RecordCodec codec = RecordCodec.NONE;
 	
 	
 	public AbstractDocumentStore(Optional<Supplier<Document>> docFromNothing, Optional<Function<ByteBuffer, Document>> docFromBytes,
@@ -38,6 +41,28 @@ public abstract class AbstractDocumentStore implements DocumentStore {
 		return newInstance(idSupplier.get());
 	}
 
+	public RecordCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec that stored records are encoded with, NONE by default. Records already stored are not re-encoded,
+	 * so set it before storing any documents.
+	 */
+	public void setCodec(RecordCodec codec) {
+		this.codec = Objects.requireNonNull(codec);
+	}
+
+	/** the record to store for a document */
+	protected final ByteBuffer encode(Document document) {
+		return codec.encode(document.toByteBuffer());
+	}
+
+	/** the document a stored record holds */
+	protected final Document decode(ByteBuffer record) {
+		return docFromBytes.apply(codec.decode(record));
+	}
+
 	public final Document withDocStore(Document document) {
 		return withDocStore(document,this);
 	}
@@ -0,0 +1,106 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Writes to apply to a store together, see DocumentStore.apply(). Each document is checked against the version it was
+ * read at and the lock it holds, as a put or delete of it alone would be, and writes are applied in the order added.
+ *
+ * @author Dana
+ */
+public final class Batch {
+
+	enum Kind { PUT, PATCH, DELETE, RELEASE, CHECK }
+
+	static final class Operation {
+		final Kind kind;
+		final Document document;
+		Operation(Kind kind, Document document) {
+			this.kind = kind;
+			this.document = document;
+		}
+	}
+
+	final List<Operation> operations = new ArrayList<>();
+
+	public Batch put(Document document) {
+		operations.add(new Operation(Kind.PUT, document));
+		return this;
+	}
+
+	/** Adds a put that, where the store can, writes only the fields changed, see DocumentStore.patch() */
+	public Batch patch(Document document) {
+		operations.add(new Operation(Kind.PATCH, document));
+		return this;
+	}
+
+	public Batch delete(Document document) {
+		operations.add(new Operation(Kind.DELETE, document));
+		return this;
+	}
+
+	/** Adds the release of a lock, which writes nothing but is checked along with the rest */
+	public Batch release(Document document) {
+		operations.add(new Operation(Kind.RELEASE, document));
+		return this;
+	}
+
+	/**
+	 * Adds a check that a document is still at the version it was read at, which writes nothing but fails the batch if
+	 * it is not. Stores that apply batches one write at a time cannot check, and refuse batches holding checks.
+	 */
+	public Batch check(Document document) {
+		operations.add(new Operation(Kind.CHECK, document));
+		return this;
+	}
+
+	public Batch putAll(Collection<? extends Document> documents) {
+		documents.forEach(this::put);
+		return this;
+	}
+
+	public Batch deleteAll(Collection<? extends Document> documents) {
+		documents.forEach(this::delete);
+		return this;
+	}
+
+	public int size() {
+		return operations.size();
+	}
+
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Applies the writes one at a time, for stores that cannot apply them together
+	 *
+	 * @throws UnsupportedOperationException before writing anything, if the batch holds checks
+	 */
+	void applyEach(DocumentStore store) {
+		for (Operation operation: operations)
+			if (operation.kind == Kind.CHECK)
+				throw new UnsupportedOperationException("Writes applied one at a time cannot be checked together");
+		for (Operation operation: operations) {
+			switch (operation.kind) {
+			case PUT:
+				store.put(operation.document);
+				break;
+			case PATCH:
+				store.patch(operation.document);
+				break;
+			case DELETE:
+				store.delete(operation.document);
+				break;
+			case RELEASE:
+				store.release(operation.document);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+}
@@ -1,27 +1,29 @@
 package com.theunknowablebits.proxamic;
 
+import java.io.Externalizable;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
-import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.theunknowablebits.buff.serialization.Array;
 import com.theunknowablebits.buff.serialization.Struct;
@@ -32,49 +34,82 @@ import com.theunknowablebits.buff.serialization.Struct;
  * @author Dana
  *
  */
-public class BuffDocument implements Document, DocumentStoreAware {
+public class BuffDocument implements Document, DocumentStoreAware, Externalizable {
 
 	private static final long serialVersionUID = 1L;
 
 	private static final DocumentStore defaultDocStore = new LocalDocumentStore();	
 
+	/** Changes made to root directly, rather than through views, must be followed by markDirty() */
 	public transient Struct root;
 	
 	private transient DocumentStore docStore = defaultDocStore;
+
+	private static volatile ViewStrategy defaultViewStrategy = ViewStrategy.GENERATED;
+
+	/** null to follow the default */
+	private transient ViewStrategy viewStrategy;
+
+	/** wrappers over child structs and arrays by the getter that read them, created on first use, see child() */
+	private transient volatile Map<ViewMethod, Child> children;
+
+	/** the document whose field holds this one's root, and so shares its changes, or null at the top level */
+	private transient BuffDocument parent;
+	private transient String parentField;
+
+	/** true when never stored, or changed since loaded or marked clean */
+	private transient volatile boolean dirty;
+
+	/** the top level fields changed since loaded or marked clean, created on the first change */
+	private transient volatile Set<String> dirtyFields;
+
+	/** set once changes may have been made that dirtyFields does not name, as for a deserialized document */
+	private transient volatile boolean untracked;
+
+	/** the encoding of root while it is unchanged, see toByteBuffer() */
+	private transient volatile ByteBuffer encoded;
+
+	/** whether root reads memory lent only for as long as this document is reachable, which encodings must not share */
+	private transient boolean lent;
 	
 	private interface Reference extends DocumentView {
 		@Getter("__REF__") String ID();
 		@Setter("__REF__") void ID(String value);
 	}
 	
+	/** externalized forms, see writeExternal() */
+	private static final byte BYTES = 0, STORED = 1;
+
 	/**
 	 * If the document store is serializable (see network aware doc stores) then this will serialize the doc store
 	 * followed by the document id. It is the responsibility of the caller to save documents before serialization.
 	 * <p>
-	 * If the document store is not serializable, will serialize the document as a byte stream
+	 * If the document store is not serializable, will serialize the document as its length followed by its bytes,
+	 * written straight from the encoded buffer.
 	 * <p>
 	 * @param out
 	 * @throws IOException
 	 */
-	private void writeObject(ObjectOutputStream out)
-			throws IOException 
-	{
-		out.defaultWriteObject();
-		if (Proxy.isProxyClass(docStore.getClass())) {
-			for (Class<?> c: docStore.getClass().getInterfaces()) {
-				if (Serializable.class.isAssignableFrom(c)) {
-					out.writeObject(docStore);
-					out.writeObject(docStore.getID(this));
-					return;
-				}
-			}
-		} else if (docStore instanceof Serializable) {
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		if (isSerializable(docStore)) {
+			out.writeByte(STORED);
 			out.writeObject(docStore);
-			out.writeObject(docStore.getID(this));
+			out.writeUTF(docStore.getID(this));
 			return;
 		}
-		out.writeObject(null);
-		out.writeObject(toBytes());
+		out.writeByte(BYTES);
+		Buffers.writeLengthPrefixed(out, toByteBuffer());
+	}
+
+	private static boolean isSerializable(DocumentStore store) {
+		if (Proxy.isProxyClass(store.getClass())) {
+			for (Class<?> c: store.getClass().getInterfaces())
+				if (Serializable.class.isAssignableFrom(c))
+					return true;
+			return false;
+		}
+		return store instanceof Serializable;
 	}
 
 	public String dump() {
@@ -88,37 +123,55 @@ public class BuffDocument implements Document, DocumentStoreAware {
 	/** only used when restoring from a doc store style serialization */
 	private transient String resolveKey = null;
 
-	private void readObject(ObjectInputStream in)
-		     throws IOException, ClassNotFoundException
-	{
-		in.defaultReadObject();
-		DocumentStore store = (DocumentStore)in.readObject();
-		if (store != null) {
-			docStore = store;
-			resolveKey = (String)in.readObject();
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		if (in.readByte() == STORED) {
+			docStore = (DocumentStore)in.readObject();
+			resolveKey = in.readUTF();
 			return;
 		}
 		docStore = defaultDocStore;
-		root = new Struct(ByteBuffer.wrap((byte [])in.readObject()));
+		byte [] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		root = new Struct(ByteBuffer.wrap(bytes));
+		encoded = ByteBuffer.wrap(bytes);
+		// the changes made before it was written are unknown, so it stays dirty and is stored whole:
+		dirty = true;
+		untracked = true;
 	}
 
 	private Object readResolve() throws ObjectStreamException
 	{
+		return resolve();
+	}
+
+	/** the document this one stands for once read, which for a store reference is the stored document */
+	Document resolve() {
 		if (resolveKey!=null)
 			return docStore.get(resolveKey);
 		return this;
 	}
 	
-	private BuffDocument(Struct root) {
+	BuffDocument(Struct root) {
 		this.root = root;
 	}
 
+	/** Loads a clean document, which encodes as the given buffer until it is changed */
 	protected BuffDocument(ByteBuffer buffer) {
-		this(new Struct(buffer));
+		this(new Struct(buffer.duplicate()));
+		this.encoded = buffer.duplicate();
 	}
 
-	protected BuffDocument() {
+	/** Stops encoding as the buffer the document was read from, whose memory is only lent to this document */
+	void lend() {
+		lent = true;
+		encoded = null;
+	}
+
+	/** Creates an empty, and so dirty, document. Public for Externalizable. */
+	public BuffDocument() {
 		this(new Struct());
+		this.dirty = true;
 	}
 
 	public Document newInstance() {
@@ -128,15 +181,56 @@ public class BuffDocument implements Document, DocumentStoreAware {
 	@Override
 	@SuppressWarnings("unchecked")
 	public <T extends DocumentView> T as(final Class<T> documentClass) {
-		return (T)Proxy.newProxyInstance(
-				getClass().getClassLoader(), 
-				new Class [] { documentClass }, 
-				new BuffHandler(documentClass));
+		ViewClass viewClass = ViewClass.of(documentClass);
+		switch (getViewStrategy()) {
+		case RUNTIME_GENERATED:
+			if (viewClass.generateAtRuntime())
+				return (T)viewClass.newGeneratedView(this);
+			break;
+		case GENERATED:
+			if (viewClass.isGenerated())
+				return (T)viewClass.newGeneratedView(this);
+			break;
+		default:
+		}
+		return (T)viewClass.newProxy(new BuffHandler(documentClass));
+	}
+
+	/**
+	 * Registers the converter used wherever views declare the given type, or removes it when the converter is null.
+	 * Strings, primitives and their wrappers, views, lists, maps and arrays are handled natively and cannot be
+	 * converted.
+	 * 
+	 * @throws IllegalArgumentException if the type is handled natively
+	 */
+	public static <T> void registerConverter(Class<T> type, Converter<T> converter) {
+		Converters.register(type, converter);
+	}
+
+	/** Sets the view strategy of documents that have not been given one of their own */
+	public static void setDefaultViewStrategy(ViewStrategy strategy) {
+		defaultViewStrategy = strategy;
+	}
+
+	public static ViewStrategy getDefaultViewStrategy() {
+		return defaultViewStrategy;
+	}
+
+	/** Sets the view strategy for this document and the nested documents viewed through it, or null for the default */
+	public void setViewStrategy(ViewStrategy strategy) {
+		this.viewStrategy = strategy;
+		this.children = null;
+	}
+
+	public ViewStrategy getViewStrategy() {
+		ViewStrategy strategy = viewStrategy;
+		return strategy == null ? defaultViewStrategy : strategy;
 	}
 
 	@Override
 	public void setDocumentStore(DocumentStore docStore) {
 		this.docStore = docStore;
+		this.children = null;
 	}
 	
 	@Override
@@ -147,11 +241,82 @@ public class BuffDocument implements Document, DocumentStoreAware {
 	@Override
 	public void remove(String field) {
 		root.keySet().remove(field);
+		forgetChildren(field);
+		markDirty(field);
+	}
+
+	/**
+	 * Records a change to a top level field. Changes made through views are recorded as they happen, including those
+	 * made through nested views, lists and maps, which dirty the field that holds them.
+	 */
+	public void markDirty(String field) {
+		Set<String> fields = dirtyFields;
+		if (fields == null) {
+			synchronized (this) {
+				if ((fields = dirtyFields) == null)
+					dirtyFields = fields = ConcurrentHashMap.newKeySet();
+			}
+		}
+		fields.add(field);
+		dirty = true;
+		encoded = null;
+		if (parent != null)
+			parent.markDirty(parentField);
+	}
+
+	@Override
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/** Whether dirtyFields() names every change, which it does not for a document deserialized since marked clean */
+	boolean tracksChanges() {
+		return !untracked;
+	}
+
+	/** The top level fields changed since the document was loaded or last marked clean */
+	public Set<String> dirtyFields() {
+		Set<String> fields = dirtyFields;
+		return fields == null ? Collections.emptySet() : Collections.unmodifiableSet(fields);
+	}
+
+	@Override
+	public void markClean() {
+		dirty = false;
+		dirtyFields = null;
+		untracked = false;
+	}
+
+	/** Projects by sharing the named fields' struct values, so fields that are not named are never read */
+	@Override
+	public Document project(String... fieldNames) {
+		Struct projection = new Struct();
+		for (String field: fieldNames)
+			if (root.has(field))
+				projection.put(field, root.get(field));
+		BuffDocument result = new BuffDocument(projection);
+		result.docStore = docStore;
+		result.viewStrategy = viewStrategy;
+		return result;
+	}
+
+	/** writes a top level field for generated views */
+	Object putField(String field, Object value) {
+		Object previous = root.put(field, value);
+		markDirty(field);
+		return previous;
+	}
+
+	/** writes a top level field that may hold a container, as patches do */
+	void replaceField(String field, Object value) {
+		forgetChildren(field);
+		putField(field, value);
 	}
 	
 	private class BuffHandler implements InvocationHandler, Serializable {
 		private static final long serialVersionUID = 1L;
 		Class<? extends DocumentView> documentClass;
+		private transient ViewClass viewClass;
 		
 		// visible for serialization
 		@SuppressWarnings("unused")
@@ -161,210 +326,354 @@ public class BuffDocument implements Document, DocumentStoreAware {
 
 		public BuffHandler(Class<? extends DocumentView> documentClass) {
 			this.documentClass = documentClass;
+			this.viewClass = ViewClass.of(documentClass);
 		}
+
 		@Override
 		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
-			if (method.isAnnotationPresent(Getter.class)) {
-				return convertFromStructValue(
-								method.getGenericReturnType(), 
-								createIfRequired(method.getAnnotation(Getter.class).value(), method.getReturnType()),
-								method.isAnnotationPresent(Indirect.class)
-						);
-			}
-			if (method.isAnnotationPresent(Setter.class)) {
-				return fluently
-						(
-								proxy,
-								method,
-								root.put 
-								(
-										method.getAnnotation(Setter.class).value(), 
-										convertToStructValue
-										(
-												method.getGenericParameterTypes()[0],
-												args[0],
-												method.isAnnotationPresent(Indirect.class)
-										)
-								)
-							);
-			}
-			if (method.isDefault()) {
-				return handleDefaultMethod(proxy,method,args,documentClass);
-			}
-			String methodName = method.getName();
-			if (methodName.equals("document")) { 
-				return BuffDocument.this;
-			}
-			if (methodName.equals("equals")) {
-				if (args[0] instanceof DocumentView) 
-					return BuffDocument.this.equals(((DocumentView)args[0]).document());
-				return false;
-			}
-			if (methodName.equals("hashCode")) {
-				return BuffDocument.this.hashCode();
-			}
-			if (DocumentStoreAware.class.isAssignableFrom(documentClass) && methodName.equals("getDocumentStore")) { 
-				return BuffDocument.this.getDocumentStore();
-			}
-			if (DocumentStoreAware.class.isAssignableFrom(documentClass) && methodName.equals("setDocumentStore")) { 
-				BuffDocument.this.setDocumentStore((DocumentStore)args[0]);
-				return null;
-			}
-			if (methodName.startsWith("get")) { 
-				return convertFromStructValue
-						(
-								method.getGenericReturnType(), 
-								createIfRequired(methodName.substring(3),method.getReturnType()),
-								method.isAnnotationPresent(Indirect.class)
-						);
-			}
-			if (methodName.startsWith("set")) {
-				return fluently
-						(
-								proxy,
-								method,
-								root.put
-								(
-										methodName.substring(3), 
-										convertToStructValue
-										(
-												method.getGenericParameterTypes()[0], 
-												args[0],
-												method.isAnnotationPresent(Indirect.class)
-										)
-								)
-						);
-			}
-			if (methodName.startsWith("with")) {
-				root.put(methodName.substring(4), convertToStructValue(method.getGenericParameterTypes()[0], args[0], method.isAnnotationPresent(Indirect.class)));
-				return proxy;
-			}
-			if (methodName.equals("toString")) {
-				return BuffDocument.this.toString();
+			if (viewClass == null) 
+				viewClass = ViewClass.of(documentClass); // after deserialization
+			return BuffDocument.this.invoke(viewClass.method(method), proxy, args);
+		}
+	}
+
+	/**
+	 * Services a view method call against this document. Both proxied and generated views come through here.
+	 */
+	Object invoke(ViewMethod viewMethod, Object view, Object[] args) throws Throwable {
+		switch (viewMethod.kind) {
+		case GET:
+			Object value = createIfRequired(viewMethod.fieldName, viewMethod.valueType);
+			if (viewMethod.valueType.isContainer())
+				return child(viewMethod.fieldName, fieldChildren(), viewMethod, viewMethod.valueType, value, viewMethod.indirect);
+			if (isCachedArray(viewMethod.valueType, value, viewMethod.indirect))
+				return cachedArray(viewMethod, viewMethod.valueType, (Array)value, viewMethod.indirect);
+			return convertFromStructValue(viewMethod.fieldName, viewMethod.valueType, value, viewMethod.indirect);
+		case SET:
+			if (viewMethod.valueType.kind == ValueType.Kind.ARRAY && args[0] != null) {
+				Object existing = root.get(viewMethod.fieldName);
+				if (existing instanceof Array) {
+					Object result = view;
+					if (viewMethod.returnsPreviousValue())
+						result = previousArray(viewMethod, existing);
+					updateArray(viewMethod.fieldName, viewMethod.valueType.elementType, (Array)existing, args[0], viewMethod.indirect);
+					markDirty(viewMethod.fieldName);
+					return result;
+				}
 			}
-			throw new RuntimeException("No path to invoke for " + method.getName());
+			forgetChildren(viewMethod.fieldName);
+			Object previous = root.put(viewMethod.fieldName, convertToStructValue(viewMethod.fieldName, viewMethod.valueType, args[0], viewMethod.indirect));
+			markDirty(viewMethod.fieldName);
+			if (viewMethod.returnsPreviousValue())
+				return convertFromStructValue(viewMethod.fieldName, viewMethod.previousValueType, previous, viewMethod.indirect);
+			return view;
+		case DEFAULT:
+			return viewMethod.invokeDefault(view, args);
+		case DOCUMENT:
+			return this;
+		case WRITE_REPLACE:
+			return new SerializedView(this, viewMethod.documentClass);
+		case EQUALS:
+			if (args[0] instanceof DocumentView) 
+				return equals(((DocumentView)args[0]).document());
+			return false;
+		case HASH_CODE:
+			return hashCode();
+		case GET_DOCUMENT_STORE:
+			return getDocumentStore();
+		case SET_DOCUMENT_STORE:
+			setDocumentStore((DocumentStore)args[0]);
+			return null;
+		case TO_STRING:
+			return toString();
+		default:
+			throw new RuntimeException("No path to invoke for " + viewMethod.method.getName());
 		}
-		
-		private Object fluently(Object proxy, Method method, Object structValue) {
-			if ( (!method.getName().startsWith("with")) &&  method.getReturnType()==method.getParameterTypes()[0]) {
-				return convertFromStructValue( method.getGenericReturnType(), structValue, method.isAnnotationPresent(Indirect.class) );
-			} else {
-				return proxy;
+	}
+
+	/**
+	 * A view, list or map wrapper over a child struct or array, kept while the parent still holds that same child
+	 * and it is read as the same type. Replacing the child, through a setter or otherwise, invalidates it.
+	 */
+	private static final class Child {
+		final Object source;
+		final ValueType valueType;
+		final Object wrapper;
+		/** for arrays, the struct value of each converted element */
+		final Object [] elements;
+
+		Child(Object source, ValueType valueType, Object wrapper) {
+			this(source, valueType, wrapper, null);
+		}
+
+		Child(Object source, ValueType valueType, Object wrapper, Object [] elements) {
+			this.source = source;
+			this.valueType = valueType;
+			this.wrapper = wrapper;
+			this.elements = elements;
+		}
+
+		boolean wraps(Object source, ValueType valueType) {
+			return this.source == source && this.valueType == valueType;
+		}
+	}
+
+	/** the previous value of an array field, as its setter returns it */
+	private Object previousArray(ViewMethod setter, Object existing) {
+		if (isCachedArray(setter.previousValueType, existing, setter.indirect))
+			return cachedArray(setter, setter.previousValueType, (Array)existing, setter.indirect);
+		return convertFromStructValue(setter.fieldName, setter.previousValueType, existing, setter.indirect);
+	}
+
+	private Map<ViewMethod, Child> fieldChildren() {
+		Map<ViewMethod, Child> result = children;
+		if (result == null)
+			children = result = new ConcurrentHashMap<>(4);
+		return result;
+	}
+
+	/** drops the wrappers of a replaced field early, rather than waiting for them to fail validation */
+	private void forgetChildren(String fieldName) {
+		Map<ViewMethod, Child> children = this.children;
+		if (children != null)
+			for (Iterator<ViewMethod> i = children.keySet().iterator(); i.hasNext(); )
+				if (fieldName.equals(i.next().fieldName))
+					i.remove();
+	}
+
+	/**
+	 * Converts a container value through a cache of wrappers. Indirect views are always fetched from the store, so
+	 * they are never cached. Racing threads may both convert, which is harmless.
+	 */
+	private <K> Object child(String field, Map<K, Child> cache, K key, ValueType valueType, Object structValue, boolean indirect) {
+		if ( ( structValue == null ) || ( indirect && ( valueType.kind == ValueType.Kind.VIEW ) ) )
+			return convertFromStructValue(field, valueType, structValue, indirect);
+		Child child = cache.get(key);
+		if (child != null && child.wraps(structValue, valueType))
+			return child.wrapper;
+		Object wrapper = convertFromStructValue(field, valueType, structValue, indirect);
+		cache.put(key, new Child(structValue, valueType, wrapper));
+		return wrapper;
+	}
+
+	/** true for arrays of objects, whose element conversions are worth keeping (see cachedArray) */
+	private static boolean isCachedArray(ValueType valueType, Object structValue, boolean indirect) {
+		if ( ( valueType.kind != ValueType.Kind.ARRAY ) || !( structValue instanceof Array ) )
+			return false;
+		ValueType elementType = valueType.elementType;
+		return ( elementType.kind != ValueType.Kind.PRIMITIVE ) && !( indirect && ( elementType.kind == ValueType.Kind.VIEW ) );
+	}
+
+	/**
+	 * Converts an array field, converting only the elements that changed since it was last read. Elements are
+	 * compared by the identity of their struct values, so views of untouched elements are reused. Java arrays cannot
+	 * be lazy, so each call still returns a copy the caller is free to change.
+	 */
+	private Object cachedArray(ViewMethod method, ValueType valueType, Array array, boolean indirect) {
+		Map<ViewMethod, Child> cache = fieldChildren();
+		Child child = cache.get(method);
+		int size = array.size();
+		Object [] previous = null;
+		Object [] previousElements = null;
+		if (child != null && child.elements != null && child.wraps(array, valueType)) {
+			previous = (Object[])child.wrapper;
+			previousElements = child.elements;
+			if (previousElements.length == size) {
+				int i = 0;
+				while ( ( i < size ) && ( array.get(i) == previousElements[i] ) )
+					i++;
+				if (i == size)
+					return previous.clone();
 			}
 		}
-	
-		private Object createIfRequired(String fieldName, Class<?> returnType) {
-			if (!root.has(fieldName)) {
-				if (List.class.isAssignableFrom(returnType)) {
-					root.put(fieldName, new Array());
-				}
-				if (Map.class.isAssignableFrom(returnType) || DocumentView.class.isAssignableFrom(returnType)) {
-					root.put(fieldName, new Struct());
-				}
+		Object [] elements = new Object[size];
+		Object [] result = (Object[])java.lang.reflect.Array.newInstance(valueType.elementType.rawType, size);
+		for (int i = 0; i < size; i++) {
+			Object element = array.get(i);
+			elements[i] = element;
+			if ( ( previousElements != null ) && ( i < previousElements.length ) && ( previousElements[i] == element ) )
+				result[i] = previous[i];
+			else
+				result[i] = convertFromStructValue(method.fieldName, valueType.elementType, element, indirect);
+		}
+		cache.put(method, new Child(array, valueType, result, elements));
+		return result.clone();
+	}
+
+	/**
+	 * Writes an array over an existing struct array in place. Elements whose struct value is already in place, such as
+	 * views read from this array, are left alone rather than written again.
+	 */
+	private void updateArray(String field, ValueType elementType, Array array, Object values, boolean indirect) {
+		Object [] objects = values instanceof Object[] ? (Object[])values : null;
+		int length = java.lang.reflect.Array.getLength(values);
+		for (int i = 0; i < length; i++) {
+			Object element = objects == null ? java.lang.reflect.Array.get(values, i) : objects[i];
+			Object value = convertToStructValue(field, elementType, element, indirect);
+			if (i >= array.size())
+				array.add(value);
+			else if (array.get(i) != value)
+				array.set(i, value);
+		}
+		while (array.size() > length)
+			array.remove(array.size() - 1);
+	}
+
+	private Object createIfRequired(String fieldName, ValueType valueType) {
+		if (valueType.isContainer() && !root.has(fieldName)) {
+			if (valueType.kind == ValueType.Kind.LIST) {
+				root.put(fieldName, new Array());
+			} else {
+				root.put(fieldName, new Struct());
 			}
-			return root.get(fieldName);
+			markDirty(fieldName);
 		}
+		return root.get(fieldName);
 	}
 
 
+	/**
+	 * @param field the top level field the value is read from, which changes made through the result will dirty
+	 */
 	@SuppressWarnings("unchecked")
-	private Object convertFromStructValue(Type methodReturnType, Object structValue, boolean indirect) {
+	private Object convertFromStructValue(String field, ValueType valueType, Object structValue, boolean indirect) {
 
-		// pass nulls through
+		// pass nulls through, except to primitives
 		if (structValue==null)
-			return null;
+			return valueType.kind == ValueType.Kind.PRIMITIVE ? valueType.toPrimitive(null) : null;
 		
-		// get the parameterized conversion type
-		Class<?> returnType = Object.class;
-		if (methodReturnType instanceof Class) 
-			returnType = (Class<?>)methodReturnType;
-		if (methodReturnType instanceof ParameterizedType) 
-			returnType = (Class<?>)((ParameterizedType)methodReturnType).getRawType();
+		switch (valueType.kind) {
 
 		// if its a know collection type, we wrap:
-		if (returnType.isArray()) 
-			return mapToArray(returnType.getComponentType(),(Array)structValue, indirect);
+		case ARRAY:
+			return mapToArray(field, valueType.elementType, (Array)structValue, indirect);
 
-		if (List.class.isAssignableFrom(returnType)) {
-			if (methodReturnType instanceof ParameterizedType) 
-				return mapToList(((ParameterizedType)methodReturnType).getActualTypeArguments()[0], (Array)structValue, indirect);
-			return mapToList(Object.class,(Array)structValue, false);
-		}
+		case LIST:
+			return mapToList(field, valueType.elementType, (Array)structValue, indirect);
 
-		if (Map.class.isAssignableFrom(returnType)) {
-			if (methodReturnType instanceof ParameterizedType) 
-				return mapToMap(((ParameterizedType)methodReturnType).getActualTypeArguments()[1],(Struct)structValue, indirect);
-			return mapToMap(Object.class,(Struct)structValue, false);
-		}
+		case MAP:
+			return mapToMap(field, valueType.elementType, (Struct)structValue, indirect);
 
 		// if its a document type, we unwrap (and possibly unpack)
-		if (DocumentView.class.isAssignableFrom(returnType)) { 
-			DocumentView ob = new BuffDocument((Struct)structValue).as((Class<? extends DocumentView>) returnType);
+		case VIEW:
+			Class<? extends DocumentView> viewType = (Class<? extends DocumentView>)valueType.rawType;
+			BuffDocument child = new BuffDocument((Struct)structValue);
+			child.viewStrategy = viewStrategy;
+			child.lent = lent;
+			child.parent = this;
+			child.parentField = field;
+			DocumentView ob = child.as(viewType);
 			if (ob.document() instanceof DocumentStoreAware)
 				((DocumentStoreAware)ob.document()).setDocumentStore(getDocumentStore());
 			if (indirect) {
 				String id = ob.document().as(Reference.class).ID();
 				if (id == null)
 					ob.document().as(Reference.class).ID(id=docStore.getID(docStore.newInstance()));
-				ob = docStore.get((Class<? extends DocumentView>) returnType, id);
+				ob = docStore.get(viewType, id);
 			}
 			return ob;
+
+		case PRIMITIVE:
+			return valueType.toPrimitive(structValue);
+
+		default:
+			return valueType.fromStructValue(structValue);
 		}
-			
-		return returnType.cast(structValue);
 	}
 	
-	@SuppressWarnings("unchecked")
-	private <T> T[] mapToArray(Class<T> arrayType, Array array, boolean indirect) {
+	private Object mapToArray(String field, ValueType elementType, Array array, boolean indirect) {
 		if (array==null) {
-			// return (T[])java.lang.reflect.Array.newInstance(arrayType,0);
 			return null;
 		}
-		T [] result = (T[])java.lang.reflect.Array.newInstance(arrayType, array.size());
-		for (int i = 0; i < array.size(); i++) {
-			result[i] = arrayType.cast(convertFromStructValue(arrayType, array.get(i), indirect));
+		Object result = java.lang.reflect.Array.newInstance(elementType.rawType, array.size());
+		if (elementType.kind == ValueType.Kind.PRIMITIVE) {
+			for (int i = 0; i < array.size(); i++) {
+				java.lang.reflect.Array.set(result, i, convertFromStructValue(field, elementType, array.get(i), indirect));
+			}
+			return result;
+		}
+		Object [] objects = (Object[])result;
+		for (int i = 0; i < objects.length; i++) {
+			objects[i] = convertFromStructValue(field, elementType, array.get(i), indirect);
 		}
 		return result;
 	}
 
-	private <T> Array mapFromArray(Class<?> arrayType, Object [] value, boolean indirect) {
+	private Array mapFromArray(String field, ValueType elementType, Object value, boolean indirect) {
 		Array result = new Array();
-		for (int i = 0; i < value.length; i++) {
-			result.add(convertToStructValue(arrayType, value[i], indirect));
+		if (elementType.kind == ValueType.Kind.PRIMITIVE) {
+			int length = java.lang.reflect.Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				result.add(java.lang.reflect.Array.get(value, i));
+			}
+			return result;
+		}
+		Object [] objects = (Object[])value;
+		for (int i = 0; i < objects.length; i++) {
+			result.add(convertToStructValue(field, elementType, objects[i], indirect));
 		}
 		return result;
 	}
 	
-	private <B> List<B> mapToList(final Type elementClass, final Array array, boolean indirect) {
-		return new AbstractList<B>() {
+	private <B> List<B> mapToList(final String field, final ValueType elementClass, final Array array, boolean indirect) {
+		final boolean cached = elementClass.isContainer() && !( indirect && ( elementClass.kind == ValueType.Kind.VIEW ) );
+		return new RandomAccessList<B>() {
+			/** element wrappers by index, checked against the element actually there */
+			private volatile Child [] elements = new Child[0];
+
 			@SuppressWarnings("unchecked")
 			@Override
 			public B set(int index, B element) {
-				return (B)convertFromStructValue(elementClass, array.set(index, convertToStructValue(elementClass, element, indirect)), indirect);
+				Object previous = array.set(index, convertToStructValue(field, elementClass, element, indirect));
+				markDirty(field);
+				return (B)convertFromStructValue(field, elementClass, previous, indirect);
 			}
 			@Override
 			public void add(int index, B element) {
-				array.add(index, convertToStructValue(elementClass, element, indirect));
+				array.add(index, convertToStructValue(field, elementClass, element, indirect));
+				markDirty(field);
 			}
 			@SuppressWarnings("unchecked")
 			@Override
 			public B remove(int index) {
-				return (B)convertFromStructValue(elementClass,array.remove(index), indirect);
+				Object previous = array.remove(index);
+				markDirty(field);
+				return (B)convertFromStructValue(field, elementClass, previous, indirect);
 			}
 			@SuppressWarnings("unchecked")
 			@Override
 			public B get(int index) {
-				return (B)convertFromStructValue(elementClass, array.get(index), indirect);
+				Object element = array.get(index);
+				if (!cached || element == null)
+					return (B)convertFromStructValue(field, elementClass, element, indirect);
+				Child [] elements = this.elements;
+				if (index < elements.length && elements[index] != null && elements[index].wraps(element, elementClass))
+					return (B)elements[index].wrapper;
+				Object wrapper = convertFromStructValue(field, elementClass, element, indirect);
+				if (index >= elements.length)
+					this.elements = elements = Arrays.copyOf(elements, Math.max(index + 1, array.size()));
+				elements[index] = new Child(element, elementClass, wrapper);
+				return (B)wrapper;
 			}
 			@Override
 			public int size() {
 				return array.size();
 			}
+
+			@Override
+			public Spliterator<B> spliterator() {
+				return new IndexSpliterator<B>(this::get, 0, size(), Spliterator.ORDERED);
+			}
 		};
 	}
 
-	private <B> Map<String,B> mapToMap(final Type valueType, final Struct struct, boolean indirect) {
+	private static abstract class RandomAccessList<B> extends AbstractList<B> implements RandomAccess {
+	}
+
+	private <B> Map<String,B> mapToMap(final String field, final ValueType valueType, final Struct struct, boolean indirect) {
 		return new AbstractMap<String, B>() {
+			/** value wrappers by key, when values are containers */
+			private final Map<String, Child> values = valueType.isContainer() ? new ConcurrentHashMap<>() : null;
 
 			@Override
 			public Set<Entry<String, B>> entrySet() {
@@ -384,12 +693,13 @@ public class BuffDocument implements Document, DocumentStoreAware {
 							@Override
 							public Entry<String, B> next() {
 								String key = delegate.next();
-								return new SimpleImmutableEntry<String, B>(key,(B) convertFromStructValue(valueType, struct.get(key), indirect));
+								return new SimpleImmutableEntry<String, B>(key, value(key));
 							}
 							
 							@Override
 							public void remove() {
 								delegate.remove();
+								markDirty(field);
 							}
 							
 						};
@@ -398,37 +708,97 @@ public class BuffDocument implements Document, DocumentStoreAware {
 					@Override
 					public void clear() {
 						struct.keySet().clear();
+						markDirty(field);
 					}
 					
 					@Override
 					public int size() {
 						return struct.keySet().size();
 					}
+
+					@Override
+					public Spliterator<Entry<String, B>> spliterator() {
+						String [] keys = keys();
+						return new IndexSpliterator<Entry<String, B>>(
+								i -> new SimpleImmutableEntry<String, B>(keys[i], value(keys[i])),
+								0, keys.length, Spliterator.DISTINCT | Spliterator.NONNULL);
+					}
+				};
+			}
+
+			@Override
+			public Collection<B> values() {
+				return new AbstractCollection<B>() {
+					@Override
+					public Iterator<B> iterator() {
+						final Iterator<Entry<String, B>> entries = entrySet().iterator();
+						return new Iterator<B>() {
+							@Override
+							public boolean hasNext() {
+								return entries.hasNext();
+							}
+
+							@Override
+							public B next() {
+								return entries.next().getValue();
+							}
+
+							@Override
+							public void remove() {
+								entries.remove();
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return struct.keySet().size();
+					}
+
+					@Override
+					public Spliterator<B> spliterator() {
+						String [] keys = keys();
+						return new IndexSpliterator<B>(i -> value(keys[i]), 0, keys.length, 0);
+					}
 				};
 			}
+
+			/** a snapshot of the keys, which parallel streams divide between threads */
+			private String [] keys() {
+				return struct.keySet().toArray(new String[0]);
+			}
 			
 			@Override
 			public boolean containsKey(Object key) {
 				return struct.keySet().contains(key);
 			}
 			
-			@SuppressWarnings("unchecked")
 			@Override
 			public B get(Object key) {
-				return (B) convertFromStructValue(valueType, struct.get((String)key), indirect);
+				return value((String)key);
+			}
+
+			@SuppressWarnings("unchecked")
+			private B value(String key) {
+				if (values == null)
+					return (B) convertFromStructValue(field, valueType, struct.get(key), indirect);
+				return (B) child(field, values, key, valueType, struct.get(key), indirect);
 			}
 			
 			@Override
 			public B remove(Object key) {
 				B result = get(key);
-				struct.keySet().remove(key);
+				if (struct.keySet().remove(key))
+					markDirty(field);
 				return result;
 			}
 			
 			@SuppressWarnings("unchecked")
 			@Override
 			public B put(String key, B value) {
-				return (B) convertFromStructValue(valueType, struct.put(key, convertToStructValue(valueType, value, indirect)), indirect);
+				Object previous = struct.put(key, convertToStructValue(field, valueType, value, indirect));
+				markDirty(field);
+				return (B) convertFromStructValue(field, valueType, previous, indirect);
 			}
 		
 		};
@@ -436,64 +806,45 @@ public class BuffDocument implements Document, DocumentStoreAware {
 	
 	/**
 	 * 
+	 * @param field the top level field the value is written to
 	 * @param declaredType The declared type of value
 	 * @param value
 	 * @return 
 	 */
-	private Object convertToStructValue(Type declaredType, Object value, boolean indirect) {
+	private Object convertToStructValue(String field, ValueType declaredType, Object value, boolean indirect) {
 		
 		if (value == null) 
 			return null;
 		
-		Class<?> returnType = Object.class;
-		if (declaredType instanceof Class) 
-			returnType = (Class<?>)declaredType;
-		if (declaredType instanceof ParameterizedType) 
-			returnType = (Class<?>)((ParameterizedType)declaredType).getRawType();
-
-		if (returnType.isArray()) {
-			return mapFromArray(returnType.getComponentType(),(Object [])value, indirect);
-		}
+		switch (declaredType.kind) {
+		case ARRAY:
+			return mapFromArray(field, declaredType.elementType, value, indirect);
 
-		if (List.class.isAssignableFrom(returnType)) {
+		case LIST:
+		case MAP:
 			throw new RuntimeException("Cannot replace a synthetic collection. Please operate through the collections members.");
-		}
 		
-		
-		if (Map.class.isAssignableFrom(returnType)) {
-			throw new RuntimeException("Cannot replace a synthetic collection. Please operate through the collections members.");
-		}
-		
-		if (DocumentView.class.isAssignableFrom(returnType)) {
-			Object ob = ((BuffDocument)((DocumentView)value).document()).root;
+		case VIEW:
+			BuffDocument document = (BuffDocument)((DocumentView)value).document();
+			Object ob = document.root;
 			if (indirect) {
 				Reference rDoc = new BuffDocument().as(Reference.class);
 				rDoc.ID(docStore.getID((DocumentView)value));
 				ob = ((BuffDocument)(rDoc.document())).root;
+			} else if (document.parent == null && document != this) {
+				// the document now shares its root with this one, so its changes are ours:
+				document.parent = this;
+				document.parentField = field;
+				document.encoded = null;
 			}
 			return ob;
-		}
 
-		return returnType.cast(value);
-	}
-	
-	private static final Object handleDefaultMethod(Object proxy, Method method, Object [] args, Class<?> documentClass) throws Throwable {
-		// this can get very ugly between Java8 and Java 9+
-		// for more detail see this
-		// https://blog.jooq.org/2018/03/28/correct-reflective-access-to-interface-default-methods-in-java-8-9-10/
-		Lookup lookup;
-		try {
-			Constructor<Lookup> constructor = Lookup.class.getDeclaredConstructor(Class.class);
-			constructor.setAccessible(true);
-			lookup = constructor.newInstance(documentClass);
-		} catch (Exception e) {
-			lookup = MethodHandles.lookup();
+		case PRIMITIVE:
+			return value; // already boxed
+
+		default:
+			return declaredType.toStructValue(value);
 		}
-		return 
-			lookup
-				.findSpecial(documentClass, method.getName(), MethodType.methodType(method.getReturnType(), method.getParameterTypes()), documentClass)
-				.bindTo(proxy)
-				.invokeWithArguments(args);
 	}
 	
 	/**
@@ -514,16 +865,28 @@ public class BuffDocument implements Document, DocumentStoreAware {
 		return root.hashCode();
 	}
 
+	/**
+	 * The encoding is kept until the document changes, so documents that are only read are never encoded again. Nested
+	 * documents share their root with their parent, which may change it unseen, so they always encode afresh. Documents
+	 * read from lent memory encode to the heap, so the encoding outlives the lease.
+	 *
+	 * @return a view of the encoding with its own position and limit, sharing the bytes, which must not be written
+	 */
 	@Override
 	public ByteBuffer toByteBuffer() {
-		return root.toByteBuffer();
+		if (parent != null)
+			return lent ? Buffers.onHeap(root.toByteBuffer()) : root.toByteBuffer();
+		ByteBuffer result = encoded;
+		if (result == null)
+			encoded = result = lent ? Buffers.onHeap(root.toByteBuffer()) : root.toByteBuffer();
+		return result.duplicate();
 	}
 
 	@Override
 	public byte[] toBytes() {
 		ByteBuffer buf = toByteBuffer();
-		byte [] bytes = new byte[buf.limit()];
-		buf.get(bytes,0,buf.limit());
+		byte [] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
 		return bytes;
 	}
 }
@@ -0,0 +1,36 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Helpers for moving encoded documents without extra copies */
+final class Buffers {
+
+	private Buffers() {
+	}
+
+	/** Copies the remaining bytes of a buffer to the heap, leaving its position alone */
+	static ByteBuffer onHeap(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate()).flip();
+		return copy;
+	}
+
+	/** Writes the length of a buffer followed by its remaining bytes, leaving its position alone */
+	static void writeLengthPrefixed(DataOutput out, ByteBuffer buffer) throws IOException {
+		buffer = buffer.duplicate();
+		out.writeInt(buffer.remaining());
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		byte [] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+}
@@ -29,18 +29,42 @@ final class CachingDocumentStore implements DocumentStore, Consumer<Consumer<Doc
 		return documentsById.get(key);
 	}
 
+	@Override
+	public synchronized <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) {
+		if (documentsById.containsKey(key))
+			return documentsById.get(key).project(fieldNames).as(viewClass);
+		return delegate.get(key, viewClass, fieldNames);
+	}
+
 	@Override
 	public synchronized void put(Document document) {
 		delegate.put(document);
 		documentsById.put(getID(document), AbstractDocumentStore.withDocStore(document, this));
 	}
 
+	@Override
+	public synchronized void patch(Document document) {
+		delegate.patch(document);
+		documentsById.put(getID(document), AbstractDocumentStore.withDocStore(document, this));
+	}
+
 	@Override
 	public synchronized void delete(Document document) {
 		delegate.delete(document);
 		documentsById.remove(getID(document));
 	}
 
+	@Override
+	public synchronized void apply(Batch batch) {
+		delegate.apply(batch);
+		for (Batch.Operation operation: batch.operations) {
+			if (operation.kind == Batch.Kind.DELETE)
+				documentsById.remove(getID(operation.document));
+			else if ( ( operation.kind == Batch.Kind.PUT ) || ( operation.kind == Batch.Kind.PATCH ) )
+				documentsById.put(getID(operation.document), AbstractDocumentStore.withDocStore(operation.document, this));
+		}
+	}
+
 	@Override
 	public void transact(Consumer<DocumentStore> transaction) {
 		TransactingDocumentStore transactor = new TransactingDocumentStore(this);
@@ -56,6 +80,19 @@ final class CachingDocumentStore implements DocumentStore, Consumer<Consumer<Doc
 		}
 	}
 
+	/** Reads through peek(), as get() locks what it reads and the transaction would only check it */
+	@Override
+	public void transactOptimistically(Consumer<DocumentStore> transaction) {
+		new TransactingDocumentStore(this, this::peek).accept(transaction);
+	}
+
+	/** Reads a document without locking it: the cached copy if there is one, or else the delegate's, left uncached */
+	synchronized Document peek(String key) {
+		if (documentsById.containsKey(key))
+			return documentsById.get(key);
+		return AbstractDocumentStore.withDocStore(delegate.get(key), this);
+	}
+
 	@Override
 	public void execute(Consumer<DocumentStore> execution) {
 		execution.accept(this);
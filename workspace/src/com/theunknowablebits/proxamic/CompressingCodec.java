@@ -0,0 +1,274 @@
+package com.theunknowablebits.proxamic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The base of record codecs that compress, see DeflateCodec and LzCodec.
+ * <p>
+ * Each record is a method byte followed by either the document bytes as they were, or the uncompressed length and
+ * the compressed bytes. Documents shorter than the threshold are stored as they are, as are documents that do not
+ * get smaller, so small records pay one byte and no CPU. Decoding a stored record does not copy it.
+ * <p>
+ * A preset dictionary of content common to the documents, see trainDictionary(), lets even small documents compress
+ * well. Every record must be decoded with the dictionary it was encoded with.
+ *
+ * @author Dana
+ */
+public abstract class CompressingCodec implements RecordCodec {
+
+	private static final byte STORED = 0, COMPRESSED = 1;
+	private static final int HEADER = 5;
+
+	protected final int threshold;
+	protected final byte [] dictionary;
+
+	private final Statistics statistics = new Statistics();
+
+	/**
+	 * @param threshold the length below which documents are stored as they are
+	 * @param dictionary the preset dictionary, or null for none
+	 */
+	protected CompressingCodec(int threshold, byte [] dictionary) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Negative threshold");
+		this.threshold = threshold;
+		this.dictionary = dictionary == null ? new byte[0] : dictionary.clone();
+	}
+
+	/**
+	 * Compresses length bytes of source into target, which holds maxCompressedLength(length) bytes from targetOffset.
+	 *
+	 * @return the compressed length, or -1 when the result would not fit
+	 */
+	protected abstract int compress(byte [] source, int offset, int length, byte [] target, int targetOffset);
+
+	/**
+	 * Decompresses length bytes of source into all of target.
+	 *
+	 * @throws IllegalArgumentException when the source is corrupt
+	 */
+	protected abstract void decompress(byte [] source, int offset, int length, byte [] target);
+
+	/** the space compress() is given for a document of the given length */
+	protected int maxCompressedLength(int length) {
+		return length;
+	}
+
+	@Override
+	public final ByteBuffer encode(ByteBuffer document) {
+		long start = System.nanoTime();
+		int length = document.remaining();
+		if (length >= threshold) {
+			byte [] source;
+			int offset;
+			if (document.hasArray()) {
+				source = document.array();
+				offset = document.arrayOffset() + document.position();
+			} else {
+				source = new byte[length];
+				document.duplicate().get(source);
+				offset = 0;
+			}
+			byte [] target = new byte[HEADER + maxCompressedLength(length)];
+			int compressed = compress(source, offset, length, target, HEADER);
+			// keep the result only when it beats storing, and trim it, since saving heap is the point:
+			if ( ( compressed >= 0 ) && ( compressed + HEADER <= length ) ) {
+				ByteBuffer result = ByteBuffer.wrap(Arrays.copyOf(target, HEADER + compressed));
+				result.put(COMPRESSED).putInt(length).rewind();
+				statistics.encoded(length, result.remaining(), true, System.nanoTime() - start);
+				return result;
+			}
+		}
+		ByteBuffer result = ByteBuffer.allocate(length + 1);
+		result.put(STORED).put(document.duplicate()).flip();
+		statistics.encoded(length, result.remaining(), false, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public final ByteBuffer decode(ByteBuffer record) {
+		ByteBuffer input = record.duplicate();
+		byte method = input.get();
+		if (method == STORED)
+			return input.slice();
+		if (method != COMPRESSED)
+			throw new IllegalArgumentException("Not a record of this codec");
+		long start = System.nanoTime();
+		byte [] target = new byte[input.getInt()];
+		byte [] source;
+		int offset;
+		if (input.hasArray()) {
+			source = input.array();
+			offset = input.arrayOffset() + input.position();
+		} else {
+			source = new byte[input.remaining()];
+			input.get(source);
+			offset = 0;
+		}
+		decompress(source, offset, input.remaining(), target);
+		statistics.decoded(System.nanoTime() - start);
+		return ByteBuffer.wrap(target);
+	}
+
+	/** What this codec has done so far */
+	public Statistics statistics() {
+		return statistics;
+	}
+
+	/**
+	 * The compression ratio and CPU cost of a codec. Counts are kept with LongAdders, so a codec shared by many
+	 * threads does not contend on them.
+	 */
+	public static final class Statistics {
+		private final LongAdder encoded = new LongAdder(), compressed = new LongAdder(), bytesIn = new LongAdder(),
+				bytesOut = new LongAdder(), encodeNanos = new LongAdder(), decoded = new LongAdder(),
+				decodeNanos = new LongAdder();
+
+		private Statistics() {
+		}
+
+		void encoded(int in, int out, boolean wasCompressed, long nanos) {
+			encoded.increment();
+			if (wasCompressed)
+				compressed.increment();
+			bytesIn.add(in);
+			bytesOut.add(out);
+			encodeNanos.add(nanos);
+		}
+
+		void decoded(long nanos) {
+			decoded.increment();
+			decodeNanos.add(nanos);
+		}
+
+		/** the number of documents encoded, whether compressed or not */
+		public long recordsEncoded() { return encoded.sum(); }
+
+		/** the number of documents stored compressed */
+		public long recordsCompressed() { return compressed.sum(); }
+
+		/** the number of compressed records decoded; stored records cost nothing to decode and are not counted */
+		public long recordsDecoded() { return decoded.sum(); }
+
+		public long bytesIn() { return bytesIn.sum(); }
+
+		public long bytesOut() { return bytesOut.sum(); }
+
+		/** document bytes per record byte, over every document encoded */
+		public double ratio() {
+			long out = bytesOut();
+			return out == 0 ? 1d : (double)bytesIn() / out;
+		}
+
+		public long encodeNanos() { return encodeNanos.sum(); }
+
+		public long decodeNanos() { return decodeNanos.sum(); }
+
+		public void reset() {
+			for (LongAdder adder: Arrays.asList(encoded, compressed, bytesIn, bytesOut, encodeNanos, decoded, decodeNanos))
+				adder.reset();
+		}
+
+		@Override
+		public String toString() {
+			long records = recordsEncoded(), decodes = recordsDecoded();
+			return String.format("%d records, %d compressed, ratio %.2f, %dns per encode, %dns per decode", records,
+					recordsCompressed(), ratio(), records == 0 ? 0 : encodeNanos() / records, decodes == 0 ? 0 : decodeNanos() / decodes);
+		}
+	}
+
+	private static final int GRAM = 8, SEGMENT = 48;
+
+	/**
+	 * Builds a preset dictionary from sample documents, which should be views of the same type so that they share
+	 * field names and common values.
+	 * <p>
+	 * Each sample is cut into segments, which are scored by how many other samples share their eight byte runs. The
+	 * best segments are taken until the dictionary is full, skipping those mostly covered by segments already taken,
+	 * and the best are placed last, where they are nearest the documents being compressed.
+	 *
+	 * @param size the largest dictionary to build; codecs use at most the last 32K or 64K
+	 * @return the dictionary, which is empty when the samples have nothing in common
+	 */
+	public static byte [] trainDictionary(Collection<? extends DocumentView> samples, int size) {
+		List<byte []> documents = new ArrayList<>(samples.size());
+		Map<Long, Integer> frequency = new HashMap<>();
+		for (DocumentView sample: samples) {
+			ByteBuffer buffer = sample.document().toByteBuffer().duplicate();
+			byte [] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			documents.add(bytes);
+			Set<Long> grams = new HashSet<>();
+			for (int i = 0; i + GRAM <= bytes.length; i++)
+				grams.add(gram(bytes, i));
+			for (Long gram: grams)
+				frequency.merge(gram, 1, Integer::sum);
+		}
+
+		List<long []> segments = new ArrayList<>(); // score, document, offset
+		for (int d = 0; d < documents.size(); d++) {
+			byte [] bytes = documents.get(d);
+			for (int offset = 0; offset < bytes.length; offset += SEGMENT) {
+				long score = score(bytes, offset, frequency, null);
+				if (score > 0)
+					segments.add(new long [] { score, d, offset });
+			}
+		}
+		segments.sort((a, b) -> Long.compare(b[0], a[0]));
+
+		Set<Long> covered = new HashSet<>();
+		List<byte []> chosen = new ArrayList<>();
+		int total = 0;
+		for (long [] segment: segments) {
+			if (total >= size)
+				break;
+			byte [] bytes = documents.get((int)segment[1]);
+			int offset = (int)segment[2];
+			if (score(bytes, offset, frequency, covered) * 2 < segment[0])
+				continue;
+			int end = Math.min(offset + SEGMENT, bytes.length);
+			for (int i = offset; i + GRAM <= end; i++)
+				covered.add(gram(bytes, i));
+			chosen.add(Arrays.copyOfRange(bytes, offset, end));
+			total += end - offset;
+		}
+
+		byte [] result = new byte[Math.min(total, size)];
+		int end = result.length;
+		for (byte [] segment: chosen) {
+			int length = Math.min(segment.length, end);
+			System.arraycopy(segment, segment.length - length, result, end - length, length);
+			end -= length;
+		}
+		return result;
+	}
+
+	/** the sum over the segment's runs, less those covered, of the number of other samples sharing them */
+	private static long score(byte [] bytes, int offset, Map<Long, Integer> frequency, Set<Long> covered) {
+		long score = 0;
+		int end = Math.min(offset + SEGMENT, bytes.length);
+		for (int i = offset; i + GRAM <= end; i++) {
+			long gram = gram(bytes, i);
+			if (covered == null || !covered.contains(gram))
+				score += frequency.get(gram) - 1;
+		}
+		return score;
+	}
+
+	private static long gram(byte [] bytes, int i) {
+		long result = 0;
+		for (int j = 0; j < GRAM; j++)
+			result = ( result << 8 ) | ( bytes[i + j] & 0xFF );
+		return result;
+	}
+
+}
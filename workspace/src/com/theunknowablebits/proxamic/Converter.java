@@ -0,0 +1,22 @@
+package com.theunknowablebits.proxamic;
+
+/**
+ * Converts a java type to and from a form a struct stores natively: strings, boxed primitives, structs and arrays.
+ * <p>
+ * Register converters with BuffDocument.registerConverter(). Date, Instant, BigDecimal, UUID and enums have built in
+ * converters. Values already stored as the java type itself, as older documents hold them, are read back as is and
+ * never reach the converter.
+ *
+ * @author Dana
+ *
+ * @param <T> the java type
+ */
+public interface Converter<T> {
+
+	/** @param value never null */
+	Object toStructValue(T value);
+
+	/** @param structValue never null */
+	T fromStructValue(Object structValue);
+
+}
@@ -0,0 +1,133 @@
+package com.theunknowablebits.proxamic;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The converter registry. Value types resolve their converter once and only look again after a registration changes
+ * the registry, which the generation number tracks.
+ */
+final class Converters {
+
+	private static final Map<Class<?>, Converter<?>> converters = new ConcurrentHashMap<>();
+
+	private static volatile int generation;
+
+	static {
+		converters.put(Date.class, new DateConverter());
+		converters.put(Instant.class, new InstantConverter());
+		converters.put(BigDecimal.class, new BigDecimalConverter());
+		converters.put(UUID.class, new UUIDConverter());
+	}
+
+	private Converters() {
+	}
+
+	static int generation() {
+		return generation;
+	}
+
+	static synchronized <T> void register(Class<T> type, Converter<T> converter) {
+		if (
+				type.isPrimitive() || type.isArray() || type == Object.class
+				|| ViewSourceWriter.STRUCT_NATIVE_TYPES.contains(type.getName())
+				|| DocumentView.class.isAssignableFrom(type)
+				|| List.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)
+			)
+			throw new IllegalArgumentException(type.getName() + " is handled natively and cannot be converted");
+		if (converter == null)
+			converters.remove(type);
+		else
+			converters.put(type, converter);
+		generation++;
+	}
+
+	/** the converter for a declared type, or null when values are stored as they are */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Converter<Object> find(Class<?> type) {
+		Converter<?> converter = converters.get(type);
+		if (converter == null && type.isEnum())
+			converter = new EnumConverter(type);
+		return (Converter<Object>)converter;
+	}
+
+	private static final class DateConverter implements Converter<Date> {
+		@Override
+		public Object toStructValue(Date value) {
+			return value.getTime();
+		}
+
+		@Override
+		public Date fromStructValue(Object structValue) {
+			return new Date(((Number)structValue).longValue());
+		}
+	}
+
+	/** epoch nanoseconds while they fit in a long (until 2262), otherwise ISO-8601 text */
+	private static final class InstantConverter implements Converter<Instant> {
+		@Override
+		public Object toStructValue(Instant value) {
+			try {
+				return Math.addExact(Math.multiplyExact(value.getEpochSecond(), 1_000_000_000L), value.getNano());
+			} catch (ArithmeticException e) {
+				return value.toString();
+			}
+		}
+
+		@Override
+		public Instant fromStructValue(Object structValue) {
+			if (structValue instanceof String)
+				return Instant.parse((String)structValue);
+			long nanos = ((Number)structValue).longValue();
+			return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+		}
+	}
+
+	private static final class BigDecimalConverter implements Converter<BigDecimal> {
+		@Override
+		public Object toStructValue(BigDecimal value) {
+			return value.toString();
+		}
+
+		@Override
+		public BigDecimal fromStructValue(Object structValue) {
+			return new BigDecimal((String)structValue);
+		}
+	}
+
+	private static final class UUIDConverter implements Converter<UUID> {
+		@Override
+		public Object toStructValue(UUID value) {
+			return value.toString();
+		}
+
+		@Override
+		public UUID fromStructValue(Object structValue) {
+			return UUID.fromString((String)structValue);
+		}
+	}
+
+	/** stores the constant name, so constants can be reordered */
+	private static final class EnumConverter<E extends Enum<E>> implements Converter<E> {
+		private final Class<E> type;
+
+		EnumConverter(Class<E> type) {
+			this.type = type;
+		}
+
+		@Override
+		public Object toStructValue(E value) {
+			return value.name();
+		}
+
+		@Override
+		public E fromStructValue(Object structValue) {
+			return Enum.valueOf(type, (String)structValue);
+		}
+	}
+}
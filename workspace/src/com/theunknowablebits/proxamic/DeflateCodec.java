@@ -0,0 +1,72 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses records with java.util.zip. Compresses harder than LzCodec, at several times the CPU cost.
+ * <p>
+ * Deflaters and inflaters hold native memory that is slow to set up, so each thread keeps one of each.
+ *
+ * @author Dana
+ */
+public class DeflateCodec extends CompressingCodec {
+
+	private final int level;
+
+	private final ThreadLocal<Deflater> deflater;
+	private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * @param level a Deflater compression level
+	 * @param threshold the length below which documents are stored as they are
+	 * @param dictionary the preset dictionary, or null for none. Deflate uses at most its last 32K.
+	 */
+	public DeflateCodec(int level, int threshold, byte [] dictionary) {
+		super(threshold, dictionary);
+		this.level = level;
+		this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	/** Deflates documents of 128 bytes or more at the default level, with no dictionary */
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION, 128, null);
+	}
+
+	@Override
+	protected int compress(byte [] source, int offset, int length, byte [] target, int targetOffset) {
+		Deflater deflater = this.deflater.get();
+		deflater.reset();
+		if (dictionary.length > 0)
+			deflater.setDictionary(dictionary);
+		deflater.setInput(source, offset, length);
+		deflater.finish();
+		int result = deflater.deflate(target, targetOffset, target.length - targetOffset);
+		return deflater.finished() ? result : -1;
+	}
+
+	@Override
+	protected void decompress(byte [] source, int offset, int length, byte [] target) {
+		Inflater inflater = this.inflater.get();
+		inflater.reset();
+		inflater.setInput(source, offset, length);
+		try {
+			int done = inflater.inflate(target);
+			if (inflater.needsDictionary()) {
+				inflater.setDictionary(dictionary);
+				done += inflater.inflate(target, done, target.length - done);
+			}
+			if (done != target.length || !inflater.finished())
+				throw new IllegalArgumentException("Corrupt record");
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt record", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Deflate(level " + level + ", threshold " + threshold + ", dictionary " + dictionary.length + ")";
+	}
+
+}
@@ -1,7 +1,10 @@
 package com.theunknowablebits.proxamic;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /** All document classes implement this */
 public interface Document extends Serializable {
@@ -16,8 +19,57 @@ public interface Document extends Serializable {
 
 	public void remove(String fieldName);
 	
+	/** The encoded document, from position to limit, with a position of the caller's own. Callers must not write its bytes; see readOnlyByteBuffer() */
 	ByteBuffer toByteBuffer();
 	
+	/** A copy of the encoded document. Prefer writeTo() where the bytes are only passed on. */
 	byte [] toBytes();
+
+	/** 
+	 * True if the document has changed since it was loaded or last marked clean, so stores can skip writing untouched
+	 * documents. Documents that do not track changes are always dirty.
+	 */
+	public default boolean isDirty() {
+		return true;
+	}
+
+	/** Marks the document as unchanged, as a store does once it has loaded or written it */
+	public default void markClean() {
+	}
+
+	/**
+	 * A new document holding only the named top level fields of this one, read without decoding the others. Values
+	 * are shared rather than copied. Documents that cannot project return themselves.
+	 */
+	public default Document project(String... fieldNames) {
+		return this;
+	}
+
+	/** The encoded document as a read only buffer with its own position, safe to share. */
+	public default ByteBuffer readOnlyByteBuffer() {
+		return toByteBuffer().asReadOnlyBuffer();
+	}
+
+	/** Writes the encoded document to a channel without copying it */
+	public default void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = toByteBuffer().duplicate();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/** Writes the encoded document to a stream, straight from its backing array where it has one */
+	public default void writeTo(OutputStream out) throws IOException {
+		ByteBuffer buffer = toByteBuffer().duplicate();
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		byte [] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
 	
 }
@@ -0,0 +1,124 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Writes and reads many documents or views as one stream, without the per object class descriptors of java
+ * serialization. Each document is its length followed by its bytes. Views also carry their view interface, written
+ * by name the first time it appears and by number after that.
+ * <p>
+ * Documents are written by content. Their store, if any, is not recorded; documents read back belong to no store.
+ *
+ * @author Dana
+ */
+public class DocumentCodec {
+
+	private static final int MAGIC = 0x50584443; // PXDC
+	private static final int VERSION = 1;
+
+	private final Function<ByteBuffer, Document> docFromBytes;
+	private final ClassLoader classLoader;
+
+	/**
+	 * @param docFromBytes creates documents from their bytes, as stores do
+	 * @param classLoader loads the view interfaces of views being read
+	 */
+	public DocumentCodec(Function<ByteBuffer, Document> docFromBytes, ClassLoader classLoader) {
+		this.docFromBytes = docFromBytes;
+		this.classLoader = classLoader;
+	}
+
+	public DocumentCodec() {
+		this(BuffDocument::new, DocumentCodec.class.getClassLoader());
+	}
+
+	public void writeDocuments(OutputStream out, Collection<? extends Document> documents) throws IOException {
+		DataOutputStream data = header(out, documents.size());
+		for (Document document: documents)
+			writeDocument(data, document);
+		data.flush();
+	}
+
+	public List<Document> readDocuments(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		int count = readHeader(data);
+		List<Document> result = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			result.add(readDocument(data));
+		return result;
+	}
+
+	public void writeViews(OutputStream out, Collection<? extends DocumentView> views) throws IOException {
+		DataOutputStream data = header(out, views.size());
+		Map<Class<?>, Integer> dictionary = new HashMap<>();
+		for (DocumentView view: views) {
+			Class<?> viewClass = view.getClass().getInterfaces()[0];
+			Integer index = dictionary.get(viewClass);
+			if (index == null) {
+				dictionary.put(viewClass, dictionary.size());
+				data.writeInt(-1);
+				data.writeUTF(viewClass.getName());
+			} else {
+				data.writeInt(index);
+			}
+			writeDocument(data, view.document());
+		}
+		data.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<DocumentView> readViews(InputStream in) throws IOException, ClassNotFoundException {
+		DataInputStream data = new DataInputStream(in);
+		int count = readHeader(data);
+		List<DocumentView> result = new ArrayList<>(count);
+		List<Class<? extends DocumentView>> dictionary = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int index = data.readInt();
+			if (index < 0) {
+				index = dictionary.size();
+				dictionary.add((Class<? extends DocumentView>)Class.forName(data.readUTF(), false, classLoader));
+			} else if (index >= dictionary.size()) {
+				throw new StreamCorruptedException("Unknown view class " + index);
+			}
+			result.add(readDocument(data).as(dictionary.get(index)));
+		}
+		return result;
+	}
+
+	private DataOutputStream header(OutputStream out, int count) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		data.writeInt(count);
+		return data;
+	}
+
+	private int readHeader(DataInputStream data) throws IOException {
+		if (data.readInt() != MAGIC || data.readByte() != VERSION)
+			throw new StreamCorruptedException("Not a document stream");
+		return data.readInt();
+	}
+
+	private void writeDocument(DataOutputStream data, Document document) throws IOException {
+		Buffers.writeLengthPrefixed(data, document.toByteBuffer());
+	}
+
+	private Document readDocument(DataInputStream data) throws IOException {
+		byte [] bytes = new byte[data.readInt()];
+		data.readFully(bytes);
+		return docFromBytes.apply(ByteBuffer.wrap(bytes));
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.theunknowablebits.proxamic;
 
+import java.util.Collection;
 import java.util.function.Consumer;
 
 /**
@@ -48,8 +49,33 @@ public interface DocumentStore {
 
 	public void put(Document document);
 
+	/**
+	 * Writes only the fields of a document changed since it was read, checked against the version it was read at as
+	 * put() would. Stores that cannot apply a Patch on their side simply put the whole document.
+	 * @param document
+	 */
+	public default void patch(Document document) { put(document); }
+
 	public void delete(Document document);
 
+	/**
+	 * Applies the writes of a batch atomically: if any document fails its version or lock check, a
+	 * ConcurrentModificationException is thrown and nothing is written. Stores that cannot apply a batch atomically
+	 * apply its writes one at a time, in order, and throw an UnsupportedOperationException for batches with checks.
+	 * @param batch
+	 */
+	public default void apply(Batch batch) { batch.applyEach(this); }
+
+	/**
+	 * Reads only the named fields of a document, for callers that need a few fields of large documents. The result is
+	 * detached from the store, which will refuse to put it, and holds no version or lock.
+	 * @param key
+	 * @param viewClass
+	 * @param fieldNames
+	 * @return
+	 */
+	public default <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) { return get(key).project(fieldNames).as(viewClass); }
+
 	// Syntactic sugar methods:
 	
 	public default <T extends DocumentView> String getID(T documentView) { return getID(documentView.document()); }
@@ -66,14 +92,30 @@ public interface DocumentStore {
 
 	public default <T extends DocumentView> void put(T documentView) { put(documentView.document()); }
 
+	public default <T extends DocumentView> void patch(T documentView) { patch(documentView.document()); }
+
 	public default <T extends DocumentView> void delete(T documentView) { delete(documentView.document()); }
 
+	public default void putAll(Collection<? extends Document> documents) { apply(new Batch().putAll(documents)); }
+
+	public default void deleteAll(Collection<? extends Document> documents) { apply(new Batch().deleteAll(documents)); }
+
 	/** 
 	 * Runs an execution as a transaction. The transaction will either succeed or throw an exception.
 	 * @param transaction
 	 */
 	public default void transact(Consumer<DocumentStore> transactor) { new TransactingDocumentStore(this).accept(transactor); }
 
+	/**
+	 * Runs an execution as an optimistic transaction, which reads documents without locking them. At commit, the documents
+	 * read are checked to be unchanged as the writes are applied, in one batch, see apply(). A conflict throws a
+	 * TransactionConflictException and writes nothing, so the transaction can be run again. Documents locked explicitly
+	 * are held as in transact(). Stores that cannot apply a batch atomically cannot check the documents read, so throw an
+	 * UnsupportedOperationException at commit instead.
+	 * @param transactor
+	 */
+	public default void transactOptimistically(Consumer<DocumentStore> transactor) { new TransactingDocumentStore(this, true).accept(transactor); }
+
 	/** 
 	 * Runs a scoped execution similar to a transaction but without transactional semantics. This is useful for queries that require 
 	 * help with cannonicalization.
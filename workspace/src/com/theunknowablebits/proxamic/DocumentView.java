@@ -1,5 +1,6 @@
 package com.theunknowablebits.proxamic;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 /** All view classes extend this interface */ 
@@ -7,5 +8,12 @@ public interface DocumentView extends Serializable {
 	
 	Document document();
 
+	/**
+	 * Views serialize as their document and view interface, so neither proxy nor generated classes appear in the
+	 * stream. Implemented by every view, and only declared here so that proxies expose it to serialization.
+	 */
+	default Object writeReplace() throws ObjectStreamException {
+		return new SerializedView(document(), getClass().getInterfaces()[0]);
+	}
 	
 }
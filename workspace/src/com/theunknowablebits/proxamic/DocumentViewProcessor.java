@@ -0,0 +1,181 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * An optional annotation processor that generates a concrete GeneratedView implementation for every DocumentView
+ * interface it compiles. BuffDocument.as() uses the generated class when it is present and falls back to a proxy
+ * otherwise.
+ * <p>
+ * Enable it by putting proxamic on the processor path, eg <code>javac -processor
+ * com.theunknowablebits.proxamic.DocumentViewProcessor</code>. Generic interfaces, interfaces with generic methods
+ * and private interfaces are left to the proxy.
+ *
+ * @author Dana
+ */
+@SupportedAnnotationTypes("*")
+public class DocumentViewProcessor extends AbstractProcessor {
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement documentView = processingEnv.getElementUtils().getTypeElement(DocumentView.class.getCanonicalName());
+		if (documentView == null)
+			return false;
+		for (Element element: roundEnv.getRootElements())
+			generateAll(element, documentView.asType());
+		return false;
+	}
+
+	private void generateAll(Element element, TypeMirror documentView) {
+		if (element instanceof TypeElement) {
+			TypeElement type = (TypeElement)element;
+			if (isGeneratable(type, documentView))
+				generate(type);
+			for (Element enclosed: type.getEnclosedElements())
+				generateAll(enclosed, documentView);
+		}
+	}
+
+	private boolean isGeneratable(TypeElement type, TypeMirror documentView) {
+		if (type.getKind() != ElementKind.INTERFACE || !type.getTypeParameters().isEmpty())
+			return false;
+		if (!processingEnv.getTypeUtils().isAssignable(type.asType(), documentView))
+			return false;
+		if (type.getQualifiedName().contentEquals(DocumentView.class.getCanonicalName()))
+			return false;
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement())
+			if (e.getModifiers().contains(Modifier.PRIVATE))
+				return false;
+		return true;
+	}
+
+	private void generate(TypeElement view) {
+		List<ViewSourceWriter.MethodModel> methods = new ArrayList<>();
+		Set<String> signatures = new HashSet<>();
+		for (Element member: processingEnv.getElementUtils().getAllMembers(view)) {
+			if (member.getKind() != ElementKind.METHOD || member.getModifiers().contains(Modifier.STATIC))
+				continue;
+			if (((TypeElement)member.getEnclosingElement()).getQualifiedName().contentEquals("java.lang.Object"))
+				continue;
+			ExecutableElement method = (ExecutableElement)member;
+			if (!method.getTypeParameters().isEmpty()) {
+				processingEnv.getMessager().printMessage(Kind.NOTE, "Generic view methods are left to the proxy", method);
+				return;
+			}
+			CompiledMethod model = new CompiledMethod(view, method);
+			if (signatures.add(model.name() + model.erasedParameterTypes()))
+				methods.add(model);
+		}
+
+		String packageName = packageOf(view).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(view).toString();
+		String simpleName = ViewClass.generatedClassName(packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1));
+		String source = new ViewSourceWriter(packageName, view.getQualifiedName().toString(), simpleName, methods).write();
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(ViewClass.generatedClassName(binaryName), view);
+			try (Writer writer = file.openWriter()) {
+				writer.write(source);
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to generate view: " + e, view);
+		}
+	}
+
+	private static PackageElement packageOf(Element element) {
+		while (!(element instanceof PackageElement))
+			element = element.getEnclosingElement();
+		return (PackageElement)element;
+	}
+
+	/** A view method as seen by the compiler, with types resolved as members of the view being generated */
+	private class CompiledMethod implements ViewSourceWriter.MethodModel {
+		final TypeElement view;
+		final ExecutableElement method;
+		final ExecutableType type;
+
+		CompiledMethod(TypeElement view, ExecutableElement method) {
+			this.view = view;
+			this.method = method;
+			this.type = (ExecutableType)processingEnv.getTypeUtils().asMemberOf((DeclaredType)view.asType(), method);
+		}
+
+		@Override
+		public String name() {
+			return method.getSimpleName().toString();
+		}
+
+		@Override
+		public String getterField() {
+			Getter getter = method.getAnnotation(Getter.class);
+			return getter == null ? null : getter.value();
+		}
+
+		@Override
+		public String setterField() {
+			Setter setter = method.getAnnotation(Setter.class);
+			return setter == null ? null : setter.value();
+		}
+
+		@Override
+		public boolean isDefault() {
+			return method.isDefault();
+		}
+
+		@Override
+		public String returnType() {
+			return type.getReturnType().toString();
+		}
+
+		@Override
+		public String erasedReturnType() {
+			return processingEnv.getTypeUtils().erasure(type.getReturnType()).toString();
+		}
+
+		@Override
+		public List<String> parameterTypes() {
+			List<String> result = new ArrayList<>();
+			for (TypeMirror parameter: type.getParameterTypes())
+				result.add(parameter.toString());
+			return result;
+		}
+
+		@Override
+		public List<String> erasedParameterTypes() {
+			List<String> result = new ArrayList<>();
+			for (TypeMirror parameter: type.getParameterTypes())
+				result.add(processingEnv.getTypeUtils().erasure(parameter).toString());
+			return result;
+		}
+
+		@Override
+		public boolean returnsView() {
+			return processingEnv.getTypeUtils().isAssignable(view.asType(), type.getReturnType());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.ObjectStreamException;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * The base class of generated view implementations (see DocumentViewProcessor).
+ * <p>
+ * Generated views read and write simple fields straight from the document's root struct, and hand everything else
+ * to invoke(), which behaves exactly as the proxy handler would. Implementations are written at compile time by
+ * DocumentViewProcessor, or at runtime by ViewClassWriter when the RUNTIME_GENERATED view strategy is in use.
+ *
+ * @author Dana
+ */
+public abstract class GeneratedView implements DocumentView {
+
+	private static final long serialVersionUID = 1L;
+
+	protected final BuffDocument document;
+
+	protected GeneratedView(BuffDocument document) {
+		this.document = document;
+	}
+
+	/**
+	 * Resolves the accessor for a view method, for use by generated static initializers. The result is opaque to
+	 * generated code and only ever passed back to invoke().
+	 */
+	protected static Object accessor(Class<? extends DocumentView> viewClass, String methodName, Class<?>... parameterTypes) {
+		try {
+			return ViewClass.of(viewClass).method(viewClass.getMethod(methodName, parameterTypes));
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Generated view is out of date with " + viewClass.getName(), e);
+		}
+	}
+
+	protected final Object field(String name) {
+		return document.root.get(name);
+	}
+
+	protected final Object putField(String name, Object value) {
+		return document.putField(name, value);
+	}
+
+	/* 
+	 * Primitive reads of struct values. Missing values read as zero or false, and numbers stored as another width
+	 * are converted, exactly as the proxy handler does.
+	 */
+
+	protected static int asInt(Object value) {
+		return value == null ? 0 : ((Number)value).intValue();
+	}
+
+	protected static long asLong(Object value) {
+		return value == null ? 0L : ((Number)value).longValue();
+	}
+
+	protected static double asDouble(Object value) {
+		return value == null ? 0d : ((Number)value).doubleValue();
+	}
+
+	protected static float asFloat(Object value) {
+		return value == null ? 0f : ((Number)value).floatValue();
+	}
+
+	protected static short asShort(Object value) {
+		return value == null ? 0 : ((Number)value).shortValue();
+	}
+
+	protected static byte asByte(Object value) {
+		return value == null ? 0 : ((Number)value).byteValue();
+	}
+
+	protected static boolean asBoolean(Object value) {
+		return value == null ? false : (Boolean)value;
+	}
+
+	protected static char asChar(Object value) {
+		return value == null ? '\0' : (Character)value;
+	}
+
+	protected final Object invoke(Object accessor, Object [] args) {
+		try {
+			return document.invoke((ViewMethod)accessor, this, args);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new UndeclaredThrowableException(t);
+		}
+	}
+
+	/** 
+	 * Serializes as the document and view interface, since a runtime generated class may not exist where this is read.
+	 */
+	@Override
+	public Object writeReplace() throws ObjectStreamException {
+		return new SerializedView(document, getClass().getInterfaces()[0]);
+	}
+
+	@Override
+	public Document document() {
+		return document;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof DocumentView)
+			return document.equals(((DocumentView)obj).document());
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return document.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return document.toString();
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Gathers the batches applied to a store concurrently, so that one thread at a time, the leader, checks and writes all
+ * those waiting in a single pass while the rest wait for it. A store with a cost per write, such as forcing a log to the
+ * disk, pays it once for the group.
+ * <p>
+ * A pass fails batches one by one, see Pending.fail(), so that a conflict in one does not hold back the others. Each
+ * caller then returns, or throws the failure of its own batch.
+ *
+ * @author Dana
+ */
+final class GroupCommit {
+
+	/** a batch waiting to be applied, and its outcome */
+	static final class Pending {
+		final Batch batch;
+		private RuntimeException failure;
+		private boolean done;
+		Pending(Batch batch) {
+			this.batch = batch;
+		}
+		/** Leaves this batch out of the pass, to throw the failure to its caller */
+		void fail(RuntimeException failure) {
+			this.failure = failure;
+		}
+		boolean isFailed() {
+			return failure != null;
+		}
+	}
+
+	private final Consumer<List<Pending>> pass;
+	private List<Pending> waiting = new ArrayList<>();
+	private boolean leading;
+
+	GroupCommit(Consumer<List<Pending>> pass) {
+		this.pass = pass;
+	}
+
+	/** Applies a batch in the next pass, leading it if no other thread is */
+	void apply(Batch batch) {
+		Pending pending = new Pending(batch);
+		List<Pending> group;
+		synchronized (this) {
+			waiting.add(pending);
+			boolean interrupted = false;
+			while ( leading && !pending.done ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// the batch may already be written, so wait for its outcome:
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (pending.done) {
+				if (pending.failure != null)
+					throw pending.failure;
+				return;
+			}
+			leading = true;
+			group = waiting;
+			waiting = new ArrayList<>();
+		}
+		boolean passed = false;
+		try {
+			pass.accept(group);
+			passed = true;
+		} catch (RuntimeException e) {
+			for (Pending each: group)
+				if (each.failure == null)
+					each.failure = e;
+		} finally {
+			synchronized (this) {
+				for (Pending each: group) {
+					if ( !passed && ( each.failure == null ) )
+						each.failure = new IllegalStateException("Batch not applied");
+					each.done = true;
+				}
+				leading = false;
+				notifyAll();
+			}
+		}
+		if (pending.failure != null)
+			throw pending.failure;
+	}
+
+	/** the keys of the documents of a group, to lock with KeyLocks, failing the batches holding documents that have none */
+	static TreeSet<String> keys(List<Pending> group, Function<Document, String> idOf) {
+		TreeSet<String> keys = new TreeSet<>();
+		for (Pending pending: group) {
+			List<String> batchKeys = new ArrayList<>();
+			try {
+				for (Batch.Operation operation: pending.batch.operations)
+					batchKeys.add(idOf.apply(operation.document));
+				keys.addAll(batchKeys);
+			} catch (RuntimeException e) {
+				pending.fail(e);
+			}
+		}
+		return keys;
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * A spliterator over a range of indexes, used by the list and map views. It halves exactly and always knows its size,
+ * unlike the iterator based defaults, which buffer elements on one thread before handing out batches. Elements are
+ * only converted by whichever thread consumes them.
+ */
+final class IndexSpliterator<E> implements Spliterator<E> {
+
+	private final IntFunction<? extends E> elements;
+	private int index;
+	private final int fence;
+	private final int characteristics;
+
+	/**
+	 * @param elements the element at an index, safe to call from any thread
+	 * @param characteristics in addition to SIZED and SUBSIZED
+	 */
+	IndexSpliterator(IntFunction<? extends E> elements, int origin, int fence, int characteristics) {
+		this.elements = elements;
+		this.index = origin;
+		this.fence = fence;
+		this.characteristics = characteristics | Spliterator.SIZED | Spliterator.SUBSIZED;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super E> action) {
+		if (index >= fence)
+			return false;
+		action.accept(elements.apply(index++));
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super E> action) {
+		int i = index;
+		index = fence;
+		for (; i < fence; i++)
+			action.accept(elements.apply(i));
+	}
+
+	@Override
+	public Spliterator<E> trySplit() {
+		int middle = ( index + fence ) >>> 1;
+		if (middle <= index)
+			return null;
+		int origin = index;
+		index = middle;
+		return new IndexSpliterator<E>(elements, origin, middle, characteristics);
+	}
+
+	@Override
+	public long estimateSize() {
+		return fence - index;
+	}
+
+	@Override
+	public int characteristics() {
+		return characteristics;
+	}
+
+}
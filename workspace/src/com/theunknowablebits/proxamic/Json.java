@@ -0,0 +1,379 @@
+package com.theunknowablebits.proxamic;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes UTF-8 JSON text for JsonDocument.
+ * <p>
+ * Values are skipped without being decoded wherever possible, so a document only pays for the fields it reads. Decoded
+ * objects are LinkedHashMaps, arrays are ArrayLists, integers are Longs (or BigDecimals when too large) and other
+ * numbers are Doubles.
+ */
+final class Json {
+
+	private Json() {
+	}
+
+	/**
+	 * Indexes the members of the object spanning start to end, without decoding their values.
+	 *
+	 * @return for each member by name, the start of the member and the start and end of its value
+	 */
+	static Map<String, int[]> index(byte [] text, int start, int end) {
+		Map<String, int[]> result = new LinkedHashMap<>();
+		int i = expect(text, skipWhitespace(text, start, end), end, '{');
+		i = skipWhitespace(text, i, end);
+		if (i < end && text[i] == '}')
+			return result;
+		while (true) {
+			int member = skipWhitespace(text, i, end);
+			if (member >= end || text[member] != '"')
+				throw error("Expected a member name", member);
+			int nameEnd = skipString(text, member, end);
+			String name = decodeString(text, member, nameEnd);
+			int valueStart = skipWhitespace(text, expect(text, skipWhitespace(text, nameEnd, end), end, ':'), end);
+			int valueEnd = skipValue(text, valueStart, end);
+			result.put(name, new int[] { member, valueStart, valueEnd });
+			i = skipWhitespace(text, valueEnd, end);
+			if (i < end && text[i] == ',') {
+				i++;
+				continue;
+			}
+			expect(text, i, end, '}');
+			return result;
+		}
+	}
+
+	/** Decodes the single value spanning start to end */
+	static Object parse(byte [] text, int start, int end) {
+		Parser parser = new Parser(text, start, end);
+		Object result = parser.value();
+		if (skipWhitespace(text, parser.i, end) != end)
+			throw error("Unexpected text after value", parser.i);
+		return result;
+	}
+
+	/** the end of the value starting at i, found without decoding it */
+	static int skipValue(byte [] text, int i, int end) {
+		i = skipWhitespace(text, i, end);
+		if (i >= end)
+			throw error("Expected a value", i);
+		switch (text[i]) {
+		case '"':
+			return skipString(text, i, end);
+		case '{':
+		case '[':
+			int depth = 0;
+			for (; i < end; i++) {
+				byte c = text[i];
+				if (c == '"')
+					i = skipString(text, i, end) - 1;
+				else if (c == '{' || c == '[')
+					depth++;
+				else if ( ( c == '}' || c == ']' ) && ( --depth == 0 ) )
+					return i + 1;
+			}
+			throw error("Unterminated value", i);
+		default:
+			while (i < end && !isDelimiter(text[i]))
+				i++;
+			return i;
+		}
+	}
+
+	private static int skipString(byte [] text, int i, int end) {
+		for (i++; i < end; i++) {
+			if (text[i] == '\\')
+				i++;
+			else if (text[i] == '"')
+				return i + 1;
+		}
+		throw error("Unterminated string", i);
+	}
+
+	static int skipWhitespace(byte [] text, int i, int end) {
+		while (i < end && ( text[i] == ' ' || text[i] == '\n' || text[i] == '\r' || text[i] == '\t' ))
+			i++;
+		return i;
+	}
+
+	private static boolean isDelimiter(byte c) {
+		return c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static int expect(byte [] text, int i, int end, char c) {
+		if (i >= end || text[i] != c)
+			throw error("Expected '" + c + "'", i);
+		return i + 1;
+	}
+
+	private static IllegalArgumentException error(String message, int position) {
+		return new IllegalArgumentException(message + " at " + position);
+	}
+
+	/** decodes the quoted string spanning start to end */
+	private static String decodeString(byte [] text, int start, int end) {
+		int run = start + 1, last = end - 1;
+		StringBuilder result = null;
+		for (int i = run; i < last; i++) {
+			if (text[i] != '\\')
+				continue;
+			if (result == null)
+				result = new StringBuilder(last - run);
+			result.append(new String(text, run, i - run, StandardCharsets.UTF_8));
+			char c = (char)text[++i];
+			switch (c) {
+			case 'b': result.append('\b'); break;
+			case 'f': result.append('\f'); break;
+			case 'n': result.append('\n'); break;
+			case 'r': result.append('\r'); break;
+			case 't': result.append('\t'); break;
+			case 'u':
+				result.append((char)Integer.parseInt(new String(text, i + 1, 4, StandardCharsets.US_ASCII), 16));
+				i += 4;
+				break;
+			default: result.append(c);
+			}
+			run = i + 1;
+		}
+		if (result == null)
+			return new String(text, run, last - run, StandardCharsets.UTF_8);
+		return result.append(new String(text, run, last - run, StandardCharsets.UTF_8)).toString();
+	}
+
+	private static final class Parser {
+		final byte [] text;
+		final int end;
+		int i;
+
+		Parser(byte [] text, int start, int end) {
+			this.text = text;
+			this.i = start;
+			this.end = end;
+		}
+
+		Object value() {
+			i = skipWhitespace(text, i, end);
+			if (i >= end)
+				throw error("Expected a value", i);
+			switch (text[i]) {
+			case '{':
+				return object();
+			case '[':
+				return array();
+			case '"':
+				int start = i;
+				i = skipString(text, i, end);
+				return decodeString(text, start, i);
+			case 't':
+				return literal("true", Boolean.TRUE);
+			case 'f':
+				return literal("false", Boolean.FALSE);
+			case 'n':
+				return literal("null", null);
+			default:
+				return number();
+			}
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			i = skipWhitespace(text, i + 1, end);
+			if (i < end && text[i] == '}') {
+				i++;
+				return result;
+			}
+			while (true) {
+				i = skipWhitespace(text, i, end);
+				if (i >= end || text[i] != '"')
+					throw error("Expected a member name", i);
+				int start = i;
+				i = skipString(text, i, end);
+				String name = decodeString(text, start, i);
+				i = expect(text, skipWhitespace(text, i, end), end, ':');
+				result.put(name, value());
+				i = skipWhitespace(text, i, end);
+				if (i < end && text[i] == ',') {
+					i++;
+					continue;
+				}
+				i = expect(text, i, end, '}');
+				return result;
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> result = new ArrayList<>();
+			i = skipWhitespace(text, i + 1, end);
+			if (i < end && text[i] == ']') {
+				i++;
+				return result;
+			}
+			while (true) {
+				result.add(value());
+				i = skipWhitespace(text, i, end);
+				if (i < end && text[i] == ',') {
+					i++;
+					continue;
+				}
+				i = expect(text, i, end, ']');
+				return result;
+			}
+		}
+
+		private Object literal(String literal, Object value) {
+			for (int j = 0; j < literal.length(); j++)
+				expect(text, i + j, end, literal.charAt(j));
+			i += literal.length();
+			return value;
+		}
+
+		private Object number() {
+			int start = i;
+			boolean integral = true;
+			for (; i < end && !isDelimiter(text[i]); i++)
+				if (text[i] == '.' || text[i] == 'e' || text[i] == 'E')
+					integral = false;
+			String number = new String(text, start, i - start, StandardCharsets.US_ASCII);
+			try {
+				if (integral)
+					return Long.valueOf(number);
+				return Double.valueOf(number);
+			} catch (NumberFormatException e) {
+				try {
+					return new BigDecimal(number);
+				} catch (NumberFormatException e2) {
+					throw error("Malformed value", start);
+				}
+			}
+		}
+	}
+
+	/** A growable buffer of JSON text */
+	static final class Output {
+		private byte [] bytes = new byte[256];
+		private int size;
+
+		void write(byte [] source, int offset, int length) {
+			ensure(length);
+			System.arraycopy(source, offset, bytes, size, length);
+			size += length;
+		}
+
+		void write(char c) {
+			ensure(1);
+			bytes[size++] = (byte)c;
+		}
+
+		void write(String ascii) {
+			ensure(ascii.length());
+			for (int i = 0; i < ascii.length(); i++)
+				bytes[size++] = (byte)ascii.charAt(i);
+		}
+
+		private void ensure(int length) {
+			if (size + length > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(bytes, 0, size).slice();
+		}
+	}
+
+	/** Writes a member name and its value */
+	static void writeMember(Output out, String name, Object value) {
+		writeString(out, name);
+		out.write(':');
+		write(out, value);
+	}
+
+	/**
+	 * Writes a decoded value, or the struct native types a view may set: strings, characters, booleans and numbers.
+	 *
+	 * @throws IllegalArgumentException for values with no JSON form, which includes infinite and NaN numbers
+	 */
+	@SuppressWarnings("unchecked")
+	static void write(Output out, Object value) {
+		if (value == null) {
+			out.write("null");
+		} else if (value instanceof String) {
+			writeString(out, (String)value);
+		} else if (value instanceof Character) {
+			writeString(out, value.toString());
+		} else if (value instanceof Boolean) {
+			out.write(value.toString());
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number)value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				throw new IllegalArgumentException("No JSON form for " + value);
+			out.write(value.toString());
+		} else if (value instanceof Number) {
+			out.write(value.toString());
+		} else if (value instanceof Map) {
+			out.write('{');
+			boolean first = true;
+			for (Map.Entry<String, Object> entry: ((Map<String, Object>)value).entrySet()) {
+				if (!first)
+					out.write(',');
+				first = false;
+				writeMember(out, entry.getKey(), entry.getValue());
+			}
+			out.write('}');
+		} else if (value instanceof List) {
+			out.write('[');
+			boolean first = true;
+			for (Object element: (List<Object>)value) {
+				if (!first)
+					out.write(',');
+				first = false;
+				write(out, element);
+			}
+			out.write(']');
+		} else {
+			throw new IllegalArgumentException("No JSON form for " + value.getClass().getName());
+		}
+	}
+
+	/** true for the values write() accepts, not looking inside maps and lists */
+	static boolean isWritable(Object value) {
+		return value == null || value instanceof String || value instanceof Character || value instanceof Boolean
+				|| value instanceof Number || value instanceof Map || value instanceof List;
+	}
+
+	private static void writeString(Output out, String value) {
+		out.write('"');
+		int run = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\')
+				continue;
+			writeUtf8(out, value, run, i);
+			switch (c) {
+			case '"': out.write("\\\""); break;
+			case '\\': out.write("\\\\"); break;
+			case '\n': out.write("\\n"); break;
+			case '\r': out.write("\\r"); break;
+			case '\t': out.write("\\t"); break;
+			default: out.write(String.format("\\u%04x", (int)c));
+			}
+			run = i + 1;
+		}
+		writeUtf8(out, value, run, value.length());
+		out.write('"');
+	}
+
+	private static void writeUtf8(Output out, String value, int start, int end) {
+		if (start == end)
+			return;
+		byte [] bytes = value.substring(start, end).getBytes(StandardCharsets.UTF_8);
+		out.write(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,675 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import com.theunknowablebits.buff.serialization.Array;
+import com.theunknowablebits.buff.serialization.Struct;
+
+/**
+ * A document over UTF-8 JSON text, viewed exactly as a BuffDocument is.
+ * <p>
+ * Nothing is parsed up front. The first access indexes where each top level field lies in the text, and a field is
+ * only decoded when it is read. Encoding copies the text of untouched fields as it is, and only writes out the fields
+ * that changed, so a document that was only read encodes as the text it was loaded from.
+ * <p>
+ * Stores hold JSON documents when given JsonDocument::new for both their docFromNothing and docFromBytes.
+ *
+ * @author Dana
+ */
+public class JsonDocument implements Document, DocumentStoreAware, Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final DocumentStore defaultDocStore = new LocalDocumentStore(JsonDocument::new, JsonDocument::new);
+
+	/** the field holding an indirect view's id, as BuffDocument names it */
+	private static final String REF = "__REF__";
+
+	/** marks a field of the source text that has been removed */
+	private static final Object REMOVED = new Object();
+
+	private transient DocumentStore docStore = defaultDocStore;
+
+	/** the text this document was loaded from, or null */
+	private transient byte [] text;
+	private transient int start, end;
+
+	/** the members of the text by name, see Json.index(), built on first access */
+	private transient Map<String, int[]> index;
+
+	/** the fields decoded or written so far, which for a document without text are all of its fields */
+	private transient Map<String, Object> fields;
+
+	/** the fields whose text must be written afresh */
+	private transient Set<String> changed;
+
+	/** true when never stored, or changed since loaded or marked clean */
+	private transient boolean dirty;
+	private transient Set<String> dirtyFields;
+
+	/** the document whose field holds this one, or null at the top level */
+	private transient JsonDocument parent;
+	private transient String parentField;
+
+	/** Creates an empty, and so dirty, document. Public for Externalizable. */
+	public JsonDocument() {
+		this(new LinkedHashMap<>());
+		this.dirty = true;
+	}
+
+	/** Loads a clean document from JSON text, which must hold an object */
+	public JsonDocument(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			text = buffer.array();
+			start = buffer.arrayOffset() + buffer.position();
+		} else {
+			text = new byte[buffer.remaining()];
+			buffer.duplicate().get(text);
+		}
+		end = start + buffer.remaining();
+		fields = new LinkedHashMap<>();
+	}
+
+	private JsonDocument(Map<String, Object> fields) {
+		this.fields = fields;
+	}
+
+	/** Copies a BuffDocument's fields into a new JSON document */
+	public static JsonDocument transcode(BuffDocument document) {
+		JsonDocument result = new JsonDocument();
+		for (String field: document.root.keySet())
+			result.fields.put(field, fromBuff(document.root.get(field)));
+		return result;
+	}
+
+	/**
+	 * Copies this document's fields into a new BuffDocument. Structs keep values as the types they were written as,
+	 * which JSON does not record, so integers that fit are copied as Integers and all others as Longs.
+	 */
+	public BuffDocument toBuffDocument() {
+		byte [] bytes = toBytes();
+		BuffDocument result = new BuffDocument();
+		result.root = (Struct)toBuff(Json.parse(bytes, 0, bytes.length));
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object toBuff(Object value) {
+		if (value instanceof Map) {
+			Struct struct = new Struct();
+			for (Map.Entry<String, Object> entry: ((Map<String, Object>)value).entrySet())
+				struct.put(entry.getKey(), toBuff(entry.getValue()));
+			return struct;
+		}
+		if (value instanceof List) {
+			Array array = new Array();
+			for (Object element: (List<Object>)value)
+				array.add(toBuff(element));
+			return array;
+		}
+		if (value instanceof Long && (Long)value == ((Long)value).intValue())
+			return ((Long)value).intValue();
+		return value;
+	}
+
+	private static Object fromBuff(Object value) {
+		if (value instanceof Struct) {
+			Struct struct = (Struct)value;
+			Map<String, Object> map = new LinkedHashMap<>();
+			for (String key: struct.keySet())
+				map.put(key, fromBuff(struct.get(key)));
+			return map;
+		}
+		if (value instanceof Array) {
+			Array array = (Array)value;
+			List<Object> list = new ArrayList<>(array.size());
+			for (int i = 0; i < array.size(); i++)
+				list.add(fromBuff(array.get(i)));
+			return list;
+		}
+		if (!Json.isWritable(value))
+			throw new IllegalArgumentException("No JSON form for " + value.getClass().getName());
+		return value;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Buffers.writeLengthPrefixed(out, toByteBuffer());
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		docStore = defaultDocStore;
+		text = new byte[in.readInt()];
+		in.readFully(text);
+		start = 0;
+		end = text.length;
+		fields = new LinkedHashMap<>();
+		// the changes made before it was written are unknown, so it stays dirty and is stored whole:
+		dirty = true;
+	}
+
+	@Override
+	public Document newInstance() {
+		return docStore.newInstance();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends DocumentView> T as(Class<T> documentClass) {
+		return (T)ViewClass.of(documentClass).newProxy(new JsonHandler(documentClass));
+	}
+
+	@Override
+	public void setDocumentStore(DocumentStore docStore) {
+		this.docStore = docStore;
+	}
+
+	@Override
+	public DocumentStore getDocumentStore() {
+		return docStore;
+	}
+
+	/*
+	 * Fields, as decoded from the text or since written
+	 */
+
+	private Map<String, int[]> index() {
+		Map<String, int[]> result = index;
+		if (result == null)
+			index = result = text == null ? Collections.emptyMap() : Json.index(text, start, end);
+		return result;
+	}
+
+	private Object field(String name) {
+		Object value = fields.get(name);
+		if (value == null && !fields.containsKey(name)) {
+			int [] member = index().get(name);
+			if (member == null)
+				return null;
+			fields.put(name, value = Json.parse(text, member[1], member[2]));
+		}
+		return value == REMOVED ? null : value;
+	}
+
+	private boolean has(String name) {
+		if (fields.containsKey(name))
+			return fields.get(name) != REMOVED;
+		return index().containsKey(name);
+	}
+
+	private Object putField(String name, Object value) {
+		Object previous = field(name);
+		fields.put(name, value);
+		markDirty(name);
+		return previous;
+	}
+
+	@Override
+	public void remove(String field) {
+		if (index().containsKey(field))
+			fields.put(field, REMOVED);
+		else
+			fields.remove(field);
+		markDirty(field);
+	}
+
+	/** Projects by decoding only the named fields, so the text of the others is only ever skipped */
+	@Override
+	public Document project(String... fieldNames) {
+		JsonDocument result = new JsonDocument(new LinkedHashMap<>());
+		for (String field: fieldNames)
+			if (has(field))
+				result.fields.put(field, copyOf(field(field)));
+		result.docStore = docStore;
+		return result;
+	}
+
+	/** Records a change to a top level field. Changes made through views are recorded as they happen. */
+	public void markDirty(String field) {
+		if (changed == null)
+			changed = new HashSet<>();
+		if (dirtyFields == null)
+			dirtyFields = new HashSet<>();
+		changed.add(field);
+		dirtyFields.add(field);
+		dirty = true;
+		if (parent != null)
+			parent.markDirty(parentField);
+	}
+
+	@Override
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/** The top level fields changed since the document was loaded or last marked clean */
+	public Set<String> dirtyFields() {
+		return dirtyFields == null ? Collections.emptySet() : Collections.unmodifiableSet(dirtyFields);
+	}
+
+	@Override
+	public void markClean() {
+		dirty = false;
+		dirtyFields = null;
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	/**
+	 * Splices the text of unchanged fields between the fields written afresh. The result becomes the text the document
+	 * is read from, so encoding an unchanged document again costs nothing.
+	 */
+	@Override
+	public ByteBuffer toByteBuffer() {
+		if (parent != null || text == null) {
+			Json.Output out = new Json.Output();
+			Json.write(out, fields);
+			return out.toByteBuffer();
+		}
+		if (changed == null)
+			return ByteBuffer.wrap(text, start, end - start).slice();
+
+		Json.Output out = new Json.Output();
+		out.write('{');
+		boolean first = true;
+		Map<String, int[]> index = index();
+		for (Map.Entry<String, int[]> member: index.entrySet()) {
+			String name = member.getKey();
+			boolean rewrite = changed.contains(name);
+			if (rewrite && fields.get(name) == REMOVED)
+				continue;
+			if (!first)
+				out.write(',');
+			first = false;
+			int [] at = member.getValue();
+			if (rewrite)
+				Json.writeMember(out, name, fields.get(name));
+			else
+				out.write(text, at[0], at[2] - at[0]);
+		}
+		for (Map.Entry<String, Object> field: fields.entrySet()) {
+			if (index.containsKey(field.getKey()) || field.getValue() == REMOVED)
+				continue;
+			if (!first)
+				out.write(',');
+			first = false;
+			Json.writeMember(out, field.getKey(), field.getValue());
+		}
+		out.write('}');
+
+		ByteBuffer result = out.toByteBuffer();
+		text = result.array();
+		start = result.arrayOffset();
+		end = start + result.remaining();
+		index = null;
+		changed = null;
+		fields.values().removeIf(value -> value == REMOVED);
+		return result;
+	}
+
+	@Override
+	public byte[] toBytes() {
+		ByteBuffer buffer = toByteBuffer().duplicate();
+		byte [] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toBytes(), StandardCharsets.UTF_8);
+	}
+
+	/** A document only equals another over the same fields, as with BuffDocument */
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof JsonDocument && ((JsonDocument)obj).fields == fields;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(fields);
+	}
+
+	/*
+	 * Views
+	 */
+
+	private class JsonHandler implements InvocationHandler, Serializable {
+		private static final long serialVersionUID = 1L;
+		final Class<? extends DocumentView> documentClass;
+		private transient ViewClass viewClass;
+
+		JsonHandler(Class<? extends DocumentView> documentClass) {
+			this.documentClass = documentClass;
+			this.viewClass = ViewClass.of(documentClass);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (viewClass == null)
+				viewClass = ViewClass.of(documentClass); // after deserialization
+			return JsonDocument.this.invoke(viewClass.method(method), proxy, args);
+		}
+	}
+
+	private Object invoke(ViewMethod viewMethod, Object view, Object[] args) throws Throwable {
+		switch (viewMethod.kind) {
+		case GET:
+			if (viewMethod.valueType.isContainer() && !has(viewMethod.fieldName))
+				putField(viewMethod.fieldName, viewMethod.valueType.kind == ValueType.Kind.LIST ? new ArrayList<>() : new LinkedHashMap<>());
+			return fromJson(viewMethod.fieldName, viewMethod.valueType, field(viewMethod.fieldName), viewMethod.indirect);
+		case SET:
+			Object previous = putField(viewMethod.fieldName, toJson(viewMethod.fieldName, viewMethod.valueType, args[0], viewMethod.indirect));
+			if (viewMethod.returnsPreviousValue())
+				return fromJson(viewMethod.fieldName, viewMethod.previousValueType, previous, viewMethod.indirect);
+			return view;
+		case DEFAULT:
+			return viewMethod.invokeDefault(view, args);
+		case DOCUMENT:
+			return this;
+		case WRITE_REPLACE:
+			return new SerializedView(this, viewMethod.documentClass);
+		case EQUALS:
+			if (args[0] instanceof DocumentView)
+				return equals(((DocumentView)args[0]).document());
+			return false;
+		case HASH_CODE:
+			return hashCode();
+		case GET_DOCUMENT_STORE:
+			return getDocumentStore();
+		case SET_DOCUMENT_STORE:
+			setDocumentStore((DocumentStore)args[0]);
+			return null;
+		case TO_STRING:
+			return toString();
+		default:
+			throw new RuntimeException("No path to invoke for " + viewMethod.method.getName());
+		}
+	}
+
+	/**
+	 * Reads a decoded value as a declared type.
+	 *
+	 * @param field the top level field the value is read from, which changes made through the result will dirty
+	 */
+	@SuppressWarnings("unchecked")
+	private Object fromJson(String field, ValueType valueType, Object value, boolean indirect) {
+		if (value == null)
+			return valueType.kind == ValueType.Kind.PRIMITIVE ? valueType.toPrimitive(null) : null;
+
+		switch (valueType.kind) {
+		case ARRAY:
+			List<Object> elements = (List<Object>)value;
+			Object result = java.lang.reflect.Array.newInstance(valueType.elementType.rawType, elements.size());
+			for (int i = 0; i < elements.size(); i++)
+				java.lang.reflect.Array.set(result, i, fromJson(field, valueType.elementType, elements.get(i), indirect));
+			return result;
+
+		case LIST:
+			return new JsonList<Object>(field, valueType.elementType, (List<Object>)value, indirect);
+
+		case MAP:
+			return new JsonMap<Object>(field, valueType.elementType, (Map<String, Object>)value, indirect);
+
+		case VIEW:
+			Class<? extends DocumentView> viewType = (Class<? extends DocumentView>)valueType.rawType;
+			Map<String, Object> members = (Map<String, Object>)value;
+			if (indirect) {
+				String id = (String)members.get(REF);
+				if (id == null) {
+					members.put(REF, id = docStore.getID(docStore.newInstance()));
+					markDirty(field);
+				}
+				return docStore.get(viewType, id);
+			}
+			JsonDocument child = new JsonDocument(members);
+			child.docStore = docStore;
+			child.parent = this;
+			child.parentField = field;
+			return child.as(viewType);
+
+		case PRIMITIVE:
+			if (valueType.rawType == char.class && value instanceof String)
+				return ((String)value).charAt(0);
+			return valueType.toPrimitive(value);
+
+		default:
+			return valueType.fromStructValue(narrow(valueType.rawType, value));
+		}
+	}
+
+	/** JSON has one kind of integer, one kind of decimal and no characters, so values are narrowed to the declared type */
+	private static Object narrow(Class<?> type, Object value) {
+		if (value instanceof Number && !type.isInstance(value)) {
+			Number number = (Number)value;
+			if (type == Integer.class) return number.intValue();
+			if (type == Long.class) return number.longValue();
+			if (type == Double.class) return number.doubleValue();
+			if (type == Float.class) return number.floatValue();
+			if (type == Short.class) return number.shortValue();
+			if (type == Byte.class) return number.byteValue();
+		}
+		if (type == Character.class && value instanceof String && ((String)value).length() == 1)
+			return ((String)value).charAt(0);
+		return value;
+	}
+
+	/**
+	 * Writes a value of a declared type in its decoded JSON form.
+	 *
+	 * @param field the top level field the value is written to
+	 * @throws IllegalArgumentException for values with no JSON form, such as views of other kinds of document
+	 */
+	private Object toJson(String field, ValueType declaredType, Object value, boolean indirect) {
+		if (value == null)
+			return null;
+
+		switch (declaredType.kind) {
+		case ARRAY:
+			int length = java.lang.reflect.Array.getLength(value);
+			List<Object> elements = new ArrayList<>(length);
+			for (int i = 0; i < length; i++)
+				elements.add(toJson(field, declaredType.elementType, java.lang.reflect.Array.get(value, i), indirect));
+			return elements;
+
+		case LIST:
+		case MAP:
+			throw new RuntimeException("Cannot replace a synthetic collection. Please operate through the collections members.");
+
+		case VIEW:
+			if (indirect) {
+				Map<String, Object> reference = new LinkedHashMap<>();
+				reference.put(REF, docStore.getID((DocumentView)value));
+				return reference;
+			}
+			Document document = ((DocumentView)value).document();
+			if ( !( document instanceof JsonDocument ) )
+				throw new IllegalArgumentException("No JSON form for a " + document.getClass().getName());
+			JsonDocument json = (JsonDocument)document;
+			if (json.text != null) {
+				json.toByteBuffer(); // brings its text up to date
+				return Json.parse(json.text, json.start, json.end); // a copy, since it keeps its own text
+			}
+			if (json.parent != null || json == this)
+				return copyOf(json.fields); // a copy, since its changes are reported to its own parent
+			// the document now shares its fields with this one, so its changes are ours:
+			json.parent = this;
+			json.parentField = field;
+			return json.fields;
+
+		case PRIMITIVE:
+			return value;
+
+		default:
+			Object result = declaredType.toStructValue(value);
+			if (!Json.isWritable(result))
+				throw new IllegalArgumentException("No JSON form for " + result.getClass().getName() + ", register a Converter");
+			return result;
+		}
+	}
+
+	/** a deep copy of a decoded value, so that no two documents hold the same container */
+	@SuppressWarnings("unchecked")
+	private static Object copyOf(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> copy = new LinkedHashMap<>();
+			for (Map.Entry<String, Object> entry: ((Map<String, Object>)value).entrySet())
+				copy.put(entry.getKey(), copyOf(entry.getValue()));
+			return copy;
+		}
+		if (value instanceof List) {
+			List<Object> copy = new ArrayList<>(((List<Object>)value).size());
+			for (Object element: (List<Object>)value)
+				copy.add(copyOf(element));
+			return copy;
+		}
+		return value;
+	}
+
+	private class JsonList<B> extends AbstractList<B> implements RandomAccess {
+		final String field;
+		final ValueType elementType;
+		final List<Object> elements;
+		final boolean indirect;
+
+		JsonList(String field, ValueType elementType, List<Object> elements, boolean indirect) {
+			this.field = field;
+			this.elementType = elementType;
+			this.elements = elements;
+			this.indirect = indirect;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public B get(int index) {
+			return (B)fromJson(field, elementType, elements.get(index), indirect);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public B set(int index, B element) {
+			Object previous = elements.set(index, toJson(field, elementType, element, indirect));
+			markDirty(field);
+			return (B)fromJson(field, elementType, previous, indirect);
+		}
+
+		@Override
+		public void add(int index, B element) {
+			elements.add(index, toJson(field, elementType, element, indirect));
+			markDirty(field);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public B remove(int index) {
+			Object previous = elements.remove(index);
+			markDirty(field);
+			return (B)fromJson(field, elementType, previous, indirect);
+		}
+
+		@Override
+		public int size() {
+			return elements.size();
+		}
+	}
+
+	private class JsonMap<B> extends AbstractMap<String, B> {
+		final String field;
+		final ValueType valueType;
+		final Map<String, Object> members;
+		final boolean indirect;
+
+		JsonMap(String field, ValueType valueType, Map<String, Object> members, boolean indirect) {
+			this.field = field;
+			this.valueType = valueType;
+			this.members = members;
+			this.indirect = indirect;
+		}
+
+		@Override
+		public Set<Entry<String, B>> entrySet() {
+			return new AbstractSet<Entry<String, B>>() {
+				@Override
+				public Iterator<Entry<String, B>> iterator() {
+					final Iterator<String> keys = members.keySet().iterator();
+					return new Iterator<Entry<String, B>>() {
+						@Override
+						public boolean hasNext() {
+							return keys.hasNext();
+						}
+
+						@Override
+						public Entry<String, B> next() {
+							String key = keys.next();
+							return new SimpleImmutableEntry<String, B>(key, get(key));
+						}
+
+						@Override
+						public void remove() {
+							keys.remove();
+							markDirty(field);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return members.size();
+				}
+			};
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return members.containsKey(key);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public B get(Object key) {
+			return (B)fromJson(field, valueType, members.get(key), indirect);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public B put(String key, B value) {
+			Object previous = members.put(key, toJson(field, valueType, value, indirect));
+			markDirty(field);
+			return (B)fromJson(field, valueType, previous, indirect);
+		}
+
+		@Override
+		public B remove(Object key) {
+			B result = get(key);
+			if (members.containsKey(key)) {
+				members.remove(key);
+				markDirty(field);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks of a store's keys, striped over a fixed number of reentrant locks, so that a pass of a group commit can
+ * hold those of any number of keys. A pass takes its stripes in a loop and in stripe order, so passes and single
+ * writes, which hold one stripe at a time, never deadlock.
+ * <p>
+ * Keys of the same stripe share its lock, so no key's lock may be held while waiting on a thread that takes another.
+ *
+ * @author Dana
+ */
+final class KeyLocks {
+
+	private final ReentrantLock [] stripes;
+
+	/** @param count the number of stripes, a power of two */
+	KeyLocks(int count) {
+		if (Integer.bitCount(count) != 1)
+			throw new IllegalArgumentException("The stripes must be a power of two");
+		stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new ReentrantLock();
+	}
+
+	KeyLocks() {
+		this(1024);
+	}
+
+	/** the lock of a key, shared with the other keys of its stripe */
+	Lock of(String key) {
+		return stripes[stripe(key)];
+	}
+
+	/** Runs an action holding the locks of keys */
+	void runLocked(Collection<String> keys, Runnable action) {
+		BitSet needed = new BitSet(stripes.length);
+		for (String key: keys)
+			needed.set(stripe(key));
+		int held = -1;
+		try {
+			for (int i = needed.nextSetBit(0); i >= 0; i = needed.nextSetBit(i + 1)) {
+				stripes[i].lock();
+				held = i;
+			}
+			action.run();
+		} finally {
+			for (int i = held; i >= 0; i = needed.previousSetBit(i - 1))
+				stripes[i].unlock();
+		}
+	}
+
+	private int stripe(String key) {
+		int hash = key.hashCode();
+		return ( hash ^ ( hash >>> 16 ) ) & ( stripes.length - 1 );
+	}
+
+}
@@ -1,16 +1,24 @@
 package com.theunknowablebits.proxamic;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 /**
  * An in memory document store suitable for use within the same VM.
+ * <p>
+ * Each key holds a chain of versions, newest first, so that snapshots read without locks. A delete adds a version with
+ * no document, and versions no open snapshot can read are dropped as keys are written and as snapshots close.
  * 
  * @author Dana
  */
@@ -22,6 +30,10 @@ public class LocalDocumentStore extends AbstractDocumentStore implements Documen
 		long versionNumber;
 		long lockedUntil;
 		String lockId;
+		/** the version this one replaced, kept while an open snapshot may read it */
+		volatile Record older;
+		/** the time this version was published on the snapshot clock, or 0 until it is */
+		volatile long committed;
 		public Record(String documentId, ByteBuffer document, long versionNumber, String lockId) {
 			super();
 			this.documentId = documentId;
@@ -36,6 +48,12 @@ public class LocalDocumentStore extends AbstractDocumentStore implements Documen
 
 	Map<Document,Record> recordsByDocument = Collections.synchronizedMap(new WeakHashMap<>());
 	ConcurrentHashMap<String,Record> recordsById = new ConcurrentHashMap<String,Record>();
+
+	private final Snapshots snapshots = new Snapshots();
+
+	private final KeyLocks locks = new KeyLocks();
+
+	private final GroupCommit commits = new GroupCommit(this::commit);
 	
 	public LocalDocumentStore(Supplier<Document> docFromNothing, Function<ByteBuffer, Document> docFromBytes, Supplier<String> idSupplier) {
 		super(docFromNothing, docFromBytes, idSupplier);
@@ -49,6 +67,68 @@ public class LocalDocumentStore extends AbstractDocumentStore implements Documen
 		super();
 	}
 	
+	/**
+	 * Opens a point in time view of the store, see Snapshot. Until it is closed, the store keeps the versions it may
+	 * read.
+	 */
+	public Snapshot snapshot() {
+		long time = snapshots.open();
+		return new Snapshot() {
+			private boolean closed;
+			@Override
+			public Document get(String key) {
+				if (closed)
+					throw new IllegalStateException("Snapshot closed");
+				return getAt(key, time);
+			}
+			@Override
+			public synchronized void close() {
+				if (closed)
+					return;
+				closed = true;
+				if (snapshots.close(time))
+					vacuum();
+			}
+		};
+	}
+
+	private Document getAt(String key, long time) {
+		Record version = recordsById.get(key);
+		while ( ( version != null ) && !Snapshots.isVisible(version.committed, time) )
+			version = version.older;
+		if ( ( version == null ) || ( version.document == null ) )
+			return newInstance(key);
+
+		Document doc = decode(version.document);
+		recordsByDocument.put(doc, new Record(version.documentId,null,version.versionNumber));
+		return withDocStore(doc);
+	}
+
+	/** Prunes the keys that held versions for snapshots, once the oldest has closed */
+	private void vacuum() {
+		for (String docId: snapshots.chained) {
+			Lock keyLock = locks.of(docId);
+			keyLock.lock();
+			try {
+				Record storageRecord = recordsById.get(docId);
+				if (storageRecord == null)
+					snapshots.chained.remove(docId);
+				else
+					prune(docId, storageRecord);
+			} finally {
+				keyLock.unlock();
+			}
+		}
+	}
+
+	/** the number of versions held for a key */
+	int versions(String key) {
+		int versions = 0;
+		for (Record version = recordsById.get(key); version != null; version = version.older)
+			versions++;
+		return versions;
+	}
+
 	@Override
 	public String getID(Document document) {
 		return documentsRecord(document).documentId;
@@ -63,71 +143,236 @@ public class LocalDocumentStore extends AbstractDocumentStore implements Documen
 
 	@Override
 	public Document get(String key) {
-		Record storageRecord = recordsById.get(key);
+		Record storageRecord = current(key);
 		if (storageRecord == null)
 			return newInstance(key);
 
-		Document doc = docFromBytes.apply(storageRecord.document);
+		Document doc = decode(storageRecord.document);
 		recordsByDocument.put(doc, new Record(storageRecord.documentId,null,storageRecord.versionNumber));	
 		return withDocStore(doc);
 	}
 
+	/** Decodes the named fields straight from the stored bytes, without the bookkeeping of a stored document */
+	@Override
+	public <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) {
+		Record storageRecord = current(key);
+		if (storageRecord == null)
+			return withDocStore(docFromNothing.get()).as(viewClass);
+		return withDocStore(decode(storageRecord.document).project(fieldNames)).as(viewClass);
+	}
+
 	@Override
 	public void put(Document document) {
 		Record documentsRecord = documentsRecord(document);
 		
-		synchronized(documentsRecord.documentId) {
-			Record storageRecord = recordsById.get(documentsRecord.documentId);
+		Lock keyLock = locks.of(documentsRecord.documentId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(documentsRecord.documentId);
 
 			assertVersionHolder(documentsRecord, storageRecord);
 
 			assertLockHolder(documentsRecord, storageRecord);
+
+			// an unchanged document is already stored, so only its lock is reset:
+			if ( ( storageRecord != null ) && !document.isDirty() ) {
+				storageRecord.lockedUntil = 0;
+				return;
+			}
 			
 			// always put a new storage record, which also resets locks:
-			recordsById.put( documentsRecord.documentId, storageRecord = new Record(documentsRecord.documentId, document.toByteBuffer(), documentsRecord.versionNumber+1 ) );
+			publish( storageRecord = new Record(documentsRecord.documentId, encode(document), documentsRecord.versionNumber+1 ) );
 
 			// update the document record:
 			recordsByDocument.put(document, new Record(storageRecord.documentId, null, storageRecord.versionNumber));
+			document.markClean();
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the document's changes to the stored copy. New and unchanged documents, and those that are not
+	 * BuffDocuments, are put as usual.
+	 */
+	@Override
+	public void patch(Document document) {
+		Record documentsRecord = documentsRecord(document);
+		if ( !Patch.covers(document) || !document.isDirty() ) {
+			put(document);
+			return;
+		}
+		Patch patch = Patch.of((BuffDocument)document);
+		
+		Lock keyLock = locks.of(documentsRecord.documentId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(documentsRecord.documentId);
+			if (storageRecord == null) {
+				put(document);
+				return;
+			}
+
+			assertVersionHolder(documentsRecord, storageRecord);
+
+			assertLockHolder(documentsRecord, storageRecord);
+
+			Document stored = decode(storageRecord.document);
+			if ( !( stored instanceof BuffDocument ) ) {
+				put(document);
+				return;
+			}
+			patch.applyTo((BuffDocument)stored);
+
+			// as with put, a new storage record also resets locks:
+			publish( storageRecord = new Record(documentsRecord.documentId, encode(stored), documentsRecord.versionNumber+1 ) );
+
+			recordsByDocument.put(document, new Record(storageRecord.documentId, null, storageRecord.versionNumber));
+			document.markClean();
+		} finally {
+			keyLock.unlock();
 		}
 	}
 
 	@Override
 	public void delete(Document document) {
 		Record documentsRecord =  documentsRecord(document);
-		synchronized(documentsRecord.documentId) {
-			Record storageRecord = recordsById.get(documentsRecord.documentId);
+		Lock keyLock = locks.of(documentsRecord.documentId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(documentsRecord.documentId);
 
 			assertVersionHolder(documentsRecord, storageRecord);
 
 			assertLockHolder(documentsRecord, storageRecord);
 
 			// no need to release, since the current record no longer has a lock
-			recordsById.remove(documentsRecord.documentId);
+			if (storageRecord != null)
+				publish(new Record(documentsRecord.documentId, null, 0));
+		} finally {
+			keyLock.unlock();
 		}
 	}
 	
+	/**
+	 * Applies a batch atomically. Batches applied concurrently are checked and published in one pass, holding the locks
+	 * of all their keys, see GroupCommit.
+	 */
+	@Override
+	public void apply(Batch batch) {
+		commits.apply(batch);
+	}
+
+	/**
+	 * Checks each batch of a group against the store as the batches before it leave it, then publishes those that pass,
+	 * all as one commit.
+	 */
+	private void commit(List<GroupCommit.Pending> group) {
+		locks.runLocked(GroupCommit.keys(group, this::getID), () -> {
+			Map<String, Record> staged = new HashMap<>();
+			List<LongConsumer> effects = new ArrayList<>();
+			for (GroupCommit.Pending pending: group) {
+				if (pending.isFailed())
+					continue;
+				Map<String, Record> written = new HashMap<>();
+				List<LongConsumer> batchEffects = new ArrayList<>();
+				try {
+					for (Batch.Operation operation: pending.batch.operations)
+						stage(operation, key -> written.containsKey(key) ? written.get(key) : staged.containsKey(key) ? staged.get(key) : recordsById.get(key), written, batchEffects);
+					staged.putAll(written);
+					effects.addAll(batchEffects);
+				} catch (RuntimeException e) {
+					pending.fail(e);
+				}
+			}
+			// the group is published as one commit, so a snapshot sees all of it or none:
+			snapshots.commit(time -> effects.forEach(effect -> effect.accept(time)));
+		});
+	}
+
+	/**
+	 * Checks an operation as put, patch, delete or release would, or only its version for a check, against the newest
+	 * version of its key, staged or published, and adds what it writes to the batch. Must hold the key's lock.
+	 */
+	private void stage(Batch.Operation operation, Function<String, Record> newest, Map<String, Record> written, List<LongConsumer> effects) {
+		Document document = operation.document;
+		Record documentsRecord = documentsRecord(document);
+		String docId = documentsRecord.documentId;
+		Record current = newest.apply(docId);
+		Record storageRecord = ( current != null ) && ( current.document != null ) ? current : null;
+
+		if (operation.kind == Batch.Kind.RELEASE) {
+			assertLockHolder(documentsRecord, storageRecord);
+			if (storageRecord != null)
+				effects.add(time -> storageRecord.lockedUntil = 0);
+			return;
+		}
+
+		assertVersionHolder(documentsRecord, storageRecord);
+
+		if (operation.kind == Batch.Kind.CHECK)
+			return;
+
+		assertLockHolder(documentsRecord, storageRecord);
+
+		if (operation.kind == Batch.Kind.DELETE) {
+			if (storageRecord == null)
+				return;
+			Record deleted = new Record(docId, null, 0);
+			written.put(docId, deleted);
+			effects.add(time -> publish(deleted, time));
+			return;
+		}
+
+		// an unchanged document is already stored, so only its lock is reset:
+		if ( ( storageRecord != null ) && !document.isDirty() ) {
+			effects.add(time -> storageRecord.lockedUntil = 0);
+			return;
+		}
+
+		ByteBuffer bytes = null;
+		if ( ( operation.kind == Batch.Kind.PATCH ) && ( storageRecord != null ) && Patch.covers(document) ) {
+			Document stored = decode(storageRecord.document);
+			if (stored instanceof BuffDocument) {
+				Patch.of((BuffDocument)document).applyTo((BuffDocument)stored);
+				bytes = encode(stored);
+			}
+		}
+		Record next = new Record(docId, bytes != null ? bytes : encode(document), documentsRecord.versionNumber+1);
+		written.put(docId, next);
+		effects.add(time -> {
+			publish(next, time);
+			recordsByDocument.put(document, new Record(docId, null, next.versionNumber));
+			document.markClean();
+		});
+	}
+
 	@Override
 	public Document lock(String key) {
-		Record storageRecord = recordsById.get(key);
-		synchronized ( storageRecord==null?key:storageRecord.documentId ) {
+		Record storageRecord;
+		Lock keyLock = locks.of(key);
+		keyLock.lock();
+		try {
 			// just in case, always get the latest copy after we enter the sync block:
-			storageRecord = recordsById.get(key); 
+			storageRecord = current(key); 
 
 			assertLockHolder(null, storageRecord);
 
 			// insert a new item if required:
 			if (storageRecord == null) { 
-				storageRecord = new Record(key,docFromNothing.get().toByteBuffer(),0);
-				recordsById.put(key, storageRecord);
+				storageRecord = new Record(key,encode(docFromNothing.get()),0);
+				publish(storageRecord);
 			}
 
 			// set the lock
 			storageRecord.lockedUntil = System.currentTimeMillis()+60_000;
 			storageRecord.lockId = idSupplier.get().toString();	
+		} finally {
+			keyLock.unlock();
 		}
 		
 		// Once the lock is established go about standard retrieval
-		Document doc = docFromBytes.apply(storageRecord.document);
+		Document doc = decode(storageRecord.document);
 
 		// modify the record for the lock holding document to indicate this is the lock holder:
 		recordsByDocument.put(doc, new Record(storageRecord.documentId, null, storageRecord.versionNumber, storageRecord.lockId ));
@@ -139,13 +384,60 @@ public class LocalDocumentStore extends AbstractDocumentStore implements Documen
 	@Override
 	public void release(Document document) {
 		Record documentsRecord = documentsRecord(document);
-		synchronized (documentsRecord.documentId) {
-			Record storageRecord = recordsById.get(documentsRecord.documentId); // just in case, always get the latest copy
+		Lock keyLock = locks.of(documentsRecord.documentId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(documentsRecord.documentId); // just in case, always get the latest copy
 
 			assertLockHolder(documentsRecord, storageRecord);
 
 			storageRecord.lockedUntil = 0;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/** the current version of a key, or null if it has none or was deleted */
+	private Record current(String key) {
+		Record storageRecord = recordsById.get(key);
+		return ( storageRecord != null ) && ( storageRecord.document != null ) ? storageRecord : null;
+	}
+
+	/** Stamps a record and makes it the current version of its key, as one commit. Must hold the key's lock. */
+	private void publish(Record storageRecord) {
+		snapshots.commit(time -> publish(storageRecord, time));
+	}
+
+	/**
+	 * Stamps a record with the time of a commit and makes it the current version of its key, so that snapshots taken
+	 * before the commit never see it. Must hold the key's lock, and run within the commit.
+	 */
+	private void publish(Record storageRecord, long time) {
+		storageRecord.committed = time;
+		// linked before it is put, so snapshots that skip it never find the key without its older versions:
+		storageRecord.older = recordsById.get(storageRecord.documentId);
+		recordsById.put(storageRecord.documentId, storageRecord);
+		prune(storageRecord.documentId, storageRecord);
+	}
+
+	/**
+	 * Drops the versions of a key that no open snapshot can read: those older than the newest one stamped by the oldest
+	 * snapshot. A deleted key with nothing left to read is removed. Must hold the key's lock.
+	 */
+	private void prune(String docId, Record storageRecord) {
+		long watermark = snapshots.watermark();
+		Record oldest = storageRecord;
+		while ( ( oldest != null ) && !Snapshots.isVisible(oldest.committed, watermark) )
+			oldest = oldest.older;
+		if (oldest != null)
+			oldest.older = null;
+		if (storageRecord.older != null) {
+			snapshots.chained.add(docId);
+			return;
 		}
+		snapshots.chained.remove(docId);
+		if (storageRecord.document == null)
+			recordsById.remove(docId, storageRecord);
 	}
 
 	private void assertLockHolder(Record documentsRecord, Record storageRecord) {
@@ -0,0 +1,1161 @@
+package com.theunknowablebits.proxamic;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import com.theunknowablebits.proxamic.MemoryDocumentStore.MemoryDocument;
+
+/**
+ * A document store that keeps its documents in a directory, so they survive restarts.
+ * <p>
+ * Every put and delete is appended to the newest of a series of segment files, and an index in memory maps each key
+ * to the position of its current record. Once a segment is sealed it is mapped, and documents read from it wrap a
+ * read only slice of the mapping, so with the default codec no bytes are copied until the document is changed.
+ * On opening, the segments are replayed in order to rebuild the index; a torn entry at the end of the newest segment,
+ * left by a crash, is cut off there.
+ * <p>
+ * Superseded records are reclaimed by compact(), which copies the current records of every sealed segment into one
+ * new segment and deletes the rest. It runs alongside reads and writes, and by default in the background whenever
+ * more than half the log is superseded. The compacted segment gets a mapped hash index, see SegmentIndex, so its keys
+ * are looked up on disk rather than held in memory, and opening replays only the segments written since.
+ * <p>
+ * Versions and locks behave as in MemoryDocumentStore. Locks are leases held in memory, so they end with the process.
+ * Records are kept in the store's codec, which must therefore be set to the same codec every time the store is opened.
+ * <p>
+ * A directory can be open in only one store at a time. Close the store to release it.
+ *
+ * @author Dana
+ */
+public class LogDocumentStore extends AbstractDocumentStore implements DocumentStore, Closeable {
+
+	/** When appended entries are forced to the disk */
+	public enum Sync {
+		/** before each write returns; writers that arrive together share one force */
+		ALWAYS,
+		/** by a background thread at an interval, so a crash loses at most the writes of the last interval */
+		INTERVAL,
+		/** only when a segment is sealed and when the store is closed, leaving the rest to the operating system */
+		NEVER
+	}
+
+	private static final int MAGIC = 0x50584C47; // PXLG
+	private static final int VERSION = 1;
+	/** magic, version, and the number of the oldest segment this one includes */
+	private static final int HEADER_SIZE = 16;
+	/** length and CRC of the entry body */
+	private static final int ENTRY_HEADER = 8;
+	/** kind, version and key length, before the key */
+	private static final int BODY_HEADER = 11;
+	/** a batch entry has no key, and counts the entries after it that are replayed all together or not at all */
+	private static final byte PUT = 1, DELETE = 2, BATCH = 3;
+	private static final String SUFFIX = ".segment", INDEX_SUFFIX = ".index", PARTIAL = ".compacting";
+	/** the least garbage worth compacting in the background */
+	private static final long MIN_GARBAGE = 1 << 20;
+
+	/**
+	 * A segment file. Segments written by the store are numbered by twos, and the output of a compaction takes the odd
+	 * number below the segment that was active, so it replays after the segments it replaces and before any newer.
+	 */
+	private static final class Segment {
+		final long number;
+		Path path;
+		final FileChannel channel;
+		/** the end of the entries written, and of those forced to the disk */
+		volatile long size, durable;
+		/** the bytes of the records in this segment that are still current */
+		final AtomicLong live = new AtomicLong();
+		/** set once compaction has replaced the segment */
+		volatile boolean retired;
+		/** the whole segment, read only, once it is sealed */
+		volatile ByteBuffer mapped;
+
+		Segment(long number, Path path, FileChannel channel, long size) {
+			this.number = number;
+			this.path = path;
+			this.channel = channel;
+			this.size = this.durable = size;
+		}
+
+		static Segment create(Path path, long number, long base) throws IOException {
+			FileChannel channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(base);
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+			channel.force(true);
+			return new Segment(number, path, channel, HEADER_SIZE);
+		}
+
+		/** Maps a sealed segment, unless it is too large for one buffer */
+		void map() throws IOException {
+			if (size <= Integer.MAX_VALUE)
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		/** a slice of the mapping, or a copy of the bytes when the segment is not mapped */
+		ByteBuffer read(long position, int length) throws IOException {
+			ByteBuffer mapped = this.mapped;
+			if (mapped != null) {
+				ByteBuffer result = mapped.duplicate();
+				result.position((int)position);
+				result.limit((int)position + length);
+				return result.slice();
+			}
+			ByteBuffer bytes = ByteBuffer.allocate(length);
+			while (bytes.hasRemaining())
+				if (channel.read(bytes, position + bytes.position()) < 0)
+					throw new EOFException(path.toString());
+			bytes.flip();
+			return bytes;
+		}
+
+		/** Appends an entry, for one writer at a time, and returns its position */
+		long write(ByteBuffer entry) throws IOException {
+			long position = size;
+			while (entry.hasRemaining())
+				channel.write(entry, position + entry.position());
+			size = position + entry.limit();
+			return position;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Segment:%d, Size:%d, Live:%d)", number, size, live.get());
+		}
+	}
+
+	private class Record {
+		/** the segment holding the record, or null for a key that is locked but was never stored */
+		final Segment segment;
+		final long offset;
+		final int length;
+		final long versionNumber;
+		long lockedUntil;
+		String lockId;
+		public Record(Segment segment, long offset, int length, long versionNumber) {
+			super();
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.versionNumber = versionNumber;
+		}
+		boolean isStored() {
+			return segment != null;
+		}
+		/**
+		 * builds from the stored bytes, which are a read only slice of the mapping once the segment is sealed, or
+		 * returns null if compaction removed them while being read
+		 */
+		<T> T read(Function<ByteBuffer, T> reader) {
+			ByteBuffer bytes;
+			try {
+				bytes = segment.read(offset, length);
+			} catch (ClosedChannelException e) {
+				if (closed)
+					throw new IllegalStateException("Store is closed");
+				if (segment.retired)
+					return null;
+				throw new UncheckedIOException(e);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return reader.apply(bytes);
+		}
+		public String toString() {
+			return String.format("(Lock:%s, LockedUntil:%d, Version:%d, Segment:%s, Offset:%d)", lockId, lockedUntil, versionNumber, segment == null ? null : segment.number, offset);
+		}
+	}
+
+	private final Path directory;
+
+	ConcurrentHashMap<String,Record> recordsById = new ConcurrentHashMap<String,Record>();
+
+	/** the compacted segment and its mapped index, which holds the keys not in recordsById */
+	private static final class Indexed {
+		final Segment segment;
+		final SegmentIndex index;
+		Indexed(Segment segment, SegmentIndex index) {
+			this.segment = segment;
+			this.index = index;
+		}
+	}
+
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private volatile Indexed indexed;
+	private volatile Segment active;
+	private final Object appendLock = new Object(), syncLock = new Object();
+	/** held shared by writers from appending an entry until it is indexed, and exclusively to seal segments for compaction */
+	private final ReadWriteLock indexing = new ReentrantReadWriteLock();
+
+	private final KeyLocks locks = new KeyLocks();
+
+	private final GroupCommit commits = new GroupCommit(this::commit);
+
+	private volatile Sync sync = Sync.ALWAYS;
+	private volatile long segmentSize = 64 << 20;
+	private volatile double garbageRatio = 0.5;
+	/** the failure of the last background force, reported to the next writer */
+	private volatile IOException syncFailure;
+	private volatile boolean closed;
+
+	private FileChannel lockFile;
+	private FileLock directoryLock;
+	private final ScheduledExecutorService background;
+	private ScheduledFuture<?> syncTask, compactionTask;
+
+	/**
+	 * Opens the store in a directory, creating it if need be, and replays its segments.
+	 *
+	 * @throws IllegalStateException if the directory is open in another store
+	 * @throws UncheckedIOException if the segments cannot be read, or one before the newest is corrupt
+	 */
+	public LogDocumentStore(Path directory, Supplier<Document> docFromNothing, Function<ByteBuffer, Document> docFromBytes, Supplier<String> idSupplier) {
+		super(docFromNothing, docFromBytes, idSupplier);
+		this.directory = directory;
+		this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LogDocumentStore " + directory);
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			open();
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		setCompaction(garbageRatio, 10_000);
+	}
+
+	public LogDocumentStore(Path directory, Supplier<Document> docFromNothing, Function<ByteBuffer, Document> docFromBytes) {
+		this(directory, docFromNothing, docFromBytes, () -> TimeBasedUUIDGenerator.instance().nextUUID().toString());
+	}
+
+	public LogDocumentStore(Path directory) {
+		this(directory, BuffDocument::new, BuffDocument::new);
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(directory);
+		lockFile = FileChannel.open(directory.resolve("lock"), CREATE, WRITE);
+		try {
+			directoryLock = lockFile.tryLock();
+		} catch (OverlappingFileLockException e) {
+			directoryLock = null;
+		}
+		if (directoryLock == null)
+			throw new IllegalStateException(directory + " is open in another store");
+
+		// find the segments, and drop those a completed compaction replaced:
+		TreeMap<Long, Path> found = new TreeMap<>(), indexes = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file: files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(PARTIAL))
+					Files.delete(file);
+				else if (name.endsWith(SUFFIX) && name.length() == 16 + SUFFIX.length())
+					found.put(Long.parseLong(name.substring(0, 16)), file);
+				else if (name.endsWith(INDEX_SUFFIX) && name.length() == 16 + INDEX_SUFFIX.length())
+					indexes.put(Long.parseLong(name.substring(0, 16)), file);
+			}
+		}
+		TreeMap<Long, Long> bases = new TreeMap<>();
+		for (Long number: new ArrayList<>(found.keySet())) {
+			long base = readBase(found.get(number));
+			if (base < 0)
+				Files.delete(found.remove(number)); // a crash while creating it, so it holds nothing
+			else
+				bases.put(number, base);
+		}
+		for (Map.Entry<Long, Long> base: bases.descendingMap().entrySet()) {
+			if (!found.containsKey(base.getKey()))
+				continue;
+			for (Long replaced: new ArrayList<>(found.subMap(base.getValue(), base.getKey()).keySet()))
+				Files.delete(found.remove(replaced));
+		}
+
+		// only the oldest segment can be a compacted one, and if its index is sound it needs no replay:
+		long next = 0;
+		for (Map.Entry<Long, Path> file: found.entrySet()) {
+			Segment segment = new Segment(file.getKey(), file.getValue(), FileChannel.open(file.getValue(), READ, WRITE), HEADER_SIZE);
+			segments.put(segment.number, segment);
+			SegmentIndex index = null;
+			if ( ( segment.number % 2 == 1 ) && ( segment.number == found.firstKey() ) )
+				index = SegmentIndex.open(indexPath(segment.number), segment.channel.size());
+			if (index != null) {
+				segment.size = segment.durable = segment.channel.size();
+				segment.live.set(index.live);
+				segment.map();
+				indexed = new Indexed(segment, index);
+				indexes.remove(segment.number);
+			} else {
+				replay(segment, file.getKey().equals(found.lastKey()));
+				segment.map();
+			}
+			next = segment.number + 1;
+		}
+		for (Path stale: indexes.values())
+			Files.delete(stale);
+		next += next % 2;
+		active = Segment.create(path(next), next, next);
+		segments.put(next, active);
+		syncDirectory();
+	}
+
+	private Path path(long number) {
+		return directory.resolve(String.format("%016d%s", number, SUFFIX));
+	}
+
+	private Path indexPath(long number) {
+		return directory.resolve(String.format("%016d%s", number, INDEX_SUFFIX));
+	}
+
+	/** the oldest segment a segment includes, which is itself unless it was written by a compaction, or -1 if its header is incomplete */
+	private static long readBase(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			if (in.readInt() != MAGIC)
+				throw new StreamCorruptedException("Not a segment: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new StreamCorruptedException("Unsupported segment version " + version + ": " + path);
+			return in.readLong();
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+
+	/** Adds a segment's entries to the index. A torn entry ends the newest segment, but is corruption in any other. */
+	private void replay(Segment segment, boolean newest) throws IOException {
+		long fileSize = segment.channel.size(), position = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		byte [] body = new byte[256];
+		List<Runnable> batched = new ArrayList<>();
+		long batchStart = 0;
+		int batchSize = 0;
+		try (InputStream file = Files.newInputStream(segment.path)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 20));
+			in.skipBytes(HEADER_SIZE);
+			while (position + ENTRY_HEADER <= fileSize) {
+				int length = in.readInt(), checksum = in.readInt();
+				if (length < BODY_HEADER || length > fileSize - position - ENTRY_HEADER)
+					break;
+				if (body.length < length)
+					body = new byte[Math.max(length, body.length * 2)];
+				in.readFully(body, 0, length);
+				crc.reset();
+				crc.update(body, 0, length);
+				if ((int)crc.getValue() != checksum)
+					break;
+
+				ByteBuffer entry = ByteBuffer.wrap(body, 0, length);
+				byte kind = entry.get();
+				long versionNumber = entry.getLong();
+				int keyLength = entry.getShort() & 0xFFFF;
+				String key = new String(body, BODY_HEADER, keyLength, UTF_8);
+				if (kind == BATCH) {
+					if (batchSize > 0)
+						break;
+					batchStart = position;
+					batchSize = (int)versionNumber;
+				} else if (batchSize > 0) {
+					long at = position;
+					batched.add(() -> replay(key, kind, versionNumber, segment, at, length, keyLength));
+					if (batched.size() == batchSize) {
+						batched.forEach(Runnable::run);
+						batched.clear();
+						batchSize = 0;
+					}
+				} else {
+					replay(key, kind, versionNumber, segment, position, length, keyLength);
+				}
+				position += ENTRY_HEADER + length;
+			}
+		}
+		// a batch cut short is dropped whole:
+		if (batchSize > 0)
+			position = batchStart;
+		if (position < fileSize) {
+			if (!newest)
+				throw new StreamCorruptedException("Corrupt entry in " + segment.path + " at " + position);
+			segment.channel.truncate(position);
+			segment.channel.force(true);
+		}
+		segment.size = segment.durable = position;
+	}
+
+	/** Indexes a put or delete entry */
+	private void replay(String key, byte kind, long versionNumber, Segment segment, long position, int length, int keyLength) {
+		Record previous, inIndex = indexed(key, indexed);
+		if (kind == PUT) {
+			Record current = new Record(segment, position + ENTRY_HEADER + BODY_HEADER + keyLength, length - BODY_HEADER - keyLength, versionNumber);
+			previous = recordsById.put(key, current);
+			replaced(null, current);
+		} else if (inIndex != null) {
+			// a marker hides the key from the index:
+			previous = recordsById.put(key, new Record(null, 0, 0, 0));
+		} else {
+			previous = recordsById.remove(key);
+		}
+		replaced(previous == null ? inIndex : previous, null);
+	}
+
+	/** the key of the entry at a position of a sealed segment */
+	private static String keyAt(Segment segment, long position) {
+		try {
+			int keyLength = segment.read(position + ENTRY_HEADER + BODY_HEADER - 2, 2).getShort(0) & 0xFFFF;
+			return UTF_8.decode(segment.read(position + ENTRY_HEADER + BODY_HEADER, keyLength)).toString();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** the record of the entry at a position of a sealed segment */
+	private Record recordAt(Segment segment, long position) {
+		try {
+			ByteBuffer header = segment.read(position, ENTRY_HEADER + BODY_HEADER);
+			int length = header.getInt(0), keyLength = header.getShort(ENTRY_HEADER + 9) & 0xFFFF;
+			return new Record(segment, position + ENTRY_HEADER + BODY_HEADER + keyLength, length - BODY_HEADER - keyLength, header.getLong(ENTRY_HEADER + 1));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** the record of a key in an index, or null */
+	private Record indexed(String key, Indexed indexed) {
+		if (indexed == null)
+			return null;
+		long position = indexed.index.find(key, at -> keyAt(indexed.segment, at));
+		return position < 0 ? null : recordAt(indexed.segment, position);
+	}
+
+	/** the current record of a key, from memory or else from the index, or null */
+	private Record current(String key) {
+		Record result = recordsById.get(key);
+		return result != null ? result : indexed(key, indexed);
+	}
+
+	/** keeps the live byte counts of segments as the index changes */
+	private static void replaced(Record previous, Record current) {
+		if ( ( previous != null ) && previous.isStored() )
+			previous.segment.live.addAndGet(-previous.length);
+		if ( ( current != null ) && current.isStored() )
+			current.segment.live.addAndGet(current.length);
+	}
+
+	private static ByteBuffer entry(byte kind, String key, long versionNumber, ByteBuffer record) {
+		byte [] keyBytes = key.getBytes(UTF_8);
+		if (keyBytes.length > 0xFFFF)
+			throw new IllegalArgumentException("Key too long");
+		int length = BODY_HEADER + keyBytes.length + ( record == null ? 0 : record.remaining() );
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER + length);
+		entry.putInt(length).putInt(0).put(kind).putLong(versionNumber).putShort((short)keyBytes.length).put(keyBytes);
+		if (record != null)
+			entry.put(record.duplicate());
+		CRC32 crc = new CRC32();
+		crc.update(entry.array(), ENTRY_HEADER, length);
+		entry.putInt(4, (int)crc.getValue());
+		entry.flip();
+		return entry;
+	}
+
+	/** Appends an entry to the active segment and, when syncing always, waits for it to reach the disk */
+	private Record append(byte kind, String key, long versionNumber, ByteBuffer record) {
+		return append(Collections.singletonList(entry(kind, key, versionNumber, record)))[0];
+	}
+
+	/**
+	 * Appends entries to the active segment in one write, after a batch entry when there are several so that they are
+	 * replayed together, and when syncing always, waits for them to reach the disk. Returns the record of each entry.
+	 */
+	private Record [] append(List<ByteBuffer> entries) {
+		ByteBuffer entry;
+		if (entries.size() == 1) {
+			entry = entries.get(0);
+		} else {
+			ByteBuffer header = entry(BATCH, "", entries.size(), null);
+			int length = header.remaining();
+			for (ByteBuffer each: entries)
+				length += each.remaining();
+			entry = ByteBuffer.allocate(length).put(header);
+			for (ByteBuffer each: entries)
+				entry.put(each.duplicate());
+			entry.flip();
+		}
+		Segment segment;
+		long position;
+		try {
+			synchronized (appendLock) {
+				if (closed)
+					throw new IllegalStateException("Store is closed");
+				if (syncFailure != null)
+					throw syncFailure;
+				if ( ( active.size > HEADER_SIZE ) && ( active.size + entry.remaining() > segmentSize ) )
+					roll();
+				segment = active;
+				position = segment.write(entry);
+			}
+			if (sync == Sync.ALWAYS)
+				force(segment, position + entry.limit());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Record [] records = new Record[entries.size()];
+		long at = position + entry.limit();
+		for (int i = records.length - 1; i >= 0; i--) {
+			ByteBuffer each = entries.get(i);
+			at -= each.limit();
+			int keyLength = each.getShort(ENTRY_HEADER + 9) & 0xFFFF;
+			records[i] = new Record(segment, at + ENTRY_HEADER + BODY_HEADER + keyLength, each.limit() - ENTRY_HEADER - BODY_HEADER - keyLength, each.getLong(ENTRY_HEADER + 1));
+		}
+		return records;
+	}
+
+	/** Seals the active segment, forcing it to the disk, and starts the next. Holds the append lock. */
+	private void roll() throws IOException {
+		Segment sealed = active;
+		force(sealed, sealed.size);
+		sealed.map();
+		long next = sealed.number + 2 - sealed.number % 2;
+		active = Segment.create(path(next), next, next);
+		segments.put(next, active);
+		syncDirectory();
+	}
+
+	/** Forces a segment up to at least the given end. A force covers every entry written before it, for all waiting. */
+	private void force(Segment segment, long end) throws IOException {
+		synchronized (syncLock) {
+			if (segment.durable >= end)
+				return;
+			long size = segment.size;
+			segment.channel.force(false);
+			segment.durable = size;
+		}
+	}
+
+	/** Forces everything written so far to the disk, whatever the sync policy */
+	public void sync() {
+		try {
+			force(active, active.size);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** makes new and renamed segment files durable, where the platform allows */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(directory, READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform can open a directory
+		}
+	}
+
+	/**
+	 * Sets when writes are forced to the disk, ALWAYS by default.
+	 *
+	 * @param intervalMillis how often INTERVAL forces them, ignored by the other policies
+	 */
+	public synchronized void setSync(Sync sync, long intervalMillis) {
+		if (syncTask != null)
+			syncTask.cancel(false);
+		syncTask = null;
+		this.sync = sync;
+		if (sync == Sync.INTERVAL) {
+			syncTask = background.scheduleWithFixedDelay(() -> {
+				try {
+					force(active, active.size);
+				} catch (IOException e) {
+					syncFailure = e;
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public Sync getSync() {
+		return sync;
+	}
+
+	/** Sets the size at which the active segment is sealed and the next one started, 64MB by default */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Sets how often the store checks for garbage, and compacts if more than the given fraction of the log is
+	 * superseded. By default every ten seconds, at a half.
+	 *
+	 * @param intervalMillis how often to check, or 0 to compact only when compact() is called
+	 */
+	public synchronized void setCompaction(double garbageRatio, long intervalMillis) {
+		if (compactionTask != null)
+			compactionTask.cancel(false);
+		compactionTask = null;
+		this.garbageRatio = garbageRatio;
+		if (intervalMillis > 0) {
+			compactionTask = background.scheduleWithFixedDelay(() -> {
+				try {
+					if (isWasteful())
+						compact();
+				} catch (RuntimeException e) {
+					// the next check will try again
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private boolean isWasteful() {
+		long size = 0, live = 0;
+		for (Segment segment: segments.values()) {
+			size += segment.size - HEADER_SIZE;
+			live += segment.live.get();
+		}
+		return ( size - live >= MIN_GARBAGE ) && ( size - live > garbageRatio * size );
+	}
+
+	/**
+	 * Copies the current records of every segment but the active one into a new segment, and deletes the old ones.
+	 * Reads and writes carry on meanwhile.
+	 *
+	 * @return the bytes reclaimed
+	 */
+	public synchronized long compact() {
+		List<Segment> sealed;
+		long number;
+		try {
+			// once sealed, every record in the sealed segments is indexed:
+			indexing.writeLock().lock();
+			try {
+				synchronized (appendLock) {
+					if (closed)
+						throw new IllegalStateException("Store is closed");
+					// the output takes the number below the active segment, so roll unless that is free and nothing is in it:
+					if ( ( active.size > HEADER_SIZE ) || segments.containsKey(active.number - 1) ) {
+						// nothing was appended since the last compaction, whose output is all there is:
+						if ( ( active.size <= HEADER_SIZE ) && ( segments.headMap(active.number).size() == 1 ) )
+							return 0;
+						roll();
+					}
+					sealed = new ArrayList<>(segments.headMap(active.number).values());
+					number = active.number - 1;
+				}
+			} finally {
+				indexing.writeLock().unlock();
+			}
+			if (sealed.isEmpty())
+				return 0;
+			Set<Segment> compacted = Collections.newSetFromMap(new IdentityHashMap<>());
+			compacted.addAll(sealed);
+			Indexed previousIndex = indexed;
+
+			// copy out the current records, both those in memory and those only in the index:
+			Path partial = directory.resolve(path(number).getFileName() + PARTIAL);
+			Path partialIndex = directory.resolve(indexPath(number).getFileName() + PARTIAL);
+			Segment output = Segment.create(partial, number, sealed.get(0).number);
+			Map<String, Record> copies = new HashMap<>();
+			Map<String, Long> positions = new HashMap<>();
+			SegmentIndex index = null;
+			try {
+				for (Map.Entry<String, Record> entry: recordsById.entrySet()) {
+					Record record = entry.getValue();
+					if ( record.isStored() && compacted.contains(record.segment) )
+						copy(entry.getKey(), record, output, copies, positions);
+				}
+				if (previousIndex != null) {
+					previousIndex.index.forEach(position -> {
+						String key = keyAt(previousIndex.segment, position);
+						if (!recordsById.containsKey(key))
+							copy(key, recordAt(previousIndex.segment, position), output, copies, positions);
+					});
+				}
+				output.channel.force(true);
+				if (positions.size() <= SegmentIndex.MAX_ENTRIES) {
+					SegmentIndex.write(partialIndex, output.size, output.live.get(), positions);
+					Files.move(partialIndex, indexPath(number), StandardCopyOption.ATOMIC_MOVE);
+					index = SegmentIndex.open(indexPath(number), output.size);
+				}
+				Files.move(partial, path(number), StandardCopyOption.ATOMIC_MOVE);
+				output.path = path(number);
+				output.map();
+				syncDirectory();
+			} catch (IOException | RuntimeException e) {
+				output.channel.close();
+				Files.deleteIfExists(partial);
+				Files.deleteIfExists(partialIndex);
+				Files.deleteIfExists(indexPath(number));
+				throw e;
+			}
+
+			// switch to the new index before the records in memory, so no key is looked up in the old one after:
+			segments.put(number, output);
+			Indexed current = indexed = index == null ? null : new Indexed(output, index);
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, Record> entry: copies.entrySet()) {
+				String docId = entry.getKey();
+				Lock keyLock = locks.of(docId);
+				keyLock.lock();
+				try {
+					Record record = recordsById.get(docId), copy = entry.getValue();
+					if (record == null) {
+						// only in the old index, so only the new one can find it:
+						if (current == null)
+							recordsById.put(docId, copy);
+					} else if ( !record.isStored() || !compacted.contains(record.segment) ) {
+						// written or deleted meanwhile:
+						output.live.addAndGet(-copy.length);
+					} else if ( ( current != null ) && ( record.lockedUntil <= now ) ) {
+						// the new index finds it:
+						recordsById.remove(docId);
+					} else {
+						copy.lockedUntil = record.lockedUntil;
+						copy.lockId = record.lockId;
+						recordsById.put(docId, copy);
+					}
+				} finally {
+					keyLock.unlock();
+				}
+			}
+
+			// forget deleted keys the index no longer holds:
+			for (Map.Entry<String, Record> entry: recordsById.entrySet()) {
+				if (entry.getValue().isStored() || ( entry.getValue().lockedUntil > now ))
+					continue;
+				String docId = entry.getKey();
+				Lock keyLock = locks.of(docId);
+				keyLock.lock();
+				try {
+					Record record = recordsById.get(docId);
+					if ( ( record != null ) && !record.isStored() && ( record.lockedUntil <= now ) && ( indexed(docId, current) == null ) )
+						recordsById.remove(docId);
+				} finally {
+					keyLock.unlock();
+				}
+			}
+
+			long reclaimed = 0;
+			for (Segment segment: sealed) {
+				segments.remove(segment.number);
+				segment.retired = true;
+				segment.channel.close();
+				reclaimed += segment.size;
+				delete(segment.path);
+				delete(indexPath(segment.number));
+			}
+			return reclaimed - output.size;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Appends a record to the output of a compaction */
+	private void copy(String key, Record record, Segment output, Map<String, Record> copies, Map<String, Long> positions) {
+		ByteBuffer bytes = record.read(Function.identity());
+		int keyLength = key.getBytes(UTF_8).length;
+		long position;
+		try {
+			position = output.write(entry(PUT, key, record.versionNumber, bytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Record copy = new Record(output, position + ENTRY_HEADER + BODY_HEADER + keyLength, record.length, record.versionNumber);
+		copies.put(key, copy);
+		positions.put(key, position);
+		output.live.addAndGet(copy.length);
+	}
+
+	/**
+	 * Deletes a replaced file. Some platforms refuse while it is still mapped, in which case the header of the segment
+	 * that replaced it has it deleted on the next open.
+	 */
+	private static void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			// left for the next open
+		}
+	}
+
+	/** Stops background work, forces what was written to the disk, and releases the directory */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		background.shutdownNow();
+		try {
+			synchronized (appendLock) {
+				closed = true;
+				if (active != null)
+					force(active, active.size);
+			}
+			for (Segment segment: segments.values())
+				segment.channel.close();
+			if (directoryLock != null)
+				directoryLock.release();
+			if (lockFile != null)
+				lockFile.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void dump() {
+		for (Segment segment: segments.values())
+			System.out.println(segment);
+		for (Map.Entry<String,Record> me:recordsById.entrySet() )
+			System.out.println(me.getKey() + " " + me.getValue());
+	}
+
+	@Override
+	public String getID(Document document) {
+		String result = document.as(MemoryDocument.class).ID();
+		if (result==null) throw new IllegalArgumentException();
+		return result;
+	}
+
+	@Override
+	public Document newInstance(String key) {
+		Document doc = docFromNothing.get();
+		doc.as(MemoryDocument.class).withID(key).withVERSION(0L);
+		return withDocStore(doc);
+	}
+
+	@Override
+	public Document get(String key) {
+		Record storageRecord;
+		Document doc;
+		do {
+			storageRecord = current(key);
+			if ( ( storageRecord == null ) || !storageRecord.isStored() )
+				return newInstance(key);
+		} while ( ( doc = storageRecord.read(this::decode) ) == null );
+		MemoryDocument stored = doc.as(MemoryDocument.class);
+		if ( !key.equals(stored.ID()) || ( stored.VERSION() == null ) || ( stored.VERSION() != storageRecord.versionNumber ) ) {
+			stored.withID(key).withVERSION(storageRecord.versionNumber);
+			doc.markClean();
+		}
+
+		return withDocStore(doc);
+	}
+
+	/** Decodes the named fields straight from the stored bytes, without the bookkeeping of a stored document */
+	@Override
+	public <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) {
+		Document doc;
+		do {
+			Record storageRecord = current(key);
+			if ( ( storageRecord == null ) || !storageRecord.isStored() )
+				return withDocStore(docFromNothing.get()).as(viewClass);
+			doc = storageRecord.read(bytes -> decode(bytes).project(fieldNames));
+		} while (doc == null);
+		return withDocStore(doc).as(viewClass);
+	}
+
+	@Override
+	public void put(Document document) {
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId);
+			if (storageRecord == null)
+				storageRecord = new Record(null, 0, 0, 0);
+
+			assertVersionHolder(document, storageRecord);
+
+			assertLockHolder(document, storageRecord);
+
+			// an unchanged document is already stored, so only its lock is reset:
+			if ( storageRecord.isStored() && !document.isDirty() ) {
+				storageRecord.lockedUntil = 0;
+				return;
+			}
+
+			// always index a new storage record, which also resets locks. The stored copy carries its own version, so
+			// documents read from it need not be changed, and so copied:
+			Record previous = storageRecord;
+			document.as(MemoryDocument.class).withVERSION(previous.versionNumber+1);
+			indexing.readLock().lock();
+			try {
+				storageRecord = append(PUT, docId, previous.versionNumber+1, encode(document));
+				recordsById.put(docId, storageRecord);
+			} catch (RuntimeException e) {
+				document.as(MemoryDocument.class).withVERSION(previous.versionNumber);
+				throw e;
+			} finally {
+				indexing.readLock().unlock();
+			}
+			replaced(previous, storageRecord);
+
+			document.markClean();
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	@Override
+	public void delete(Document document) {
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId);
+
+			assertVersionHolder(document, storageRecord);
+
+			assertLockHolder(document, storageRecord);
+
+			indexing.readLock().lock();
+			try {
+				if ( ( storageRecord != null ) && storageRecord.isStored() )
+					append(DELETE, docId, storageRecord.versionNumber, null);
+				replaced(storageRecord, null);
+				// a marker hides the key from the index, and from any index a compaction is writing:
+				if (storageRecord != null)
+					recordsById.put(docId, new Record(null, 0, 0, 0));
+			} finally {
+				indexing.readLock().unlock();
+			}
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies a batch atomically. Batches applied concurrently are checked in one pass, holding the locks of all their
+	 * keys, and the entries of those that pass are appended in one write and forced once, see GroupCommit. They replay
+	 * all together or, if a crash tears the write, not at all.
+	 */
+	@Override
+	public void apply(Batch batch) {
+		commits.apply(batch);
+	}
+
+	/** Checks each batch of a group against the store as the batches before it leave it, then appends those that pass */
+	private void commit(List<GroupCommit.Pending> group) {
+		locks.runLocked(GroupCommit.keys(group, this::getID), () -> {
+			Map<String, Record> staged = new HashMap<>();
+			List<ByteBuffer> entries = new ArrayList<>();
+			List<Consumer<Record>> effects = new ArrayList<>();
+			for (GroupCommit.Pending pending: group) {
+				if (pending.isFailed())
+					continue;
+				Map<String, Record> written = new HashMap<>();
+				List<ByteBuffer> batchEntries = new ArrayList<>();
+				List<Consumer<Record>> batchEffects = new ArrayList<>();
+				try {
+					for (Batch.Operation operation: pending.batch.operations)
+						stage(operation, key -> written.containsKey(key) ? written.get(key) : staged.containsKey(key) ? staged.get(key) : current(key), written, batchEntries, batchEffects);
+					staged.putAll(written);
+					entries.addAll(batchEntries);
+					effects.addAll(batchEffects);
+				} catch (RuntimeException e) {
+					pending.fail(e);
+				}
+			}
+			indexing.readLock().lock();
+			try {
+				List<ByteBuffer> appending = new ArrayList<>();
+				for (ByteBuffer entry: entries)
+					if (entry != null)
+						appending.add(entry);
+				Record [] records = appending.isEmpty() ? new Record[0] : append(appending);
+				for (int i = 0, appended = 0; i < effects.size(); i++)
+					effects.get(i).accept(entries.get(i) == null ? null : records[appended++]);
+			} finally {
+				indexing.readLock().unlock();
+			}
+		});
+	}
+
+	/**
+	 * Checks an operation as put, delete or release would, or only its version for a check, against the newest version
+	 * of its key, staged or indexed, and adds what to do once the group is appended, along with the entry it appends or
+	 * null. Staged puts are held as records that are not stored but carry their version. Must hold the key's lock.
+	 */
+	private void stage(Batch.Operation operation, Function<String, Record> newest, Map<String, Record> written, List<ByteBuffer> entries, List<Consumer<Record>> effects) {
+		Document document = operation.document;
+		String docId = getID(document);
+		Record storageRecord = newest.apply(docId);
+
+		if (operation.kind == Batch.Kind.RELEASE) {
+			assertLockHolder(document, storageRecord);
+			entries.add(null);
+			effects.add(appended -> release(docId));
+			return;
+		}
+
+		assertVersionHolder(document, storageRecord);
+
+		if (operation.kind == Batch.Kind.CHECK)
+			return;
+
+		assertLockHolder(document, storageRecord);
+
+		if (operation.kind == Batch.Kind.DELETE) {
+			if (storageRecord == null)
+				return;
+			written.put(docId, new Record(null, 0, 0, 0));
+			if ( storageRecord.isStored() || ( storageRecord.versionNumber != 0 ) ) {
+				entries.add(entry(DELETE, docId, storageRecord.versionNumber, null));
+				effects.add(appended -> {
+					replaced(current(docId), null);
+					recordsById.put(docId, new Record(null, 0, 0, 0));
+				});
+			} else {
+				entries.add(null);
+				effects.add(appended -> recordsById.put(docId, new Record(null, 0, 0, 0)));
+			}
+			return;
+		}
+
+		// an unchanged document is already stored, so only its lock is reset:
+		if ( ( storageRecord != null ) && storageRecord.isStored() && !document.isDirty() ) {
+			entries.add(null);
+			effects.add(appended -> release(docId));
+			return;
+		}
+
+		// as with put, the stored copy carries its own version:
+		long previous = storageRecord == null ? 0 : storageRecord.versionNumber;
+		MemoryDocument view = document.as(MemoryDocument.class);
+		view.withVERSION(previous+1);
+		try {
+			entries.add(entry(PUT, docId, previous+1, encode(document)));
+		} finally {
+			view.withVERSION(previous);
+		}
+		written.put(docId, new Record(null, 0, 0, previous+1));
+		effects.add(appended -> {
+			replaced(current(docId), appended);
+			recordsById.put(docId, appended);
+			view.withVERSION(appended.versionNumber);
+			document.markClean();
+		});
+	}
+
+	/** resets the lock of a key's current record. Must hold the key's lock. */
+	private void release(String docId) {
+		Record storageRecord = current(docId);
+		if (storageRecord != null)
+			storageRecord.lockedUntil = 0;
+	}
+
+	@Override
+	public Document lock(String key) {
+		Record storageRecord;
+		Lock keyLock = locks.of(key);
+		keyLock.lock();
+		try {
+			// just in case, always get the latest copy after we enter the sync block:
+			storageRecord = current(key);
+
+			assertLockHolder(null, storageRecord);
+
+			// hold the record in memory, with a record that is not yet stored if required:
+			if (storageRecord == null)
+				storageRecord = new Record(null, 0, 0, 0);
+			recordsById.put(key, storageRecord);
+
+			// set the lock
+			storageRecord.lockedUntil = System.currentTimeMillis()+60_000;
+			storageRecord.lockId = idSupplier.get().toString();
+		} finally {
+			keyLock.unlock();
+		}
+
+		// Once the lock is established go about standard retrieval
+		Document doc;
+		while ( ( doc = storageRecord.isStored() ? storageRecord.read(this::decode) : docFromNothing.get() ) == null )
+			storageRecord = current(key);
+
+		// modify the record for the lock holding document to indicate this is the lock holder:
+		doc
+			.as(MemoryDocument.class)
+			.withID(key)
+			.withLOCK(storageRecord.lockId)
+			.withVERSION(storageRecord.versionNumber);
+		doc.markClean();
+
+		return withDocStore(doc);
+	}
+
+	@Override
+	public void release(Document document) {
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId); // just in case, always get the latest copy
+
+			assertLockHolder(document, storageRecord);
+
+			if (storageRecord != null)
+				storageRecord.lockedUntil = 0;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	private void assertLockHolder(Document document, Record storageRecord) {
+		if (
+				( storageRecord != null )
+				&& ( storageRecord.lockedUntil > System.currentTimeMillis() )
+				&& ( document == null || !storageRecord.lockId.equals(document.as(MemoryDocument.class).LOCK()) )
+		) {
+			throw new ConcurrentModificationException("Not the lock holder.");
+		}
+	}
+
+	private void assertVersionHolder(Document document, Record storageRecord) {
+		if ( ( storageRecord == null ) && ( document.as(MemoryDocument.class).VERSION() != 0) )
+			throw new ConcurrentModificationException("Version mismatch. Use a new instance.");
+		if ( ( storageRecord != null ) && ( document.as(MemoryDocument.class).VERSION()!=storageRecord.versionNumber))
+			throw new ConcurrentModificationException("Version mismatch.");
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.Arrays;
+
+/**
+ * Compresses records with a pure Java LZ77 codec in the style of LZ4: fast in both directions, at a lower ratio than
+ * DeflateCodec.
+ * <p>
+ * A record is a run of sequences. Each is a token holding the literal length and the match length less four, a nibble
+ * each, with longer lengths continued in bytes of 255; the literals; then a two byte little endian offset back to the
+ * match. The last sequence is literals only. Matches may reach back into the dictionary, which is hashed once up
+ * front, so a dictionary costs nothing per record.
+ *
+ * @author Dana
+ */
+public class LzCodec extends CompressingCodec {
+
+	private static final int MIN_MATCH = 4, MAX_OFFSET = 65535, HASH_BITS = 12;
+
+	/** matches stop this far short of the end, and none start in the last MIN_TAIL bytes, so the tail is literals */
+	private static final int LAST_LITERALS = 5, MIN_TAIL = 12;
+
+	/** the dictionary, trimmed to what offsets can reach */
+	private final byte [] window;
+
+	/** the hash table after hashing the window; positions are one based, and those in the window are less than its length + 1 */
+	private final int [] windowTable = new int[1 << HASH_BITS];
+
+	/**
+	 * @param threshold the length below which documents are stored as they are
+	 * @param dictionary the preset dictionary, or null for none. Only its last 64K is used.
+	 */
+	public LzCodec(int threshold, byte [] dictionary) {
+		super(threshold, dictionary);
+		int length = Math.min(this.dictionary.length, MAX_OFFSET);
+		window = Arrays.copyOfRange(this.dictionary, this.dictionary.length - length, this.dictionary.length);
+		for (int i = 0; i + MIN_MATCH <= window.length; i++)
+			windowTable[hash(intAt(window, i))] = i + 1;
+	}
+
+	/** Compresses documents of 64 bytes or more, with no dictionary */
+	public LzCodec() {
+		this(64, null);
+	}
+
+	@Override
+	protected int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	protected int compress(byte [] source, int offset, int length, byte [] target, int targetOffset) {
+		int [] table = windowTable.clone();
+		int base = window.length; // the position of source[offset] counting from the start of the window
+		int out = targetOffset, anchor = 0, limit = length - MIN_TAIL;
+		int i = 0;
+		while (i < limit) {
+			int value = intAt(source, offset + i);
+			int h = hash(value);
+			int candidate = table[h] - 1;
+			table[h] = base + i + 1;
+			if ( ( candidate < 0 ) || ( base + i - candidate > MAX_OFFSET ) || ( intAt(source, offset, candidate) != value ) ) {
+				i++;
+				continue;
+			}
+			int match = MIN_MATCH, matchLimit = length - LAST_LITERALS - i;
+			while ( ( match < matchLimit ) && ( byteAt(source, offset, candidate + match) == source[offset + i + match] ) )
+				match++;
+			out = writeSequence(target, out, source, offset + anchor, i - anchor, base + i - candidate, match);
+			i += match;
+			anchor = i;
+		}
+		return writeSequence(target, out, source, offset + anchor, length - anchor, 0, 0) - targetOffset;
+	}
+
+	/** writes a sequence, or with a match length of zero the closing literals, and returns the new output position */
+	private static int writeSequence(byte [] target, int out, byte [] source, int literalStart, int literals, int matchOffset, int match) {
+		int tokenAt = out++;
+		int token = Math.min(literals, 15) << 4;
+		out = writeLength(target, out, literals);
+		System.arraycopy(source, literalStart, target, out, literals);
+		out += literals;
+		if (match > 0) {
+			target[out++] = (byte)matchOffset;
+			target[out++] = (byte)( matchOffset >>> 8 );
+			token |= Math.min(match - MIN_MATCH, 15);
+			out = writeLength(target, out, match - MIN_MATCH);
+		}
+		target[tokenAt] = (byte)token;
+		return out;
+	}
+
+	private static int writeLength(byte [] target, int out, int length) {
+		if (length < 15)
+			return out;
+		for (length -= 15; length >= 255; length -= 255)
+			target[out++] = (byte)255;
+		target[out++] = (byte)length;
+		return out;
+	}
+
+	@Override
+	protected void decompress(byte [] source, int offset, int length, byte [] target) {
+		int in = offset, end = offset + length, out = 0;
+		try {
+			while (true) {
+				int token = source[in++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15)
+					for (int b = 255; b == 255; literals += b)
+						b = source[in++] & 0xFF;
+				System.arraycopy(source, in, target, out, literals);
+				in += literals;
+				out += literals;
+				if (in == end)
+					break;
+				int from = out - ( ( source[in++] & 0xFF ) | ( ( source[in++] & 0xFF ) << 8 ) );
+				int match = token & 15;
+				if (match == 15)
+					for (int b = 255; b == 255; match += b)
+						b = source[in++] & 0xFF;
+				match += MIN_MATCH;
+				if (from < -window.length || out + match > target.length)
+					throw new IllegalArgumentException("Corrupt record");
+				// byte by byte, since a match may overlap the bytes it is producing:
+				for (int stop = out + match; out < stop; from++)
+					target[out++] = from < 0 ? window[window.length + from] : target[from];
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupt record", e);
+		}
+		if (out != target.length)
+			throw new IllegalArgumentException("Corrupt record");
+	}
+
+	private static int hash(int value) {
+		return ( value * -1640531535 ) >>> ( 32 - HASH_BITS );
+	}
+
+	private static int intAt(byte [] bytes, int i) {
+		return ( bytes[i] & 0xFF ) | ( ( bytes[i + 1] & 0xFF ) << 8 ) | ( ( bytes[i + 2] & 0xFF ) << 16 ) | ( bytes[i + 3] << 24 );
+	}
+
+	/** the int at a position counting from the start of the window */
+	private int intAt(byte [] source, int offset, int position) {
+		if (position >= window.length)
+			return intAt(source, offset + position - window.length);
+		if (position + 4 <= window.length)
+			return intAt(window, position);
+		return ( byteAt(source, offset, position) & 0xFF ) | ( ( byteAt(source, offset, position + 1) & 0xFF ) << 8 )
+				| ( ( byteAt(source, offset, position + 2) & 0xFF ) << 16 ) | ( byteAt(source, offset, position + 3) << 24 );
+	}
+
+	/** the byte at a position counting from the start of the window */
+	private byte byteAt(byte [] source, int offset, int position) {
+		return position < window.length ? window[position] : source[offset + position - window.length];
+	}
+
+	@Override
+	public String toString() {
+		return "Lz(threshold " + threshold + ", dictionary " + window.length + ")";
+	}
+
+}
@@ -1,14 +1,22 @@
 package com.theunknowablebits.proxamic;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 /**
  * An in memory document store suitable for use across multiple VM's.
+ * <p>
+ * Each key holds a chain of versions, newest first, so that snapshots read without locks. A delete adds a version with
+ * no document, and versions no open snapshot can read are dropped as keys are written and as snapshots close.
  * 
  * @author Dana
  */
@@ -16,26 +24,52 @@ public class MemoryDocumentStore extends AbstractDocumentStore implements Docume
 
 	private class Record {
 		ByteBuffer document;
+		/** the slab handle of the document when it is held off the heap, or -1. Moved in place by compaction. */
+		volatile long handle = -1;
 		long versionNumber;
 		long lockedUntil;
 		String lockId;
+		/** the version this one replaced, kept while an open snapshot may read it */
+		volatile Record older;
+		/** the time this version was published on the snapshot clock, or 0 until it is */
+		volatile long committed;
 		public Record(ByteBuffer document, long versionNumber, String lockId) {
 			super();
-			this.document = document;
+			if ( ( document != null ) && ( slabs != null ) )
+				this.handle = slabs.allocate(document);
+			else
+				this.document = document;
 			this.versionNumber = versionNumber;
 			this.lockId = lockId;
 		}
 		public Record(ByteBuffer document, long versionNumber) {
 			this(document, versionNumber, null);
 		}
+		boolean isStored() {
+			return ( document != null ) || ( handle >= 0 );
+		}
+		/** builds from the stored bytes, or returns null if they were released while being read */
+		<T> T read(Function<ByteBuffer, T> reader) {
+			if (handle < 0)
+				return reader.apply(document);
+			return slabs.read(handle, reader.andThen(MemoryDocumentStore::lent));
+		}
 		public String toString() {
 			StringBuffer buffer = new StringBuffer(String.format("(Lock:%s, LockedUntil:%d, Version:%d)", lockId, lockedUntil, versionNumber));
-			buffer.append(docFromBytes.apply(document).toString());
+			buffer.append(read(MemoryDocumentStore.this::decode));
 			return buffer.toString();
 		}
 	}
 
 	ConcurrentHashMap<String,Record> recordsById = new ConcurrentHashMap<String,Record>();
+
+	private volatile SlabAllocator slabs;
+
+	private final Snapshots snapshots = new Snapshots();
+
+	private final KeyLocks locks = new KeyLocks();
+
+	private final GroupCommit commits = new GroupCommit(this::commit);
 	
 	
 	public void dump() {
@@ -56,6 +90,110 @@ public class MemoryDocumentStore extends AbstractDocumentStore implements Docume
 	public MemoryDocumentStore() {
 		super();
 	}
+
+	/**
+	 * Keeps records written from now on off the heap, in the allocator's slabs, so that the map of records holds only
+	 * their handles. Records already written stay on the heap until they are next written. Puts that would exceed the
+	 * allocator's capacity fail with an IllegalStateException and leave the store as it was.
+	 * 
+	 * @throws IllegalStateException if an allocator is already set
+	 */
+	public synchronized void setSlabAllocator(SlabAllocator slabs) {
+		if (this.slabs != null)
+			throw new IllegalStateException("Slab allocator already set");
+		this.slabs = slabs;
+	}
+
+	/**
+	 * Moves records out of sparsely used slabs, so that the slabs are free for records of other sizes, see
+	 * SlabAllocator.evacuate().
+	 * 
+	 * @return the number of records moved
+	 */
+	public int compact() {
+		if ( ( slabs == null ) || ( slabs.evacuate() == 0 ) )
+			return 0;
+		int moved = 0;
+		for (String docId: recordsById.keySet()) {
+			Lock keyLock = locks.of(docId);
+			keyLock.lock();
+			try {
+				for (Record version = recordsById.get(docId); version != null; version = version.older) {
+					if ( ( version.handle >= 0 ) && slabs.isEvacuating(version.handle) ) {
+						version.handle = slabs.move(version.handle);
+						moved++;
+					}
+				}
+			} finally {
+				keyLock.unlock();
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Opens a point in time view of the store, see Snapshot. Until it is closed, the store keeps the versions it may
+	 * read.
+	 */
+	public Snapshot snapshot() {
+		long time = snapshots.open();
+		return new Snapshot() {
+			private boolean closed;
+			@Override
+			public Document get(String key) {
+				if (closed)
+					throw new IllegalStateException("Snapshot closed");
+				return getAt(key, time);
+			}
+			@Override
+			public synchronized void close() {
+				if (closed)
+					return;
+				closed = true;
+				if (snapshots.close(time))
+					vacuum();
+			}
+		};
+	}
+
+	private Document getAt(String key, long time) {
+		Record version;
+		Document doc;
+		do {
+			version = recordsById.get(key);
+			while ( ( version != null ) && !Snapshots.isVisible(version.committed, time) )
+				version = version.older;
+			if ( ( version == null ) || !version.isStored() )
+				return newInstance(key);
+		} while ( ( doc = version.read(this::decode) ) == null );
+
+		return withDocStore(stamp(doc, key, version.versionNumber));
+	}
+
+	/** Prunes the keys that held versions for snapshots, once the oldest has closed */
+	private void vacuum() {
+		for (String docId: snapshots.chained) {
+			Lock keyLock = locks.of(docId);
+			keyLock.lock();
+			try {
+				Record storageRecord = recordsById.get(docId);
+				if (storageRecord == null)
+					snapshots.chained.remove(docId);
+				else
+					prune(docId, storageRecord);
+			} finally {
+				keyLock.unlock();
+			}
+		}
+	}
+
+	/** the number of versions held for a key */
+	int versions(String key) {
+		int versions = 0;
+		for (Record version = recordsById.get(key); version != null; version = version.older)
+			versions++;
+		return versions;
+	}
 	
 	interface MemoryDocument extends DocumentView {
 		@Getter("__ID__") String ID();
@@ -82,83 +220,255 @@ public class MemoryDocumentStore extends AbstractDocumentStore implements Docume
 
 	@Override
 	public Document get(String key) {
-		Record storageRecord = recordsById.get(key);
-		if (storageRecord == null)
-			return newInstance(key);
-
-		Document doc = docFromBytes.apply(storageRecord.document);
-		doc
-			.as(MemoryDocument.class)
-			.withID(key)
-			.withVERSION(storageRecord.versionNumber);
+		Record storageRecord;
+		Document doc;
+		do {
+			storageRecord = current(key);
+			if (storageRecord == null)
+				return newInstance(key);
+		} while ( ( doc = storageRecord.read(this::decode) ) == null );
 		
-		return withDocStore(doc);
+		return withDocStore(stamp(doc, key, storageRecord.versionNumber));
+	}
+
+	/** Decodes the named fields straight from the stored bytes, without the bookkeeping of a stored document */
+	@Override
+	public <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) {
+		Document doc;
+		do {
+			Record storageRecord = current(key);
+			if (storageRecord == null)
+				return withDocStore(docFromNothing.get()).as(viewClass);
+			doc = storageRecord.read(bytes -> decode(bytes).project(fieldNames));
+		} while (doc == null);
+		return withDocStore(doc).as(viewClass);
 	}
 
 	@Override
 	public void put(Document document) {
-		String docId = document.as(MemoryDocument.class).ID().intern();
-		synchronized(docId) {
-			Record storageRecord = recordsById.get(docId);
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId);
 			if (storageRecord == null)
 				storageRecord = new Record(null, 0);
 
 			assertVersionHolder(document, storageRecord);
 
 			assertLockHolder(document, storageRecord);
+
+			// an unchanged document is already stored, so only its lock is reset:
+			if ( storageRecord.isStored() && !document.isDirty() ) {
+				storageRecord.lockedUntil = 0;
+				return;
+			}
 			
-			// always put a new storage record, which also resets locks:
-			recordsById.put( docId, storageRecord = new Record(document.toByteBuffer(), storageRecord.versionNumber+1 ) );
+			// always put a new storage record, which also resets locks. The stored copy carries its own version, so
+			// documents read from it need not be changed:
+			long versionNumber = storageRecord.versionNumber+1;
+			publish( docId, storageRecord = new Record(encode(document, versionNumber), versionNumber ) );
 			
+			document.as(MemoryDocument.class).withVERSION(versionNumber);
+			document.markClean();
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Ships the document's changes as an encoded Patch, which is applied to the stored copy as the far side of a remote
+	 * store would. New and unchanged documents, and those that are not BuffDocuments, are put as usual.
+	 */
+	@Override
+	public void patch(Document document) {
+		if ( !Patch.covers(document) || !document.isDirty() ) {
+			put(document);
+			return;
+		}
+		String docId = getID(document);
+		ByteBuffer patch = Patch.of((BuffDocument)document).toByteBuffer();
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId);
+			if (storageRecord == null) {
+				put(document);
+				return;
+			}
+
+			assertVersionHolder(document, storageRecord);
+
+			assertLockHolder(document, storageRecord);
+
+			Document stored = storageRecord.read(this::decode);
+			if ( !( stored instanceof BuffDocument ) ) {
+				put(document);
+				return;
+			}
+			new Patch(patch).applyTo((BuffDocument)stored);
+
+			// as with put, a new storage record also resets locks:
+			long versionNumber = storageRecord.versionNumber+1;
+			publish( docId, storageRecord = new Record(encode(stored, versionNumber), versionNumber ) );
+
 			document.as(MemoryDocument.class).withVERSION(storageRecord.versionNumber);
+			document.markClean();
+		} finally {
+			keyLock.unlock();
 		}
 	}
 
 	@Override
 	public void delete(Document document) {
-		String docId = document.as(MemoryDocument.class).ID().intern();
-		synchronized(docId) {
-			Record storageRecord = recordsById.get(docId);
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId);
 
 			assertVersionHolder(document, storageRecord);
 
 			assertLockHolder(document, storageRecord);
 
 			// no need to release, since the current record no longer has a lock
-			recordsById.remove(docId);
+			if (storageRecord != null)
+				publish(docId, new Record(null, 0));
+		} finally {
+			keyLock.unlock();
 		}
 	}
 	
+	/**
+	 * Applies a batch atomically. Batches applied concurrently are checked and published in one pass, holding the locks
+	 * of all their keys, see GroupCommit.
+	 */
+	@Override
+	public void apply(Batch batch) {
+		commits.apply(batch);
+	}
+
+	/**
+	 * Checks each batch of a group against the store as the batches before it leave it, then publishes those that pass,
+	 * all as one commit.
+	 */
+	private void commit(List<GroupCommit.Pending> group) {
+		locks.runLocked(GroupCommit.keys(group, this::getID), () -> {
+			Map<String, Record> staged = new HashMap<>();
+			List<LongConsumer> effects = new ArrayList<>();
+			for (GroupCommit.Pending pending: group) {
+				if (pending.isFailed())
+					continue;
+				Map<String, Record> written = new HashMap<>();
+				List<Record> created = new ArrayList<>();
+				List<LongConsumer> batchEffects = new ArrayList<>();
+				try {
+					for (Batch.Operation operation: pending.batch.operations)
+						stage(operation, key -> written.containsKey(key) ? written.get(key) : staged.containsKey(key) ? staged.get(key) : recordsById.get(key), written, created, batchEffects);
+					staged.putAll(written);
+					effects.addAll(batchEffects);
+				} catch (RuntimeException e) {
+					created.forEach(this::discard);
+					pending.fail(e);
+				}
+			}
+			// the group is published as one commit, so a snapshot sees all of it or none:
+			snapshots.commit(time -> effects.forEach(effect -> effect.accept(time)));
+		});
+	}
+
+	/**
+	 * Checks an operation as put, patch, delete or release would, or only its version for a check, against the newest
+	 * version of its key, staged or published, and adds what it writes to the batch. Must hold the key's lock.
+	 */
+	private void stage(Batch.Operation operation, Function<String, Record> newest, Map<String, Record> written, List<Record> created, List<LongConsumer> effects) {
+		Document document = operation.document;
+		String docId = getID(document);
+		Record current = newest.apply(docId);
+		Record storageRecord = ( current != null ) && current.isStored() ? current : null;
+
+		if (operation.kind == Batch.Kind.RELEASE) {
+			assertLockHolder(document, storageRecord);
+			if (storageRecord != null)
+				effects.add(time -> storageRecord.lockedUntil = 0);
+			return;
+		}
+
+		assertVersionHolder(document, storageRecord);
+
+		if (operation.kind == Batch.Kind.CHECK)
+			return;
+
+		assertLockHolder(document, storageRecord);
+
+		if (operation.kind == Batch.Kind.DELETE) {
+			if (storageRecord == null)
+				return;
+			Record deleted = new Record(null, 0);
+			written.put(docId, deleted);
+			effects.add(time -> publish(docId, deleted, time));
+			return;
+		}
+
+		// an unchanged document is already stored, so only its lock is reset:
+		if ( ( storageRecord != null ) && !document.isDirty() ) {
+			effects.add(time -> storageRecord.lockedUntil = 0);
+			return;
+		}
+
+		long versionNumber = storageRecord == null ? 1 : storageRecord.versionNumber+1;
+		ByteBuffer bytes = null;
+		if ( ( operation.kind == Batch.Kind.PATCH ) && ( storageRecord != null ) && Patch.covers(document) ) {
+			Document stored = storageRecord.read(this::decode);
+			if (stored instanceof BuffDocument) {
+				Patch.of((BuffDocument)document).applyTo((BuffDocument)stored);
+				bytes = encode(stored, versionNumber);
+			}
+		}
+		Record next = new Record(bytes != null ? bytes : encode(document, versionNumber), versionNumber);
+		created.add(next);
+		written.put(docId, next);
+		effects.add(time -> {
+			publish(docId, next, time);
+			document.as(MemoryDocument.class).withVERSION(next.versionNumber);
+			document.markClean();
+		});
+	}
+
 	@Override
 	public Document lock(String key) {
-		String docId = key.intern();
 		Record storageRecord;
-		synchronized ( docId ) {
+		Lock keyLock = locks.of(key);
+		keyLock.lock();
+		try {
 			// just in case, always get the latest copy after we enter the sync block:
-			storageRecord = recordsById.get(key); 
+			storageRecord = current(key); 
 
 			assertLockHolder(null, storageRecord);
 
 			// insert a new item if required:
 			if (storageRecord == null) { 
-				storageRecord = new Record(docFromNothing.get().toByteBuffer(),0);
-				recordsById.put(docId, storageRecord);
+				storageRecord = new Record(encode(docFromNothing.get()),0);
+				publish(key, storageRecord);
 			}
 
 			// set the lock
 			storageRecord.lockedUntil = System.currentTimeMillis()+60_000;
 			storageRecord.lockId = idSupplier.get().toString();	
+		} finally {
+			keyLock.unlock();
 		}
 		
 		// Once the lock is established go about standard retrieval
-		Document doc = docFromBytes.apply(storageRecord.document);
+		Document doc;
+		while ( ( doc = storageRecord.read(this::decode) ) == null )
+			storageRecord = current(key);
 
 		// modify the record for the lock holding document to indicate this is the lock holder:
-		doc
+		stamp(doc, key, storageRecord.versionNumber)
 			.as(MemoryDocument.class)
-			.withID(docId)
-			.withLOCK(storageRecord.lockId)
-			.withVERSION(storageRecord.versionNumber);
+			.withLOCK(storageRecord.lockId);
+		doc.markClean();
 
 		return withDocStore(doc);
 
@@ -166,16 +476,104 @@ public class MemoryDocumentStore extends AbstractDocumentStore implements Docume
 	
 	@Override
 	public void release(Document document) {
-		String docId = document.as(MemoryDocument.class).ID().intern();
-		synchronized (docId) {
-			Record storageRecord = recordsById.get(docId); // just in case, always get the latest copy
+		String docId = getID(document);
+		Lock keyLock = locks.of(docId);
+		keyLock.lock();
+		try {
+			Record storageRecord = current(docId); // just in case, always get the latest copy
 
 			assertLockHolder(document, storageRecord);
 
 			storageRecord.lockedUntil = 0;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the key and version of a document read from a record, when its stored copy does not already carry them, so
+	 * that a document read unchanged keeps the encoding it was read from
+	 */
+	/** Marks what is read from a slab as lent, so its encoding is copied rather than read from the slab */
+	private static <T> T lent(T result) {
+		if (result instanceof BuffDocument)
+			((BuffDocument)result).lend();
+		return result;
+	}
+
+	private static Document stamp(Document doc, String key, long versionNumber) {
+		MemoryDocument stored = doc.as(MemoryDocument.class);
+		if ( !key.equals(stored.ID()) || ( stored.VERSION() == null ) || ( stored.VERSION() != versionNumber ) ) {
+			stored.withID(key).withVERSION(versionNumber);
+			doc.markClean();
+		}
+		return doc;
+	}
+
+	/** Encodes a document carrying the version it is stored as, leaving its own version as it was */
+	private ByteBuffer encode(Document document, long versionNumber) {
+		MemoryDocument view = document.as(MemoryDocument.class);
+		Long previous = view.VERSION();
+		view.withVERSION(versionNumber);
+		try {
+			return encode(document);
+		} finally {
+			view.withVERSION(previous);
 		}
 	}
 
+	/** the current version of a key, or null if it has none or was deleted */
+	private Record current(String key) {
+		Record storageRecord = recordsById.get(key);
+		return ( storageRecord != null ) && storageRecord.isStored() ? storageRecord : null;
+	}
+
+	/** Stamps a record and makes it the current version of a key, as one commit. Must hold the key's lock. */
+	private void publish(String docId, Record storageRecord) {
+		snapshots.commit(time -> publish(docId, storageRecord, time));
+	}
+
+	/**
+	 * Stamps a record with the time of a commit and makes it the current version of a key, so that snapshots taken
+	 * before the commit never see it. Must hold the key's lock, and run within the commit.
+	 */
+	private void publish(String docId, Record storageRecord, long time) {
+		storageRecord.committed = time;
+		// linked before it is put, so snapshots that skip it never find the key without its older versions:
+		storageRecord.older = recordsById.get(docId);
+		recordsById.put(docId, storageRecord);
+		prune(docId, storageRecord);
+	}
+
+	/**
+	 * Drops the versions of a key that no open snapshot can read: those older than the newest one stamped by the oldest
+	 * snapshot. A deleted key with nothing left to read is removed. Must hold the key's lock.
+	 */
+	private void prune(String docId, Record storageRecord) {
+		long watermark = snapshots.watermark();
+		Record oldest = storageRecord;
+		while ( ( oldest != null ) && !Snapshots.isVisible(oldest.committed, watermark) )
+			oldest = oldest.older;
+		if (oldest != null) {
+			for (Record version = oldest.older; version != null; version = version.older)
+				discard(version);
+			oldest.older = null;
+		}
+		if (storageRecord.older != null) {
+			snapshots.chained.add(docId);
+			return;
+		}
+		snapshots.chained.remove(docId);
+		if (!storageRecord.isStored())
+			recordsById.remove(docId, storageRecord);
+	}
+
+	/** frees the slab space of a record that has been replaced or removed */
+	private void discard(Record storageRecord) {
+		if ( ( storageRecord != null ) && ( storageRecord.handle >= 0 ) )
+			slabs.release(storageRecord.handle);
+	}
+
 	private void assertLockHolder(Document document, Record storageRecord) {
 		if ( 
 				( storageRecord != null )
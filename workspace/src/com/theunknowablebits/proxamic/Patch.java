@@ -0,0 +1,101 @@
+package com.theunknowablebits.proxamic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.theunknowablebits.buff.serialization.Array;
+import com.theunknowablebits.buff.serialization.Struct;
+
+/**
+ * The changes made to a BuffDocument since it was loaded, as top level fields set and removed.
+ * <p>
+ * A patch encodes as a struct holding the values of the fields it sets and the names of the fields it removes, so it
+ * costs as much to ship as the fields that changed rather than the whole document. Stores apply it against the
+ * version the document was read at, see DocumentStore.patch().
+ *
+ * @author Dana
+ */
+public final class Patch {
+
+	private static final String SET = "Set", REMOVE = "Remove";
+
+	private final Struct root;
+
+	/** Reads an encoded patch */
+	public Patch(ByteBuffer buffer) {
+		this(new Struct(buffer));
+	}
+
+	private Patch(Struct root) {
+		this.root = root;
+	}
+
+	/** The changes to a document since it was loaded or last marked clean, see BuffDocument.dirtyFields() */
+	public static Patch of(BuffDocument document) {
+		Struct sets = new Struct();
+		Array removes = new Array();
+		for (String field: document.dirtyFields()) {
+			if (document.root.has(field))
+				sets.put(field, document.root.get(field));
+			else
+				removes.add(field);
+		}
+		Struct root = new Struct();
+		root.put(SET, sets);
+		root.put(REMOVE, removes);
+		return new Patch(root);
+	}
+
+	/** Whether a patch of a document would hold all of its changes, so that stores may apply it in place of a put */
+	public static boolean covers(Document document) {
+		return ( document instanceof BuffDocument ) && ((BuffDocument)document).tracksChanges();
+	}
+
+	/** The fields whose values this patch replaces */
+	public Set<String> setFields() {
+		return Collections.unmodifiableSet(sets().keySet());
+	}
+
+	/** The fields this patch removes */
+	public List<String> removedFields() {
+		Array removes = removes();
+		List<String> result = new ArrayList<>(removes.size());
+		for (int i = 0; i < removes.size(); i++)
+			result.add((String)removes.get(i));
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return sets().keySet().isEmpty() && ( removes().size() == 0 );
+	}
+
+	/** Writes the changes into a document, which records them as its own */
+	public void applyTo(BuffDocument document) {
+		Struct sets = sets();
+		for (String field: sets.keySet())
+			document.replaceField(field, sets.get(field));
+		for (String field: removedFields())
+			document.remove(field);
+	}
+
+	/** The encoded patch. Callers must not modify it or move its position. */
+	public ByteBuffer toByteBuffer() {
+		return root.toByteBuffer();
+	}
+
+	private Struct sets() {
+		return (Struct)root.get(SET);
+	}
+
+	private Array removes() {
+		return (Array)root.get(REMOVE);
+	}
+
+	@Override
+	public String toString() {
+		return root.toString();
+	}
+}
@@ -0,0 +1,46 @@
+package com.theunknowablebits.proxamic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes document bytes as the records a store holds, and decodes them again. Stores hand it the bytes of
+ * Document.toByteBuffer() on the way in, and hand what it decodes to their docFromBytes on the way out.
+ * <p>
+ * Codecs must be safe for concurrent use, and must decode every record they have encoded for as long as it is stored.
+ *
+ * @see AbstractDocumentStore#setCodec(RecordCodec)
+ * @author Dana
+ */
+public interface RecordCodec {
+
+	/** Stores document bytes as they are */
+	public static final RecordCodec NONE = new RecordCodec() {
+		@Override
+		public ByteBuffer encode(ByteBuffer document) {
+			return document;
+		}
+
+		@Override
+		public ByteBuffer decode(ByteBuffer record) {
+			return record.duplicate();
+		}
+
+		@Override
+		public String toString() {
+			return "NONE";
+		}
+	};
+
+	/**
+	 * @param document the bytes of a document, which the codec must not modify or move the position of
+	 * @return the record to store, which may be the document bytes themselves
+	 */
+	public ByteBuffer encode(ByteBuffer document);
+
+	/**
+	 * @param record a stored record, which the codec must not modify or move the position of
+	 * @return the document bytes, positioned for reading and free for the caller to consume
+	 */
+	public ByteBuffer decode(ByteBuffer record);
+
+}
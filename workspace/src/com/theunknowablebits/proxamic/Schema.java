@@ -0,0 +1,155 @@
+package com.theunknowablebits.proxamic;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A fixed binary layout derived from the getters of a DocumentView interface, see SchemaDocument.
+ * <p>
+ * Fields whose getters return a primitive, a primitive wrapper or a String are laid out; all others are left to the
+ * generic part of the document. The layout is:
+ * <ul>
+ * <li>a four byte fingerprint of the layout, so bytes are never read with the wrong one</li>
+ * <li>a bitmap of the fields that are present</li>
+ * <li>the fixed width fields, each at its own offset</li>
+ * <li>for each String field, the end of its UTF-8 text, as an int from the end of the table</li>
+ * <li>the String texts, one after another</li>
+ * <li>the generic part, as a Struct, or nothing when it is empty</li>
+ * </ul>
+ * Fields are laid out in name order, so the layout depends only on the getters and not on reflection order. A field
+ * declared with different types by different getters is left to the generic part.
+ *
+ * @author Dana
+ */
+public final class Schema {
+
+	private static final ClassValue<Schema> schemas = new ClassValue<Schema>() {
+		@Override
+		protected Schema computeValue(Class<?> viewClass) {
+			return new Schema(viewClass);
+		}
+	};
+
+	/** The stored form of a laid out field */
+	enum Type {
+		BOOLEAN(1, Boolean.class), BYTE(1, Byte.class), CHAR(2, Character.class), SHORT(2, Short.class), INT(4, Integer.class),
+		FLOAT(4, Float.class), LONG(8, Long.class), DOUBLE(8, Double.class), STRING(0, String.class);
+
+		final int width;
+		final Class<?> boxType;
+
+		Type(int width, Class<?> boxType) {
+			this.width = width;
+			this.boxType = boxType;
+		}
+
+		static Type of(Class<?> rawType) {
+			Class<?> boxed = rawType.isPrimitive() ? ValueType.box(rawType) : rawType;
+			for (Type type: values())
+				if (type.boxType == boxed)
+					return type;
+			return null;
+		}
+	}
+
+	/** A laid out field */
+	static final class Field {
+		final String name;
+		final Type type;
+		/** the field's bit in the presence bitmap */
+		final int index;
+		/** for fixed width fields, the offset from the start of the document; for Strings, the slot in the end table */
+		final int offset;
+
+		Field(String name, Type type, int index, int offset) {
+			this.name = name;
+			this.type = type;
+			this.index = index;
+			this.offset = offset;
+		}
+	}
+
+	final Class<?> viewClass;
+	final Field [] fields;
+	private final Map<String, Field> fieldsByName = new HashMap<>();
+	final int fingerprint;
+	/** the offset of the presence bitmap, and of the table of String ends */
+	final int bitmapOffset, endsOffset;
+	final int stringCount;
+	/** the size of everything before the String texts */
+	final int headerSize;
+
+	private Schema(Class<?> viewClass) {
+		this.viewClass = viewClass;
+		Map<String, Type> types = new TreeMap<>();
+		List<String> conflicting = new ArrayList<>();
+		for (Method method: viewClass.getMethods()) {
+			ViewMethod viewMethod = ViewClass.of(viewClass).method(method);
+			if (viewMethod.kind != ViewMethod.Kind.GET)
+				continue;
+			Type type = Type.of(viewMethod.valueType.rawType);
+			Type previous = types.put(viewMethod.fieldName, type);
+			if ( ( previous != null && previous != type ) || type == null )
+				conflicting.add(viewMethod.fieldName);
+		}
+		types.keySet().removeAll(conflicting);
+
+		fields = new Field[types.size()];
+		bitmapOffset = 4;
+		int offset = bitmapOffset + ( fields.length + 7 ) / 8, strings = 0, index = 0;
+		StringBuilder signature = new StringBuilder();
+		for (Map.Entry<String, Type> entry: types.entrySet()) {
+			Type type = entry.getValue();
+			Field field;
+			if (type == Type.STRING) {
+				field = new Field(entry.getKey(), type, index, strings++);
+			} else {
+				field = new Field(entry.getKey(), type, index, offset);
+				offset += type.width;
+			}
+			fields[index++] = field;
+			fieldsByName.put(field.name, field);
+			signature.append(field.name).append(':').append(type).append(';');
+		}
+		endsOffset = offset;
+		stringCount = strings;
+		headerSize = endsOffset + 4 * stringCount;
+		fingerprint = signature.toString().hashCode();
+	}
+
+	/** The schema of a view interface, derived the first time it is asked for */
+	public static Schema of(Class<? extends DocumentView> viewClass) {
+		return schemas.get(viewClass);
+	}
+
+	/** the laid out field of a name, or null if it is left to the generic part */
+	Field field(String name) {
+		return fieldsByName.get(name);
+	}
+
+	/** The names of the laid out fields, in layout order */
+	public List<String> fieldNames() {
+		List<String> result = new ArrayList<>(fields.length);
+		for (Field field: fields)
+			result.add(field.name);
+		return Collections.unmodifiableList(result);
+	}
+
+	public Class<?> viewClass() {
+		return viewClass;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("Schema(").append(viewClass.getName());
+		for (Field field: fields)
+			result.append(", ").append(field.name).append(':').append(field.type);
+		return result.append(')').toString();
+	}
+
+}
@@ -0,0 +1,392 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import com.theunknowablebits.buff.serialization.Struct;
+
+/**
+ * A document laid out by a Schema, for views of a fixed shape. Laid out fields are read straight from their offset,
+ * with no key search, and cost only their value to store. Any other field, whether of another view or of a type the
+ * schema does not lay out, lives in a generic part that behaves exactly as a BuffDocument.
+ * <p>
+ * Loading a document reads nothing. Fields written since are kept aside until the document is next encoded.
+ * <p>
+ * Stores hold schema documents when given, for example, {@code () -> new SchemaDocument(schema)} and
+ * {@code bytes -> new SchemaDocument(schema, bytes)}. Nested documents live in the generic part, so newInstance()
+ * creates BuffDocuments.
+ *
+ * @author Dana
+ */
+public class SchemaDocument implements Document, DocumentStoreAware, Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final DocumentStore defaultDocStore = new LocalDocumentStore();
+
+	private transient Schema schema;
+
+	/** the encoded document, and the position it starts at, or null for a new document */
+	private transient ByteBuffer source;
+	private transient int base;
+
+	/** laid out fields written since the source was encoded, with null for removed ones */
+	private transient Object [] written;
+	private transient BitSet writtenFields;
+
+	/** the generic part, decoded on first use */
+	private transient BuffDocument generic;
+
+	private transient DocumentStore docStore = defaultDocStore;
+
+	/** true when never stored, or changed since loaded or marked clean */
+	private transient boolean dirty;
+
+	/** Public for Externalizable */
+	public SchemaDocument() {
+	}
+
+	/** Creates an empty, and so dirty, document */
+	public SchemaDocument(Schema schema) {
+		this.schema = schema;
+		this.dirty = true;
+	}
+
+	/**
+	 * Loads a clean document, which is read in place and encodes as the given buffer until it is changed.
+	 *
+	 * @throws IllegalArgumentException if the bytes were not laid out by this schema
+	 */
+	public SchemaDocument(Schema schema, ByteBuffer buffer) {
+		this.schema = schema;
+		this.source = buffer.slice();
+		if (source.remaining() < schema.headerSize || source.getInt(0) != schema.fingerprint)
+			throw new IllegalArgumentException("Not laid out by " + schema);
+	}
+
+	public Schema schema() {
+		return schema;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends DocumentView> T as(Class<T> documentClass) {
+		return (T)ViewClass.of(documentClass).newProxy(new SchemaHandler(documentClass));
+	}
+
+	/** A new document for nested views, which live in the generic part */
+	@Override
+	public Document newInstance() {
+		return AbstractDocumentStore.withDocStore(new BuffDocument(), docStore);
+	}
+
+	@Override
+	public void remove(String fieldName) {
+		Schema.Field field = schema.field(fieldName);
+		if (field == null)
+			generic().remove(fieldName);
+		else
+			write(field, null);
+	}
+
+	@Override
+	public boolean isDirty() {
+		return dirty || ( generic != null && generic.isDirty() );
+	}
+
+	@Override
+	public void markClean() {
+		dirty = false;
+		if (generic != null)
+			generic.markClean();
+	}
+
+	@Override
+	public void setDocumentStore(DocumentStore docStore) {
+		this.docStore = docStore;
+		if (generic != null)
+			generic.setDocumentStore(docStore);
+	}
+
+	@Override
+	public DocumentStore getDocumentStore() {
+		return docStore;
+	}
+
+	/** the value of a laid out field, boxed, or null when it is not present */
+	Object read(Schema.Field field) {
+		if (writtenFields != null && writtenFields.get(field.index))
+			return written[field.index];
+		if (source == null || ( source.get(schema.bitmapOffset + field.index / 8) & ( 1 << field.index % 8 ) ) == 0)
+			return null;
+		switch (field.type) {
+		case BOOLEAN: return source.get(field.offset) != 0;
+		case BYTE: return source.get(field.offset);
+		case CHAR: return source.getChar(field.offset);
+		case SHORT: return source.getShort(field.offset);
+		case INT: return source.getInt(field.offset);
+		case FLOAT: return source.getFloat(field.offset);
+		case LONG: return source.getLong(field.offset);
+		case DOUBLE: return source.getDouble(field.offset);
+		default:
+			int start = stringStart(field.offset), end = schema.headerSize + source.getInt(schema.endsOffset + 4 * field.offset);
+			if (source.hasArray())
+				return new String(source.array(), source.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+			byte [] bytes = new byte[end - start];
+			ByteBuffer text = source.duplicate();
+			text.position(start);
+			text.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private int stringStart(int slot) {
+		return schema.headerSize + ( slot == 0 ? 0 : source.getInt(schema.endsOffset + 4 * ( slot - 1 )) );
+	}
+
+	/** the end of the String texts, where the generic part starts */
+	private int genericStart() {
+		return schema.stringCount == 0 ? schema.headerSize : stringStart(schema.stringCount);
+	}
+
+	/**
+	 * Writes a laid out field, converting numbers of another width as views of other types expect.
+	 *
+	 * @return the previous value
+	 * @throws IllegalArgumentException when the value cannot be held by the field
+	 */
+	Object write(Schema.Field field, Object value) {
+		if (value != null && !field.type.boxType.isInstance(value)) {
+			if ( !( value instanceof Number ) || field.type == Schema.Type.STRING || field.type == Schema.Type.BOOLEAN || field.type == Schema.Type.CHAR )
+				throw new IllegalArgumentException(field.name + " holds " + field.type + " values, not " + value.getClass().getName());
+			value = narrow(field.type, (Number)value);
+		}
+		Object previous = read(field);
+		if (written == null) {
+			written = new Object[schema.fields.length];
+			writtenFields = new BitSet(schema.fields.length);
+		}
+		written[field.index] = value;
+		writtenFields.set(field.index);
+		dirty = true;
+		return previous;
+	}
+
+	private static Object narrow(Schema.Type type, Number number) {
+		switch (type) {
+		case BYTE: return number.byteValue();
+		case SHORT: return number.shortValue();
+		case INT: return number.intValue();
+		case FLOAT: return number.floatValue();
+		case LONG: return number.longValue();
+		default: return number.doubleValue();
+		}
+	}
+
+	/** the generic part, which shares this document's store */
+	BuffDocument generic() {
+		if (generic == null) {
+			int start = source == null ? 0 : genericStart();
+			if (source == null || start == source.limit()) {
+				generic = new BuffDocument(new Struct());
+			} else {
+				ByteBuffer bytes = source.duplicate();
+				bytes.position(start);
+				generic = new BuffDocument(bytes.slice());
+			}
+			generic.setDocumentStore(docStore);
+		}
+		return generic;
+	}
+
+	/** Encodes the laid out fields afresh whenever any were written, and the generic part whenever it was read */
+	@Override
+	public ByteBuffer toByteBuffer() {
+		if (source != null && writtenFields == null && ( generic == null || !generic.isDirty() ))
+			return source.duplicate();
+
+		Object [] values = new Object[schema.fields.length];
+		byte [][] texts = new byte[schema.stringCount][];
+		int textLength = 0;
+		for (Schema.Field field: schema.fields) {
+			Object value = values[field.index] = read(field);
+			if (field.type == Schema.Type.STRING && value != null)
+				textLength += ( texts[field.offset] = ((String)value).getBytes(StandardCharsets.UTF_8) ).length;
+		}
+		ByteBuffer genericBytes = null;
+		if (generic != null) {
+			if (!generic.root.keySet().isEmpty())
+				genericBytes = generic.toByteBuffer().duplicate();
+		} else if (source != null) {
+			genericBytes = source.duplicate();
+			genericBytes.position(genericStart());
+		}
+
+		ByteBuffer result = ByteBuffer.allocate(schema.headerSize + textLength + ( genericBytes == null ? 0 : genericBytes.remaining() ));
+		result.putInt(0, schema.fingerprint);
+		int end = 0;
+		for (Schema.Field field: schema.fields) {
+			Object value = values[field.index];
+			if (value != null)
+				result.put(schema.bitmapOffset + field.index / 8, (byte)( result.get(schema.bitmapOffset + field.index / 8) | ( 1 << field.index % 8 ) ));
+			switch (field.type) {
+			case BOOLEAN: if (value != null) result.put(field.offset, (byte)( (Boolean)value ? 1 : 0 )); break;
+			case BYTE: if (value != null) result.put(field.offset, (Byte)value); break;
+			case CHAR: if (value != null) result.putChar(field.offset, (Character)value); break;
+			case SHORT: if (value != null) result.putShort(field.offset, (Short)value); break;
+			case INT: if (value != null) result.putInt(field.offset, (Integer)value); break;
+			case FLOAT: if (value != null) result.putFloat(field.offset, (Float)value); break;
+			case LONG: if (value != null) result.putLong(field.offset, (Long)value); break;
+			case DOUBLE: if (value != null) result.putDouble(field.offset, (Double)value); break;
+			default:
+				byte [] text = texts[field.offset];
+				if (text != null) {
+					result.position(schema.headerSize + end);
+					result.put(text);
+					end += text.length;
+				}
+				result.putInt(schema.endsOffset + 4 * field.offset, end);
+			}
+		}
+		result.position(schema.headerSize + end);
+		if (genericBytes != null)
+			result.put(genericBytes);
+		result.flip();
+
+		// read from the new encoding from now on:
+		source = result;
+		written = null;
+		writtenFields = null;
+		return result.duplicate();
+	}
+
+	@Override
+	public byte [] toBytes() {
+		ByteBuffer buffer = toByteBuffer();
+		byte [] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private class SchemaHandler implements InvocationHandler, Serializable {
+		private static final long serialVersionUID = 1L;
+		final Class<? extends DocumentView> documentClass;
+		private transient ViewClass viewClass;
+
+		SchemaHandler(Class<? extends DocumentView> documentClass) {
+			this.documentClass = documentClass;
+			this.viewClass = ViewClass.of(documentClass);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (viewClass == null)
+				viewClass = ViewClass.of(documentClass); // after deserialization
+			return SchemaDocument.this.invoke(viewClass.method(method), proxy, args);
+		}
+	}
+
+	private Object invoke(ViewMethod viewMethod, Object view, Object[] args) throws Throwable {
+		switch (viewMethod.kind) {
+		case GET:
+		case SET:
+			Schema.Field field = schema.field(viewMethod.fieldName);
+			if (field == null)
+				return generic().invoke(viewMethod, view, args);
+			if (viewMethod.kind == ViewMethod.Kind.GET)
+				return fromField(field, viewMethod.valueType, read(field));
+			Object previous = write(field, toField(field, viewMethod.valueType, args[0]));
+			if (viewMethod.returnsPreviousValue())
+				return fromField(field, viewMethod.previousValueType, previous);
+			return view;
+		case DEFAULT:
+			return viewMethod.invokeDefault(view, args);
+		case DOCUMENT:
+			return this;
+		case WRITE_REPLACE:
+			return new SerializedView(this, viewMethod.documentClass);
+		case EQUALS:
+			if (args[0] instanceof DocumentView)
+				return equals(((DocumentView)args[0]).document());
+			return false;
+		case HASH_CODE:
+			return hashCode();
+		case GET_DOCUMENT_STORE:
+			return getDocumentStore();
+		case SET_DOCUMENT_STORE:
+			setDocumentStore((DocumentStore)args[0]);
+			return null;
+		case TO_STRING:
+			return toString();
+		default:
+			throw new RuntimeException("No path to invoke for " + viewMethod.method.getName());
+		}
+	}
+
+	private static Object fromField(Schema.Field field, ValueType valueType, Object value) {
+		switch (valueType.kind) {
+		case PRIMITIVE:
+			return valueType.toPrimitive(value);
+		case VALUE:
+			if (value instanceof Number && !valueType.rawType.isInstance(value) && Schema.Type.of(valueType.rawType) != null)
+				return narrow(Schema.Type.of(valueType.rawType), (Number)value);
+			return valueType.fromStructValue(value);
+		default:
+			throw new IllegalArgumentException(field.name + " holds " + field.type + " values, not " + valueType);
+		}
+	}
+
+	private static Object toField(Schema.Field field, ValueType valueType, Object value) {
+		switch (valueType.kind) {
+		case PRIMITIVE:
+			return value;
+		case VALUE:
+			return value == null ? null : valueType.toStructValue(value);
+		default:
+			throw new IllegalArgumentException(field.name + " holds " + field.type + " values, not " + valueType);
+		}
+	}
+
+	/** Writes the schema's view interface, then the encoded document */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeUTF(schema.viewClass.getName());
+		Buffers.writeLengthPrefixed(out, toByteBuffer());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		Class<?> viewClass = Class.forName(in.readUTF(), false, Thread.currentThread().getContextClassLoader());
+		schema = Schema.of((Class<? extends DocumentView>)viewClass);
+		byte [] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		source = ByteBuffer.wrap(bytes);
+		docStore = defaultDocStore;
+		// the changes made before it was written are unknown, so it stays dirty and is stored whole:
+		dirty = true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		for (Schema.Field field: schema.fields) {
+			Object value = read(field);
+			if (value != null)
+				result.append(result.length() > 1 ? ", " : "").append(field.name).append('=').append(value);
+		}
+		Struct generic = generic().root;
+		for (String name: generic.keySet())
+			result.append(result.length() > 1 ? ", " : "").append(name).append('=').append(generic.get(name));
+		return result.append('}').toString();
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.theunknowablebits.proxamic;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * A hash table of the entries of a compacted segment, kept in a file beside it and mapped, so a LogDocumentStore opens
+ * without replaying the segment.
+ * <p>
+ * Each slot holds a hash of a key and the position of its entry, with position 0 for an empty slot. Slots are probed
+ * linearly, and a matching hash is confirmed against the key stored in the entry. Tables are at most half full.
+ *
+ * @author Dana
+ */
+final class SegmentIndex {
+
+	private static final int MAGIC = 0x50584958; // PXIX
+	private static final int VERSION = 1;
+	/** magic, version, size of the segment, slots, entries, and live bytes */
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT = 16;
+	private static final int MAX_SLOTS = 1 << 26;
+
+	/** the most entries an index can hold, beyond which a segment is replayed instead */
+	static final int MAX_ENTRIES = MAX_SLOTS / 2;
+
+	private final ByteBuffer table;
+	private final int slots;
+	/** the size of the segment the index was written for, and the bytes of its records */
+	final long segmentSize, live;
+
+	private SegmentIndex(ByteBuffer table) {
+		this.table = table;
+		this.segmentSize = table.getLong(8);
+		this.slots = table.getInt(16);
+		this.live = table.getLong(24);
+	}
+
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++)
+			hash = ( hash ^ key.charAt(i) ) * 0x100000001b3L;
+		return hash;
+	}
+
+	/** Writes the index of a segment, from the positions of its entries by key, and forces it to the disk */
+	static void write(Path path, long segmentSize, long live, Map<String, Long> positions) throws IOException {
+		int slots = 2;
+		while (slots < positions.size() * 2)
+			slots <<= 1;
+		try (FileChannel channel = FileChannel.open(path, CREATE_NEW, READ, WRITE)) {
+			MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * SLOT);
+			table.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, segmentSize).putInt(16, slots).putInt(20, positions.size()).putLong(24, live);
+			int mask = slots - 1;
+			for (Map.Entry<String, Long> entry: positions.entrySet()) {
+				long hash = hash(entry.getKey());
+				int slot = (int)hash & mask;
+				while (table.getLong(HEADER_SIZE + slot * SLOT + 8) != 0)
+					slot = ( slot + 1 ) & mask;
+				table.putLong(HEADER_SIZE + slot * SLOT, hash).putLong(HEADER_SIZE + slot * SLOT + 8, entry.getValue());
+			}
+			table.force();
+		}
+	}
+
+	/** Maps an index, or returns null if it is incomplete or was not written for a segment of the given size */
+	static SegmentIndex open(Path path, long segmentSize) throws IOException {
+		if (!Files.exists(path))
+			return null;
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			if (channel.size() < HEADER_SIZE)
+				return null;
+			ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if ( ( table.getInt(0) != MAGIC ) || ( table.getInt(4) != VERSION ) || ( table.getLong(8) != segmentSize )
+					|| ( channel.size() != HEADER_SIZE + (long)table.getInt(16) * SLOT ) )
+				return null;
+			return new SegmentIndex(table);
+		}
+	}
+
+	/**
+	 * @param keyAt reads the key of the entry at a position, to confirm a matching hash
+	 * @return the position of the entry of a key, or -1
+	 */
+	long find(String key, LongFunction<String> keyAt) {
+		long hash = hash(key);
+		int mask = slots - 1;
+		for (int slot = (int)hash & mask; ; slot = ( slot + 1 ) & mask) {
+			long position = table.getLong(HEADER_SIZE + slot * SLOT + 8);
+			if (position == 0)
+				return -1;
+			if ( ( table.getLong(HEADER_SIZE + slot * SLOT) == hash ) && key.equals(keyAt.apply(position)) )
+				return position;
+		}
+	}
+
+	/** Visits the position of every entry */
+	void forEach(LongConsumer action) {
+		for (int slot = 0; slot < slots; slot++) {
+			long position = table.getLong(HEADER_SIZE + slot * SLOT + 8);
+			if (position != 0)
+				action.accept(position);
+		}
+	}
+
+}
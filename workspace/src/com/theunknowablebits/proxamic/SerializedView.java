@@ -0,0 +1,58 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
+/**
+ * The serialized form of a view: the view interface followed by its document. A BuffDocument is written inline,
+ * without a class descriptor of its own.
+ */
+final class SerializedView implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private Document document;
+	private Class<?> viewClass;
+
+	/** for Externalizable */
+	public SerializedView() {
+	}
+
+	SerializedView(Document document, Class<?> viewClass) {
+		this.document = document;
+		this.viewClass = viewClass;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeObject(viewClass);
+		if (document.getClass() == BuffDocument.class) {
+			out.writeBoolean(true);
+			((BuffDocument)document).writeExternal(out);
+		} else {
+			out.writeBoolean(false);
+			out.writeObject(document);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		viewClass = (Class<?>)in.readObject();
+		if (in.readBoolean()) {
+			BuffDocument inline = new BuffDocument();
+			inline.readExternal(in);
+			document = inline.resolve();
+		} else {
+			document = (Document)in.readObject();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readResolve() throws ObjectStreamException {
+		return document.as((Class<? extends DocumentView>)viewClass);
+	}
+
+}
@@ -0,0 +1,425 @@
+package com.theunknowablebits.proxamic;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Keeps byte records off the heap, in direct memory slabs, for stores holding more records than the collector can
+ * comfortably trace. See MemoryDocumentStore.setSlabAllocator().
+ * <p>
+ * Slabs are cut into slots of one size class each, with classes a quarter apart, so no record wastes more than a
+ * quarter of its slot. Records too large for the classes get a direct buffer of their own. A record is known by a
+ * handle of its slab, slot and the slot's generation, which changes as the slot is freed, so a handle outliving its
+ * record never reads the slot's next one. Its length is kept in the slot. Emptied slabs are kept for any class.
+ * <p>
+ * Readers are handed read-only slices of the slabs, and whatever they build from a slice may keep reading it. So
+ * each read is leased to the object built from it, and a released slot is only reused once every object leased on
+ * it has been collected. Anything built from a slice must therefore stay reachable from that object.
+ * <p>
+ * Reserving direct memory beyond the capacity fails with an IllegalStateException, leaving storage as it was. Before
+ * failing, the collector is asked once for the slots still leased to unreachable readers.
+ *
+ * @author Dana
+ */
+public final class SlabAllocator {
+
+	private static final int HEADER = 4, MIN_SLOT = 64;
+	/** handles are the slab index, the slot generation and the slot, high to low */
+	private static final int SLOT_BITS = 25, GENERATION_BITS = 16, MAX_SLABS = 1 << ( 63 - SLOT_BITS - GENERATION_BITS );
+
+	private final long capacity;
+	private final int slabSize;
+	private final int [] classSizes;
+
+	private final List<Slab> slabs = new ArrayList<>();
+	/** the slot generations of each slab index, kept as indexes are reused */
+	private final List<char[]> generations = new ArrayList<>();
+	private final ArrayDeque<Integer> unusedIndexes = new ArrayDeque<>();
+	private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<>();
+	/** for each size class, the slabs with free slots that are not being evacuated */
+	private final List<ArrayDeque<Slab>> available = new ArrayList<>();
+	private long reserved;
+	private long records;
+
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+	private final Set<Lease> leases = new HashSet<>();
+	private final Map<Long, Integer> pins = new HashMap<>();
+	/** released slots that are still pinned */
+	private final Set<Long> retired = new HashSet<>();
+
+	private static final class Slab {
+		final int index;
+		final ByteBuffer buffer;
+		final char[] generations;
+		int sizeClass; // -1 when empty or holding one large record
+		int slotSize, slots, used;
+		BitSet allocated; // null when empty
+		boolean large, evacuating;
+
+		Slab(int index, ByteBuffer buffer, char[] generations) {
+			this.index = index;
+			this.buffer = buffer;
+			this.generations = generations;
+		}
+	}
+
+	private static final class Lease extends PhantomReference<Object> {
+		final long handle;
+
+		Lease(Object referent, long handle, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.handle = handle;
+		}
+	}
+
+	/**
+	 * @param capacity the most direct memory to reserve
+	 * @param slabSize the size of each slab; records over a quarter of it get a buffer of their own
+	 */
+	public SlabAllocator(long capacity, int slabSize) {
+		if (slabSize < MIN_SLOT * 4 || capacity < slabSize)
+			throw new IllegalArgumentException("Slabs must hold four small records, and the capacity one slab");
+		this.capacity = capacity;
+		this.slabSize = slabSize;
+		List<Integer> sizes = new ArrayList<>();
+		for (int size = MIN_SLOT; size <= slabSize / 4; size = ( size + size / 4 + 7 ) & ~7) {
+			sizes.add(size);
+			available.add(new ArrayDeque<>());
+		}
+		classSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/** Reserves up to capacity bytes in slabs of one megabyte */
+	public SlabAllocator(long capacity) {
+		this(capacity, 1 << 20);
+	}
+
+	/**
+	 * Copies a record into a slot.
+	 *
+	 * @return the record's handle
+	 * @throws IllegalStateException when the capacity would be exceeded
+	 */
+	public long allocate(ByteBuffer record) {
+		int length = record.remaining();
+		ByteBuffer target;
+		long handle;
+		synchronized (this) {
+			expunge();
+			int sizeClass = Arrays.binarySearch(classSizes, length + HEADER);
+			if (sizeClass < 0)
+				sizeClass = -sizeClass - 1;
+			Slab slab;
+			try {
+				slab = sizeClass < classSizes.length ? available(sizeClass) : large(length + HEADER);
+			} catch (IllegalStateException full) {
+				if (!reclaim())
+					throw full;
+				slab = sizeClass < classSizes.length ? available(sizeClass) : large(length + HEADER);
+			}
+			int slot = slab.allocated.nextClearBit(0);
+			slab.allocated.set(slot);
+			if ( ( ++slab.used == slab.slots ) && !slab.large )
+				available.get(sizeClass).remove(slab);
+			records++;
+			handle = ( (long)slab.index << ( SLOT_BITS + GENERATION_BITS ) ) | ( (long)slab.generations[slot] << SLOT_BITS ) | slot;
+			target = slab.buffer.duplicate();
+			target.position(slot * slab.slotSize);
+		}
+		// the slot is ours, so the copy needs no lock:
+		target.putInt(length).put(record.duplicate());
+		return handle;
+	}
+
+	/**
+	 * Reads a record, leasing its slot to what the reader builds from it.
+	 *
+	 * @param reader builds from a read-only slice of the record, which it must not keep beyond the result
+	 * @return the reader's result, or null if the record has been released
+	 */
+	public <T> T read(long handle, Function<ByteBuffer, T> reader) {
+		ByteBuffer source = pin(handle);
+		if (source == null)
+			return null;
+		T result = null;
+		try {
+			result = reader.apply(source);
+		} finally {
+			synchronized (this) {
+				if (result == null)
+					unpin(handle);
+				else
+					leases.add(new Lease(result, handle, collected));
+			}
+		}
+		return result;
+	}
+
+	/** Frees a slot, once nothing leased on it remains */
+	public synchronized void release(long handle) {
+		expunge();
+		if (pins.containsKey(handle))
+			retired.add(handle);
+		else
+			free(handle);
+	}
+
+	/**
+	 * Copies a record out of a slab being evacuated into a slot of the same class elsewhere, and releases the old one.
+	 *
+	 * @return the new handle
+	 */
+	public long move(long handle) {
+		ByteBuffer source = pin(handle);
+		if (source == null)
+			throw new IllegalArgumentException("Released record");
+		long result;
+		try {
+			result = allocate(source);
+		} finally {
+			synchronized (this) {
+				unpin(handle);
+			}
+		}
+		release(handle);
+		return result;
+	}
+
+	/**
+	 * Plans a compaction: in each size class, marks the most sparsely used slabs whose records fit in the free slots
+	 * of the others as being evacuated, so no new records are put in them. The owner of the records then moves those
+	 * in evacuated slabs, see isEvacuating() and move(), after which the slabs are free for any class. Needs no
+	 * direct memory beyond what is already reserved.
+	 *
+	 * @return the number of slabs marked
+	 */
+	public synchronized int evacuate() {
+		expunge();
+		int marked = 0;
+		for (int sizeClass = 0; sizeClass < classSizes.length; sizeClass++) {
+			List<Slab> candidates = new ArrayList<>();
+			long free = 0;
+			for (Slab slab: slabs)
+				if (slab != null && slab.sizeClass == sizeClass && !slab.evacuating) {
+					candidates.add(slab);
+					free += slab.slots - slab.used;
+				}
+			candidates.sort((a, b) -> Integer.compare(a.used, b.used));
+			for (Slab slab: candidates) {
+				free -= slab.slots - slab.used;
+				if (slab.used > free)
+					break;
+				free -= slab.used;
+				slab.evacuating = true;
+				available.get(sizeClass).remove(slab);
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	public synchronized boolean isEvacuating(long handle) {
+		Slab slab = slab(handle);
+		return slab != null && slab.evacuating;
+	}
+
+	/** Gives up the direct memory of empty slabs, which the collector then frees */
+	public synchronized void trim() {
+		expunge();
+		for (Slab slab; ( slab = emptySlabs.poll() ) != null; ) {
+			slabs.set(slab.index, null);
+			unusedIndexes.push(slab.index);
+			reserved -= slabSize;
+		}
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	/** the direct memory held, including empty slabs */
+	public synchronized long reserved() {
+		return reserved;
+	}
+
+	/** the number of records allocated and not yet freed, counting released records that are still leased */
+	public synchronized long records() {
+		expunge();
+		return records;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("SlabAllocator(%d records, %d of %d bytes reserved, %d empty slabs)", records, reserved, capacity, emptySlabs.size());
+	}
+
+	/** a read-only slice of a live record, pinned, or null if it has been released */
+	private ByteBuffer pin(long handle) {
+		ByteBuffer source;
+		synchronized (this) {
+			expunge();
+			Slab slab = slab(handle);
+			int slot = slot(handle);
+			if (slab == null || slab.allocated == null || !slab.allocated.get(slot) || retired.contains(handle))
+				return null;
+			// the slot may since have been freed and reused by another record:
+			if (slab.generations[slot] != (char)( handle >>> SLOT_BITS ))
+				return null;
+			pins.merge(handle, 1, Integer::sum);
+			source = slab.buffer.duplicate();
+			source.position(slot * slab.slotSize);
+		}
+		int length = source.getInt();
+		source.limit(source.position() + length);
+		return source.slice().asReadOnlyBuffer();
+	}
+
+	private Slab slab(long handle) {
+		int index = (int)( handle >>> ( SLOT_BITS + GENERATION_BITS ) );
+		return index < slabs.size() ? slabs.get(index) : null;
+	}
+
+	private static int slot(long handle) {
+		return (int)handle & ( ( 1 << SLOT_BITS ) - 1 );
+	}
+
+	/** a slab of the class with a free slot */
+	private Slab available(int sizeClass) {
+		Slab slab = available.get(sizeClass).peek();
+		if (slab != null)
+			return slab;
+		slab = emptySlabs.poll();
+		if (slab == null)
+			slab = reserve(slabSize);
+		slab.sizeClass = sizeClass;
+		slab.slotSize = classSizes[sizeClass];
+		slab.slots = slabSize / slab.slotSize;
+		slab.allocated = new BitSet(slab.slots);
+		available.get(sizeClass).push(slab);
+		return slab;
+	}
+
+	/** a slab of one slot, for a record too large for the size classes */
+	private Slab large(int size) {
+		Slab slab = reserve(size);
+		slab.sizeClass = -1;
+		slab.large = true;
+		slab.slotSize = size;
+		slab.slots = 1;
+		slab.allocated = new BitSet(1);
+		return slab;
+	}
+
+	private Slab reserve(int size) {
+		while ( ( reserved + size > capacity ) && !emptySlabs.isEmpty() ) {
+			Slab empty = emptySlabs.poll();
+			slabs.set(empty.index, null);
+			unusedIndexes.push(empty.index);
+			reserved -= slabSize;
+		}
+		if (reserved + size > capacity) {
+			long leased = 0;
+			for (long handle: retired)
+				leased += slab(handle).slotSize;
+			throw new IllegalStateException("Slab storage is full: " + reserved + " of " + capacity + " bytes reserved, " + size + " more needed, " + leased + " released bytes still leased to readers");
+		}
+		if ( unusedIndexes.isEmpty() && ( slabs.size() == MAX_SLABS ) )
+			throw new IllegalStateException("Slab storage is full: " + MAX_SLABS + " slabs in use");
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		reserved += size;
+		Integer index = unusedIndexes.poll();
+		if (index == null) {
+			index = slabs.size();
+			slabs.add(null);
+			generations.add(new char[0]);
+		}
+		// a slab may become any class, so it keeps a generation for as many slots as the smallest class has:
+		int slots = size == slabSize ? slabSize / MIN_SLOT : 1;
+		if (generations.get(index).length < slots)
+			generations.set(index, Arrays.copyOf(generations.get(index), slots));
+		Slab slab = new Slab(index, buffer, generations.get(index));
+		slabs.set(index, slab);
+		return slab;
+	}
+
+	/**
+	 * Asks the collector for the released slots still leased to readers that are no longer reachable.
+	 *
+	 * @return true if any were freed
+	 */
+	private boolean reclaim() {
+		if (retired.isEmpty())
+			return false;
+		long before = records;
+		System.gc();
+		try {
+			for (int tries = 0; ( tries < 10 ) && ( records == before ); tries++) {
+				Lease lease = (Lease)collected.remove(10);
+				if (lease != null) {
+					leases.remove(lease);
+					unpin(lease.handle);
+				}
+				expunge();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return records < before;
+	}
+
+	private void free(long handle) {
+		Slab slab = slab(handle);
+		int slot = slot(handle);
+		slab.allocated.clear(slot);
+		slab.generations[slot]++;
+		records--;
+		if (slab.large) {
+			slabs.set(slab.index, null);
+			unusedIndexes.push(slab.index);
+			reserved -= slab.slotSize;
+			return;
+		}
+		ArrayDeque<Slab> classSlabs = available.get(slab.sizeClass);
+		if (--slab.used == 0) {
+			// emptied slabs go to any class:
+			classSlabs.remove(slab);
+			slab.sizeClass = -1;
+			slab.evacuating = false;
+			slab.allocated = null;
+			emptySlabs.push(slab);
+		} else if ( ( slab.used == slab.slots - 1 ) && !slab.evacuating ) {
+			classSlabs.add(slab);
+		}
+	}
+
+	private void unpin(long handle) {
+		int count = pins.merge(handle, -1, Integer::sum);
+		if (count == 0) {
+			pins.remove(handle);
+			if (retired.remove(handle))
+				free(handle);
+		}
+	}
+
+	/** unpins the slots of collected leases */
+	private void expunge() {
+		for (Reference<?> reference; ( reference = collected.poll() ) != null; ) {
+			Lease lease = (Lease)reference;
+			leases.remove(lease);
+			unpin(lease.handle);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.theunknowablebits.proxamic;
+
+/**
+ * A point in time view of a store. Reads see every document as it was when the snapshot was taken, without locks and
+ * without waiting on writers, so several documents read through one snapshot are consistent with each other.
+ * <p>
+ * Documents read carry the version they were read at, so putting one that has changed since fails as any other stale
+ * put would. The store keeps the versions an open snapshot may read, so close snapshots when done.
+ *
+ * @author Dana
+ */
+public interface Snapshot extends AutoCloseable {
+
+	/**
+	 * Returns the document for the provided key as it was when the snapshot was taken, or a new instance if it did not
+	 * exist then
+	 *
+	 * @throws IllegalStateException if the snapshot is closed
+	 */
+	public Document get(String key);
+
+	public default <T extends DocumentView> T get(Class<T> viewClass, String key) { return get(key).as(viewClass); }
+
+	/** Lets the store forget the versions only this snapshot could read. Closing twice has no effect. */
+	@Override
+	public void close();
+
+}
@@ -0,0 +1,57 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * The commit clock of a store that keeps versions for snapshots, and the snapshots open on it.
+ * <p>
+ * Versions are stamped and published under the same lock snapshots are opened with, so a snapshot, which is taken at
+ * the time on the clock, sees exactly the versions published before it. The oldest open snapshot is the low
+ * watermark: of the versions stamped at or before it, only the newest can still be read.
+ *
+ * @author Dana
+ */
+final class Snapshots {
+
+	private long clock;
+	/** the number of snapshots open at each time */
+	private final TreeMap<Long, Integer> open = new TreeMap<>();
+	/** keys holding versions for open snapshots, to prune as they close */
+	final Set<String> chained = ConcurrentHashMap.newKeySet();
+
+	/** Runs a publication with the next time on the clock, which no snapshot is taken at until it has run */
+	synchronized void commit(LongConsumer publication) {
+		publication.accept(++clock);
+	}
+
+	/** Opens a snapshot, returning its time */
+	synchronized long open() {
+		long time = clock;
+		open.merge(time, 1, Integer::sum);
+		return time;
+	}
+
+	/** Closes a snapshot, returning true if that raised the low watermark */
+	synchronized boolean close(long time) {
+		boolean oldest = open.firstKey() == time;
+		if (open.merge(time, -1, Integer::sum) == 0)
+			open.remove(time);
+		return oldest && !open.containsKey(time);
+	}
+
+	/** the time of the oldest open snapshot, or Long.MAX_VALUE when none are open */
+	synchronized long watermark() {
+		Map.Entry<Long, Integer> oldest = open.firstEntry();
+		return oldest == null ? Long.MAX_VALUE : oldest.getKey();
+	}
+
+	/** true if a version stamped at a time is seen by a snapshot taken at another */
+	static boolean isVisible(long committed, long time) {
+		return ( committed != 0 ) && ( committed <= time );
+	}
+
+}
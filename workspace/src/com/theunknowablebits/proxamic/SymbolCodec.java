@@ -0,0 +1,130 @@
+package com.theunknowablebits.proxamic;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import com.theunknowablebits.buff.serialization.Array;
+import com.theunknowablebits.buff.serialization.Struct;
+
+/**
+ * Stores the field names of BuffDocument records as the symbols of a SymbolTable, at every level of nesting, and
+ * restores them on read. Records then carry a byte or three per field in place of its name.
+ * <p>
+ * Keys that are not in the table stay as they are, and any that could be mistaken for a symbol are escaped with a
+ * leading NUL. The symbol stage runs before the next codec, so it composes with compression.
+ * <p>
+ * Reading rebuilds the document's structs, trading CPU on each read for the memory of every stored name.
+ * <p>
+ * A record is only readable with the names numbered for it, so the table must be kept before the record is. Given a
+ * persister, encode() hands it the table whenever names were numbered since it was last kept, and returns only once
+ * it has. A persister that fails should throw, failing the write of the record.
+ *
+ * @author Dana
+ */
+public class SymbolCodec implements RecordCodec {
+
+	private static final String ESCAPE = "\0";
+
+	private final SymbolTable symbols;
+	private final RecordCodec next;
+	private final Consumer<SymbolTable> persister;
+	/** the size of the table when it was last kept */
+	private volatile int persisted;
+
+	/**
+	 * @param symbols the table, which must be kept with the records
+	 * @param next the codec of the symbolized bytes, such as RecordCodec.NONE
+	 * @param persister keeps the table, such as with SymbolTable.writeTo(), before records using its new names are
+	 */
+	public SymbolCodec(SymbolTable symbols, RecordCodec next, Consumer<SymbolTable> persister) {
+		this.symbols = symbols;
+		this.next = next;
+		this.persister = persister;
+		this.persisted = symbols.size();
+	}
+
+	/** For tables kept by the caller, who must keep the table before any record encoded with its new names */
+	public SymbolCodec(SymbolTable symbols, RecordCodec next) {
+		this(symbols, next, null);
+	}
+
+	public SymbolTable symbols() {
+		return symbols;
+	}
+
+	@Override
+	public ByteBuffer encode(ByteBuffer document) {
+		ByteBuffer result = next.encode(encode(new Struct(document)).toByteBuffer());
+		if ( ( persister != null ) && ( symbols.size() > persisted ) )
+			persist();
+		return result;
+	}
+
+	/** Keeps the table, unless another encode has kept it since; either way it is kept on return */
+	private synchronized void persist() {
+		int size = symbols.size();
+		if (size > persisted) {
+			persister.accept(symbols);
+			persisted = size;
+		}
+	}
+
+	@Override
+	public ByteBuffer decode(ByteBuffer record) {
+		return decode(new Struct(next.decode(record))).toByteBuffer();
+	}
+
+	private Struct encode(Struct struct) {
+		Struct result = new Struct();
+		for (String name: struct.keySet()) {
+			String symbol = symbols.symbol(name);
+			if (symbol == null)
+				symbol = SymbolTable.isEncoded(name) ? ESCAPE + name : name;
+			result.put(symbol, encodeValue(struct.get(name)));
+		}
+		return result;
+	}
+
+	private Object encodeValue(Object value) {
+		if (value instanceof Struct)
+			return encode((Struct)value);
+		if (value instanceof Array) {
+			Array array = (Array)value, result = new Array();
+			for (int i = 0; i < array.size(); i++)
+				result.add(encodeValue(array.get(i)));
+			return result;
+		}
+		return value;
+	}
+
+	private Struct decode(Struct struct) {
+		Struct result = new Struct();
+		for (String key: struct.keySet()) {
+			String name = key;
+			if (key.startsWith(ESCAPE))
+				name = key.substring(1);
+			else if (SymbolTable.isEncoded(key))
+				name = symbols.name(key);
+			result.put(name, decodeValue(struct.get(key)));
+		}
+		return result;
+	}
+
+	private Object decodeValue(Object value) {
+		if (value instanceof Struct)
+			return decode((Struct)value);
+		if (value instanceof Array) {
+			Array array = (Array)value, result = new Array();
+			for (int i = 0; i < array.size(); i++)
+				result.add(decodeValue(array.get(i)));
+			return result;
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "Symbols(" + symbols + ", " + next + ")";
+	}
+
+}
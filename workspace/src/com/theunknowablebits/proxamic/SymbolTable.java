@@ -0,0 +1,138 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers the field names of a store's documents, so records can carry a short symbol in place of each name. See
+ * SymbolCodec.
+ * <p>
+ * A symbol is the id written in base 31 with characters 0x01 to 0x1F, which encode as one byte each and never start a
+ * real field name. A table of the default 4096 names needs at most three. Names seen once the table is full are left
+ * as they are, so fields that hold maps keyed by data cannot grow it without bound.
+ * <p>
+ * Lookups take no locks. Numbering a new name is synchronized, and ids are never reused or renumbered, so records
+ * stay readable for as long as the table is kept with them. Use writeTo() and readFrom() to keep it.
+ *
+ * @author Dana
+ */
+public final class SymbolTable {
+
+	private static final int MAGIC = 0x50585354; // PXST
+	private static final int VERSION = 1;
+	private static final int BASE = 31;
+
+	private final int capacity;
+	private final ConcurrentHashMap<String, String> symbolsByName = new ConcurrentHashMap<>();
+	/** names by id, replaced rather than changed as names are added */
+	private volatile String [] names = new String[0];
+
+	public SymbolTable(int capacity) {
+		if (capacity < 0 || capacity > BASE * BASE * BASE)
+			throw new IllegalArgumentException("Capacity must fit in three symbol characters");
+		this.capacity = capacity;
+	}
+
+	public SymbolTable() {
+		this(4096);
+	}
+
+	/**
+	 * @return the name's symbol, numbering it if it is new, or null when the table is full and does not hold it
+	 */
+	public String symbol(String name) {
+		String result = symbolsByName.get(name);
+		if (result != null)
+			return result;
+		synchronized (this) {
+			result = symbolsByName.get(name);
+			if (result == null && names.length < capacity) {
+				String [] grown = Arrays.copyOf(names, names.length + 1);
+				grown[names.length] = name;
+				result = encode(names.length);
+				names = grown;
+				symbolsByName.put(name, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the name of a symbol
+	 * @throws IllegalArgumentException if the symbol is not in this table
+	 */
+	public String name(String symbol) {
+		int id = 0;
+		for (int i = 0; i < symbol.length(); i++) {
+			char c = symbol.charAt(i);
+			if (c < 1 || c > BASE || i > 2)
+				throw new IllegalArgumentException("Not a symbol");
+			id = id * BASE + c - 1;
+		}
+		String [] names = this.names;
+		if (symbol.isEmpty() || id >= names.length)
+			throw new IllegalArgumentException("Unknown symbol");
+		return names[id];
+	}
+
+	/** true for keys that are symbols, or escaped names, rather than plain names */
+	static boolean isEncoded(String key) {
+		return !key.isEmpty() && key.charAt(0) < 0x20;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	private static String encode(int id) {
+		StringBuilder result = new StringBuilder(3);
+		do {
+			result.insert(0, (char)( id % BASE + 1 ));
+			id /= BASE;
+		} while (id > 0);
+		return result.toString();
+	}
+
+	/** Writes the names in id order. Safe while other threads add names; those added meanwhile may be left out. */
+	public void writeTo(OutputStream out) throws IOException {
+		String [] names = this.names;
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(capacity);
+		data.writeInt(names.length);
+		for (String name: names)
+			data.writeUTF(name);
+		data.flush();
+	}
+
+	public static SymbolTable readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC)
+			throw new StreamCorruptedException("Not a symbol table");
+		int version = data.readInt();
+		if (version != VERSION)
+			throw new StreamCorruptedException("Unsupported symbol table version " + version);
+		SymbolTable result = new SymbolTable(data.readInt());
+		int count = data.readInt();
+		for (int i = 0; i < count; i++)
+			result.symbol(data.readUTF());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "SymbolTable(" + size() + " of " + capacity + ")";
+	}
+
+}
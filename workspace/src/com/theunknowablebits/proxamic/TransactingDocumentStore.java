@@ -2,20 +2,46 @@ package com.theunknowablebits.proxamic;
 
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * Buffers the writes of a transaction and applies them as one batch at commit. Pessimistic transactions lock every
+ * document they read. Optimistic ones read without locks, and check at commit that what they read is unchanged.
+ */
 final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer<DocumentStore>> {
 	LinkedHashSet<Document> membership = new LinkedHashSet<>();
 	DocumentStore delegate;
+	final boolean optimistic;
+	/** reads a document as it is, without locking it, for optimistic reads */
+	private final Function<String, Document> reader;
 
 	HashMap<String, Document> documentsById = new HashMap<>(); 
 	LinkedHashMap<String,Document> toPut = new LinkedHashMap<>();
 	LinkedHashMap<String,Document> toDelete = new LinkedHashMap<>();
+	/** the keys of the documents that hold locks, to release at the end */
+	HashSet<String> locked = new HashSet<>();
 	
 	public TransactingDocumentStore(DocumentStore delegate) {
+		this(delegate, false);
+	}
+
+	public TransactingDocumentStore(DocumentStore delegate, boolean optimistic) {
+		this(delegate, optimistic, delegate::get);
+	}
+
+	/** An optimistic transaction over a store whose get() may lock, reading instead through a reader that does not */
+	TransactingDocumentStore(DocumentStore delegate, Function<String, Document> reader) {
+		this(delegate, true, reader);
+	}
+
+	private TransactingDocumentStore(DocumentStore delegate, boolean optimistic, Function<String, Document> reader) {
 		this.delegate = delegate;
+		this.optimistic = optimistic;
+		this.reader = reader;
 	}
 	
 	private Document adopt(Document document) {
@@ -38,9 +64,20 @@ final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer
 	@Override
 	public Document newInstance(String key) { return adopt(AbstractDocumentStore.withDocStore(delegate.newInstance(key),this)); }
 
+	/** Locks the document, unless optimistic, when it is read as it is and checked at commit */
 	@Override
-	public Document get(String key) {
-		return lock(key);
+	public synchronized Document get(String key) {
+		if ( !optimistic || toPut.containsKey(key) || toDelete.containsKey(key) || locked.contains(key) )
+			return lock(key);
+		if (!documentsById.containsKey(key))
+			documentsById.put(key, AbstractDocumentStore.withDocStore(reader.apply(key),this));
+		return adopt(documentsById.get(key));
+	}
+
+	/** Projects the transaction's own copy, so the read is locked or checked at commit like any other */
+	@Override
+	public synchronized <T extends DocumentView> T get(String key, Class<T> viewClass, String... fieldNames) {
+		return get(key).project(fieldNames).as(viewClass);
 	}
 
 	@Override
@@ -49,6 +86,12 @@ final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer
 		toPut.put(getID(document), document);
 	}
 
+	/** Changes are only written at commit, so a patch is the same as a put */
+	@Override
+	public void patch(Document document) {
+		put(document);
+	}
+
 	@Override
 	public synchronized void delete(Document document) {
 		checkMembership(document);
@@ -65,6 +108,11 @@ final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer
 		transaction.accept(this);
 	}
 
+	@Override
+	public void transactOptimistically(Consumer<DocumentStore> transaction) {
+		transaction.accept(this);
+	}
+
 	@Override
 	public void execute(Consumer<DocumentStore> execution) {
 		execution.accept(this);
@@ -75,8 +123,11 @@ final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer
 			return toPut.get(key);
 		if (toDelete.containsKey(key))
 			return newInstance(key);
-		if (!documentsById.containsKey(key))
+		if (!locked.contains(key)) {
+			// an optimistic read of the document is superseded by its lock:
 			documentsById.put(key, AbstractDocumentStore.withDocStore(delegate.lock(key),this));
+			locked.add(key);
+		}
 		return adopt(documentsById.get(key));
 	}
 	
@@ -89,14 +140,56 @@ final class TransactingDocumentStore implements DocumentStore, Consumer<Consumer
 		documentsById.keySet().removeAll(toDelete.keySet());
 		documentsById.keySet().removeAll(toPut.keySet());
 
-		toDelete.forEach((key,document)->delegate.delete(document));
+		// everything is applied as one batch, so a conflict writes nothing:
+		Batch batch = new Batch();
+		toDelete.forEach((key,document)->batch.delete(document));
+
+		// untouched documents have nothing to write, so are only released, and the rest only write their changes.
+		// Documents read without locks are checked to be unchanged:
+		toPut.forEach((key,document)->{
+			if (document.isDirty())
+				batch.patch(document);
+			else
+				unchanged(batch, key, document);
+		});
 
-		toPut.forEach((key,document)->delegate.put(document));
+		documentsById.forEach((key,document)->unchanged(batch, key, document));
 
-		documentsById.forEach((key,document)->delegate.release(document));
+		try {
+			delegate.apply(batch);
+		} catch (ConcurrentModificationException e) {
+			releaseLocked(batch);
+			throw new TransactionConflictException("Transaction conflicts with another writer: " + e.getMessage(), e);
+		} catch (RuntimeException e) {
+			releaseLocked(batch);
+			throw e;
+		}
+	}
+
+	private void unchanged(Batch batch, String key, Document document) {
+		if (locked.contains(key))
+			batch.release(document);
+		else
+			batch.check(document);
 	}
+
+	/** gives up the locks of a failed commit now rather than when they lapse */
+	private void releaseLocked(Batch batch) {
+		for (Batch.Operation operation: batch.operations) {
+			if (!locked.contains(delegate.getID(operation.document)))
+				continue;
+			try {
+				delegate.release(operation.document);
+			} catch (RuntimeException ignored) {
+			}
+		}
+	}
+
 	final void rollback() {
-		documentsById.forEach((key,document)->delegate.release(document));
+		documentsById.forEach((key,document)->{
+			if (locked.contains(key))
+				delegate.release(document);
+		});
 	}
 
 	@Override
@@ -0,0 +1,19 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * Thrown when a transaction cannot commit because a document it read or wrote was changed, or locked, by another
+ * writer since it was read. Nothing the transaction wrote is kept, so it can be run again.
+ *
+ * @author Dana
+ */
+public class TransactionConflictException extends ConcurrentModificationException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TransactionConflictException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
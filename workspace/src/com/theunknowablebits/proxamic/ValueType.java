@@ -0,0 +1,150 @@
+package com.theunknowablebits.proxamic;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A declared java type, resolved once into the shape needed to move values between a view and its struct.
+ * <p>
+ * Arrays and lists carry their element type, maps carry their value type. Raw collections carry Object. Primitives
+ * are stored boxed and read back as their declared type, with missing values reading as zero or false. Other values
+ * pass through their registered Converter, if any.
+ */
+final class ValueType {
+
+	enum Kind { ARRAY, LIST, MAP, VIEW, PRIMITIVE, VALUE }
+
+	static final ValueType OBJECT = new ValueType(Kind.VALUE, Object.class, null);
+
+	private static final Map<Class<?>, Class<?>> BOXES = new HashMap<>();
+	static {
+		BOXES.put(boolean.class, Boolean.class);
+		BOXES.put(byte.class, Byte.class);
+		BOXES.put(char.class, Character.class);
+		BOXES.put(short.class, Short.class);
+		BOXES.put(int.class, Integer.class);
+		BOXES.put(long.class, Long.class);
+		BOXES.put(float.class, Float.class);
+		BOXES.put(double.class, Double.class);
+		BOXES.put(void.class, Void.class);
+	}
+
+	final Kind kind;
+	final Class<?> rawType;
+	final ValueType elementType;
+
+	/** the converter as of a registry generation, see converter() */
+	private volatile Resolution resolution;
+
+	private static final class Resolution {
+		final int generation;
+		final Converter<Object> converter;
+
+		Resolution(int generation, Converter<Object> converter) {
+			this.generation = generation;
+			this.converter = converter;
+		}
+	}
+
+	private ValueType(Kind kind, Class<?> rawType, ValueType elementType) {
+		this.kind = kind;
+		this.rawType = rawType;
+		this.elementType = elementType;
+	}
+
+	static ValueType of(Type declaredType) {
+		Class<?> rawType = Object.class;
+		if (declaredType instanceof Class)
+			rawType = (Class<?>)declaredType;
+		if (declaredType instanceof ParameterizedType)
+			rawType = (Class<?>)((ParameterizedType)declaredType).getRawType();
+
+		if (rawType.isArray())
+			return new ValueType(Kind.ARRAY, rawType, of(rawType.getComponentType()));
+
+		if (List.class.isAssignableFrom(rawType)) {
+			if (declaredType instanceof ParameterizedType)
+				return new ValueType(Kind.LIST, rawType, of(((ParameterizedType)declaredType).getActualTypeArguments()[0]));
+			return new ValueType(Kind.LIST, rawType, OBJECT);
+		}
+
+		if (Map.class.isAssignableFrom(rawType)) {
+			if (declaredType instanceof ParameterizedType)
+				return new ValueType(Kind.MAP, rawType, of(((ParameterizedType)declaredType).getActualTypeArguments()[1]));
+			return new ValueType(Kind.MAP, rawType, OBJECT);
+		}
+
+		if (rawType.isPrimitive())
+			return new ValueType(Kind.PRIMITIVE, rawType, null);
+
+		if (DocumentView.class.isAssignableFrom(rawType))
+			return new ValueType(Kind.VIEW, rawType, null);
+
+		if (rawType == Object.class)
+			return OBJECT;
+
+		return new ValueType(Kind.VALUE, rawType, null);
+	}
+
+	/** the wrapper class of a primitive type */
+	static Class<?> box(Class<?> primitive) {
+		return BOXES.get(primitive);
+	}
+
+	/**
+	 * Reads a struct value as this primitive type. Values already of the wrapper type are returned as is, so reads of
+	 * a stored value never allocate.
+	 */
+	Object toPrimitive(Object value) {
+		if (BOXES.get(rawType).isInstance(value))
+			return value;
+		if (rawType == int.class) return GeneratedView.asInt(value);
+		if (rawType == long.class) return GeneratedView.asLong(value);
+		if (rawType == double.class) return GeneratedView.asDouble(value);
+		if (rawType == float.class) return GeneratedView.asFloat(value);
+		if (rawType == short.class) return GeneratedView.asShort(value);
+		if (rawType == byte.class) return GeneratedView.asByte(value);
+		if (rawType == boolean.class) return GeneratedView.asBoolean(value);
+		if (rawType == char.class) return GeneratedView.asChar(value);
+		return null;
+	}
+
+	/** the converter of a VALUE type, or null when values are stored as they are */
+	Converter<Object> converter() {
+		int generation = Converters.generation();
+		Resolution current = resolution;
+		if (current == null || current.generation != generation)
+			resolution = current = new Resolution(generation, Converters.find(rawType));
+		return current.converter;
+	}
+
+	/** Reads a struct value as this VALUE type. Values already of the type, such as legacy unconverted values, pass as is. */
+	Object fromStructValue(Object value) {
+		if (rawType.isInstance(value))
+			return value;
+		Converter<Object> converter = converter();
+		if (converter == null)
+			return rawType.cast(value);
+		return converter.fromStructValue(value);
+	}
+
+	Object toStructValue(Object value) {
+		Converter<Object> converter = converter();
+		if (converter == null)
+			return rawType.cast(value);
+		return converter.toStructValue(rawType.cast(value));
+	}
+
+	/** true when a missing field of this type is created empty on first read */
+	boolean isContainer() {
+		return kind == Kind.LIST || kind == Kind.MAP || kind == Kind.VIEW;
+	}
+
+	@Override
+	public String toString() {
+		return kind + "(" + rawType.getName() + ( elementType == null ? "" : "," + elementType ) + ")";
+	}
+}
@@ -0,0 +1,190 @@
+package com.theunknowablebits.proxamic;
+
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dispatch table for a DocumentView interface. Every method is analysed once, when the interface is first viewed,
+ * and calls are then serviced by a single lookup.
+ */
+final class ViewClass {
+
+	private static final ClassValue<ViewClass> viewClasses = new ClassValue<ViewClass>() {
+		@Override
+		protected ViewClass computeValue(Class<?> documentClass) {
+			return new ViewClass(documentClass);
+		}
+	};
+
+	final Class<?> documentClass;
+
+	private final ConcurrentHashMap<Method, ViewMethod> methods = new ConcurrentHashMap<>();
+
+	/** resolved on first use, so interfaces that are only inspected never define a proxy class */
+	private volatile Constructor<?> proxyConstructor;
+
+	/** Lookup.defineClass on Java 9+, otherwise null */
+	private static final Method lookupDefineClass = findLookupDefineClass();
+
+	/** the constructor of the generated implementation, if there is one */
+	private volatile Constructor<?> generatedConstructor;
+
+	private volatile boolean runtimeGenerationFailed;
+
+	private ViewClass(Class<?> documentClass) {
+		this.documentClass = documentClass;
+		for (Method method: documentClass.getMethods())
+			methods.put(method, ViewMethod.compile(documentClass, method));
+		// proxies route these through the handler too:
+		try {
+			for (Method method: new Method[] { 
+					Object.class.getMethod("equals", Object.class), 
+					Object.class.getMethod("hashCode"), 
+					Object.class.getMethod("toString") })
+				methods.put(method, ViewMethod.compile(documentClass, method));
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+		generatedConstructor = findGeneratedConstructor(documentClass);
+	}
+
+	static ViewClass of(Class<?> documentClass) {
+		return viewClasses.get(documentClass);
+	}
+
+	/**
+	 * Creates a proxy for this view class over the supplied handler, without the class loader and interface
+	 * resolution that Proxy.newProxyInstance repeats on every call.
+	 */
+	Object newProxy(InvocationHandler handler) {
+		Constructor<?> constructor = proxyConstructor;
+		if (constructor == null) 
+			proxyConstructor = constructor = resolveProxyConstructor();
+		try {
+			return constructor.newInstance(handler);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Constructor<?> resolveProxyConstructor() {
+		try {
+			// the proxy class of a throwaway instance, as Proxy.getProxyClass is deprecated:
+			Constructor<?> constructor = Proxy
+					.newProxyInstance(documentClass.getClassLoader(), new Class<?>[] { documentClass }, (proxy, method, args) -> null)
+					.getClass()
+					.getConstructor(InvocationHandler.class);
+			constructor.setAccessible(true); // proxies of non public interfaces are not public
+			return constructor;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	boolean isGenerated() {
+		return generatedConstructor != null;
+	}
+
+	/**
+	 * Ensures there is a generated implementation, writing and defining one if there is no compile time class.
+	 * Generation is attempted once; views that cannot be generated stay with the proxy.
+	 */
+	boolean generateAtRuntime() {
+		if (generatedConstructor != null)
+			return true;
+		if (runtimeGenerationFailed)
+			return false;
+		synchronized (this) {
+			if (generatedConstructor == null && !runtimeGenerationFailed) {
+				try {
+					Constructor<?> constructor = defineRuntimeView(documentClass).getDeclaredConstructor(BuffDocument.class);
+					constructor.setAccessible(true);
+					generatedConstructor = constructor;
+				} catch (Exception | LinkageError e) {
+					runtimeGenerationFailed = true;
+				}
+			}
+		}
+		return generatedConstructor != null;
+	}
+
+	Object newGeneratedView(BuffDocument document) {
+		try {
+			return generatedConstructor.newInstance(document);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** The name DocumentViewProcessor gives the implementation it generates for a view interface */
+	static String generatedClassName(String viewBinaryName) {
+		return viewBinaryName + "$BuffView";
+	}
+
+	/**
+	 * Defines a runtime generated view. On Java 9+ it is defined beside the view interface, in the same loader and
+	 * package. Java 8 can only define it in a child loader, which limits it to public interfaces.
+	 */
+	private static Class<?> defineRuntimeView(Class<?> documentClass) throws ReflectiveOperationException {
+		String name = generatedClassName(documentClass.getName());
+		byte [] bytes = new ViewClassWriter(documentClass, name).write();
+		if (lookupDefineClass != null) {
+			Lookup lookup = ViewMethod.privateLookup(documentClass);
+			if (lookup.lookupClass() == documentClass)
+				return (Class<?>)lookupDefineClass.invoke(lookup, (Object)bytes);
+		}
+		for (Class<?> c = documentClass; c != null; c = c.getEnclosingClass())
+			if (!Modifier.isPublic(c.getModifiers()))
+				throw new IllegalAccessException(documentClass.getName() + " is not public");
+		return new RuntimeViewLoader(documentClass.getClassLoader()).define(name, bytes);
+	}
+
+	private static final class RuntimeViewLoader extends ClassLoader {
+		RuntimeViewLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte [] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static Method findLookupDefineClass() {
+		try {
+			return Lookup.class.getMethod("defineClass", byte[].class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Constructor<?> findGeneratedConstructor(Class<?> documentClass) {
+		try {
+			Class<?> generated = Class.forName(generatedClassName(documentClass.getName()), false, documentClass.getClassLoader());
+			if (!documentClass.isAssignableFrom(generated) || !GeneratedView.class.isAssignableFrom(generated))
+				return null;
+			Constructor<?> constructor = generated.getDeclaredConstructor(BuffDocument.class);
+			constructor.setAccessible(true); // generated classes are package private
+			return constructor;
+		} catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+			return null;
+		}
+	}
+
+	ViewMethod method(Method method) {
+		ViewMethod result = methods.get(method);
+		if (result == null)
+			result = methods.computeIfAbsent(method, (m)->ViewMethod.compile(documentClass, m));
+		return result;
+	}
+
+}
@@ -0,0 +1,465 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the class file of a GeneratedView implementation for a view interface at runtime, following the same rules
+ * as ViewSourceWriter.
+ * <p>
+ * Every generated method is straight line code, so the class file needs no stack map frames and no bytecode library.
+ * Simple fields are read and written through GeneratedView's final field accessors, everything else goes through
+ * GeneratedView.invoke().
+ */
+final class ViewClassWriter {
+
+	private static final String GENERATED_VIEW = "com/theunknowablebits/proxamic/GeneratedView";
+	private static final String OBJECT = "java/lang/Object";
+	private static final String ACCESSORS = "ACCESSORS";
+
+	private final Class<?> viewClass;
+	private final String className;
+	private final ConstantPool pool = new ConstantPool();
+
+	/**
+	 * @param className the binary name of the class to write, which must be in the view's package
+	 */
+	ViewClassWriter(Class<?> viewClass, String className) {
+		this.viewClass = viewClass;
+		this.className = className.replace('.', '/');
+	}
+
+	byte [] write() {
+		List<Method> invoked = new ArrayList<>();
+		ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+		DataOutputStream methods = new DataOutputStream(methodBytes);
+		int methodCount = 0;
+		try {
+			writeConstructor(methods);
+			methodCount++;
+			Set<String> signatures = new HashSet<>();
+			for (Method method: viewClass.getMethods()) {
+				if (method.isDefault() || Modifier.isStatic(method.getModifiers()))
+					continue;
+				if (!signatures.add(method.getName() + descriptor(method)))
+					continue;
+				ReflectedMethod model = new ReflectedMethod(viewClass, method);
+				ViewSourceWriter.Mode mode = ViewSourceWriter.mode(model);
+				if (mode == ViewSourceWriter.Mode.SKIP)
+					continue;
+				writeMethod(methods, method, mode, ViewSourceWriter.fieldName(model), mode == ViewSourceWriter.Mode.INVOKE ? invoked.size() : -1);
+				if (mode == ViewSourceWriter.Mode.INVOKE)
+					invoked.add(method);
+				methodCount++;
+			}
+			writeStaticInitializer(methods, invoked);
+			methodCount++;
+
+			ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(classBytes);
+			int thisClass = pool.classRef(className);
+			int superClass = pool.classRef(GENERATED_VIEW);
+			int viewInterface = pool.classRef(internalName(viewClass));
+			int accessorsName = pool.utf8(ACCESSORS);
+			int accessorsType = pool.utf8("[L" + OBJECT + ";");
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(52); // java 8
+			pool.writeTo(out);
+			out.writeShort(0x0010 | 0x0020); // final, super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(viewInterface);
+			out.writeShort(1); // fields
+			out.writeShort(0x0002 | 0x0008 | 0x0010); // private static final
+			out.writeShort(accessorsName);
+			out.writeShort(accessorsType);
+			out.writeShort(0);
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0); // attributes
+			return classBytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeConstructor(DataOutputStream out) throws IOException {
+		Code code = new Code();
+		code.op(0x2a); // aload_0
+		code.op(0x2b); // aload_1
+		code.op(0xb7).u2(pool.methodRef(GENERATED_VIEW, "<init>", "(Lcom/theunknowablebits/proxamic/BuffDocument;)V")); // invokespecial
+		code.op(0xb1); // return
+		writeMethodInfo(out, 0, "<init>", "(Lcom/theunknowablebits/proxamic/BuffDocument;)V", code, 2);
+	}
+
+	private void writeStaticInitializer(DataOutputStream out, List<Method> invoked) throws IOException {
+		Code code = new Code();
+		code.push(invoked.size(), pool);
+		code.op(0xbd).u2(pool.classRef(OBJECT)); // anewarray
+		for (int i = 0; i < invoked.size(); i++) {
+			Method method = invoked.get(i);
+			code.op(0x59); // dup
+			code.push(i, pool);
+			code.op(0x13).u2(pool.classRef(internalName(viewClass))); // ldc_w
+			code.op(0x13).u2(pool.string(method.getName()));
+			Class<?> [] parameterTypes = method.getParameterTypes();
+			code.push(parameterTypes.length, pool);
+			code.op(0xbd).u2(pool.classRef("java/lang/Class"));
+			for (int p = 0; p < parameterTypes.length; p++) {
+				code.op(0x59);
+				code.push(p, pool);
+				classLiteral(code, parameterTypes[p]);
+				code.op(0x53); // aastore
+			}
+			code.op(0xb8).u2(pool.methodRef(GENERATED_VIEW, "accessor", "(Ljava/lang/Class;Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/Object;")); // invokestatic
+			code.op(0x53);
+		}
+		code.op(0xb3).u2(pool.fieldRef(className, ACCESSORS, "[L" + OBJECT + ";")); // putstatic
+		code.op(0xb1);
+		writeMethodInfo(out, 0x0008, "<clinit>", "()V", code, 0);
+	}
+
+	private void writeMethod(DataOutputStream out, Method method, ViewSourceWriter.Mode mode, String fieldName, int accessorIndex) throws IOException {
+		Code code = new Code();
+		Class<?> returnType = method.getReturnType();
+		switch (mode) {
+		case FIELD_GET:
+			code.op(0x2a);
+			code.op(0x13).u2(pool.string(fieldName));
+			code.op(0xb6).u2(pool.methodRef(GENERATED_VIEW, "field", "(Ljava/lang/String;)Ljava/lang/Object;")); // invokevirtual
+			returnField(code, returnType);
+			break;
+		case FIELD_PUT:
+		case FIELD_PUT_FLUENT:
+		case FIELD_PUT_VOID:
+			code.op(0x2a);
+			code.op(0x13).u2(pool.string(fieldName));
+			loadBoxed(code, method.getParameterTypes()[0], 1);
+			code.op(0xb6).u2(pool.methodRef(GENERATED_VIEW, "putField", "(Ljava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;"));
+			if (mode == ViewSourceWriter.Mode.FIELD_PUT) {
+				returnField(code, returnType);
+			} else if (mode == ViewSourceWriter.Mode.FIELD_PUT_FLUENT) {
+				code.op(0x57); // pop
+				code.op(0x2a);
+				code.op(0xb0);
+			} else {
+				code.op(0x57);
+				code.op(0xb1);
+			}
+			break;
+		default:
+			code.op(0x2a);
+			code.op(0xb2).u2(pool.fieldRef(className, ACCESSORS, "[L" + OBJECT + ";")); // getstatic
+			code.push(accessorIndex, pool);
+			code.op(0x32); // aaload
+			Class<?> [] parameterTypes = method.getParameterTypes();
+			if (parameterTypes.length == 0) {
+				code.op(0x01); // aconst_null
+			} else {
+				code.push(parameterTypes.length, pool);
+				code.op(0xbd).u2(pool.classRef(OBJECT));
+				int slot = 1;
+				for (int p = 0; p < parameterTypes.length; p++) {
+					code.op(0x59);
+					code.push(p, pool);
+					slot += loadBoxed(code, parameterTypes[p], slot);
+					code.op(0x53);
+				}
+			}
+			code.op(0xb6).u2(pool.methodRef(GENERATED_VIEW, "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"));
+			returnUnboxed(code, returnType);
+		}
+		int locals = 1;
+		for (Class<?> parameterType: method.getParameterTypes())
+			locals += ( parameterType == long.class || parameterType == double.class ) ? 2 : 1;
+		writeMethodInfo(out, 0x0001, method.getName(), descriptor(method), code, locals);
+	}
+
+	private void writeMethodInfo(DataOutputStream out, int access, String name, String descriptor, Code code, int maxLocals) throws IOException {
+		out.writeShort(access);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(1);
+		out.writeShort(pool.utf8("Code"));
+		byte [] bytes = code.toByteArray();
+		out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2);
+		out.writeShort(10); // max stack, more than any generated method needs
+		out.writeShort(maxLocals);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+
+	private void classLiteral(Code code, Class<?> type) {
+		if (type.isPrimitive())
+			code.op(0xb2).u2(pool.fieldRef(internalName(box(type)), "TYPE", "Ljava/lang/Class;"));
+		else
+			code.op(0x13).u2(pool.classRef(internalName(type)));
+	}
+
+	/** loads a parameter onto the stack as an object, returning its slot size */
+	private int loadBoxed(Code code, Class<?> type, int slot) {
+		if (!type.isPrimitive()) {
+			code.op(0x19).u1(slot); // aload
+			return 1;
+		}
+		int size = 1;
+		if (type == long.class) {
+			code.op(0x16).u1(slot); // lload
+			size = 2;
+		} else if (type == double.class) {
+			code.op(0x18).u1(slot); // dload
+			size = 2;
+		} else if (type == float.class) {
+			code.op(0x17).u1(slot); // fload
+		} else {
+			code.op(0x15).u1(slot); // iload
+		}
+		code.op(0xb8).u2(pool.methodRef(internalName(box(type)), "valueOf", "(" + descriptor(type) + ")" + descriptor(box(type))));
+		return size;
+	}
+
+	/** returns a struct value on the stack as the given type, converting primitives as GeneratedView.asInt() etc do */
+	private void returnField(Code code, Class<?> type) {
+		if (!type.isPrimitive()) {
+			code.op(0xc0).u2(pool.classRef(internalName(type))); // checkcast
+			code.op(0xb0); // areturn
+			return;
+		}
+		code.op(0xb8).u2(pool.methodRef(GENERATED_VIEW, ViewSourceWriter.primitiveReader(type.getName()), "(Ljava/lang/Object;)" + descriptor(type)));
+		returnPrimitive(code, type);
+	}
+
+	private void returnPrimitive(Code code, Class<?> type) {
+		if (type == long.class)
+			code.op(0xad); // lreturn
+		else if (type == double.class)
+			code.op(0xaf); // dreturn
+		else if (type == float.class)
+			code.op(0xae); // freturn
+		else
+			code.op(0xac); // ireturn
+	}
+
+	private void returnUnboxed(Code code, Class<?> type) {
+		if (type == void.class) {
+			code.op(0x57);
+			code.op(0xb1);
+		} else if (!type.isPrimitive()) {
+			code.op(0xc0).u2(pool.classRef(internalName(type)));
+			code.op(0xb0);
+		} else {
+			Class<?> boxed = box(type);
+			code.op(0xc0).u2(pool.classRef(internalName(boxed)));
+			code.op(0xb6).u2(pool.methodRef(internalName(boxed), type.getName() + "Value", "()" + descriptor(type)));
+			returnPrimitive(code, type);
+		}
+	}
+
+	private static Class<?> box(Class<?> primitive) {
+		return ValueType.box(primitive);
+	}
+
+	/** the internal name of a class, or the descriptor of an array class, as constant pool class entries expect */
+	private static String internalName(Class<?> type) {
+		return type.isArray() ? descriptor(type) : type.getName().replace('.', '/');
+	}
+
+	static String descriptor(Class<?> type) {
+		if (type.isArray())
+			return type.getName().replace('.', '/');
+		if (type == void.class) return "V";
+		if (type == boolean.class) return "Z";
+		if (type == byte.class) return "B";
+		if (type == char.class) return "C";
+		if (type == short.class) return "S";
+		if (type == int.class) return "I";
+		if (type == long.class) return "J";
+		if (type == float.class) return "F";
+		if (type == double.class) return "D";
+		return "L" + type.getName().replace('.', '/') + ";";
+	}
+
+	static String descriptor(Method method) {
+		StringBuilder result = new StringBuilder("(");
+		for (Class<?> parameterType: method.getParameterTypes())
+			result.append(descriptor(parameterType));
+		return result.append(')').append(descriptor(method.getReturnType())).toString();
+	}
+
+	/** A bytecode buffer */
+	private static final class Code {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		Code op(int opcode) {
+			bytes.write(opcode);
+			return this;
+		}
+
+		Code u1(int value) {
+			bytes.write(value);
+			return this;
+		}
+
+		Code u2(int value) {
+			bytes.write(value >>> 8);
+			bytes.write(value);
+			return this;
+		}
+
+		Code push(int value, ConstantPool pool) {
+			if (value <= 5)
+				return op(0x03 + value); // iconst_n
+			if (value <= Byte.MAX_VALUE)
+				return op(0x10).u1(value); // bipush
+			if (value <= Short.MAX_VALUE)
+				return op(0x11).u2(value); // sipush
+			return op(0x13).u2(pool.integer(value));
+		}
+
+		byte [] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/** A class file constant pool, deduplicating entries as they are added */
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String value) {
+			return entry("U" + value, () -> { out.writeByte(1); out.writeUTF(value); });
+		}
+
+		int integer(int value) {
+			return entry("I" + value, () -> { out.writeByte(3); out.writeInt(value); });
+		}
+
+		int classRef(String internalName) {
+			int name = utf8(internalName);
+			return entry("C" + internalName, () -> { out.writeByte(7); out.writeShort(name); });
+		}
+
+		int string(String value) {
+			int utf8 = utf8(value);
+			return entry("S" + value, () -> { out.writeByte(8); out.writeShort(utf8); });
+		}
+
+		int fieldRef(String owner, String name, String descriptor) {
+			return memberRef(9, owner, name, descriptor);
+		}
+
+		int methodRef(String owner, String name, String descriptor) {
+			return memberRef(10, owner, name, descriptor);
+		}
+
+		private int memberRef(int tag, String owner, String name, String descriptor) {
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			int nameAndType = entry("N" + name + " " + descriptor, () -> { out.writeByte(12); out.writeShort(nameIndex); out.writeShort(descriptorIndex); });
+			return entry(tag + owner + "." + name + " " + descriptor, () -> { out.writeByte(tag); out.writeShort(ownerIndex); out.writeShort(nameAndType); });
+		}
+
+		private interface Writer {
+			void write() throws IOException;
+		}
+
+		private int entry(String key, Writer writer) {
+			Integer index = entries.get(key);
+			if (index != null)
+				return index;
+			try {
+				writer.write();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			entries.put(key, count);
+			return count++;
+		}
+
+		void writeTo(DataOutputStream target) throws IOException {
+			target.writeShort(count);
+			bytes.writeTo(target);
+		}
+	}
+
+	/** A view method as seen through reflection */
+	private static final class ReflectedMethod implements ViewSourceWriter.MethodModel {
+		final Class<?> viewClass;
+		final Method method;
+
+		ReflectedMethod(Class<?> viewClass, Method method) {
+			this.viewClass = viewClass;
+			this.method = method;
+		}
+
+		@Override
+		public String name() {
+			return method.getName();
+		}
+
+		@Override
+		public String getterField() {
+			Getter getter = method.getAnnotation(Getter.class);
+			return getter == null ? null : getter.value();
+		}
+
+		@Override
+		public String setterField() {
+			Setter setter = method.getAnnotation(Setter.class);
+			return setter == null ? null : setter.value();
+		}
+
+		@Override
+		public boolean isDefault() {
+			return method.isDefault();
+		}
+
+		@Override
+		public String returnType() {
+			return method.getGenericReturnType().getTypeName();
+		}
+
+		@Override
+		public String erasedReturnType() {
+			return method.getReturnType().getTypeName();
+		}
+
+		@Override
+		public List<String> parameterTypes() {
+			List<String> result = new ArrayList<>();
+			for (java.lang.reflect.Type parameterType: method.getGenericParameterTypes())
+				result.add(parameterType.getTypeName());
+			return result;
+		}
+
+		@Override
+		public List<String> erasedParameterTypes() {
+			List<String> result = new ArrayList<>();
+			for (Class<?> parameterType: method.getParameterTypes())
+				result.add(parameterType.getTypeName());
+			return result;
+		}
+
+		@Override
+		public boolean returnsView() {
+			return method.getReturnType().isAssignableFrom(viewClass);
+		}
+	}
+}
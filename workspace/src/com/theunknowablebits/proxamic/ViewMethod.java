@@ -0,0 +1,173 @@
+package com.theunknowablebits.proxamic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * A single view method, compiled once from its annotations and naming into everything needed to service a call:
+ * the field it touches, how values are converted, and what the call returns.
+ */
+final class ViewMethod {
+
+	enum Kind { GET, SET, DEFAULT, DOCUMENT, EQUALS, HASH_CODE, GET_DOCUMENT_STORE, SET_DOCUMENT_STORE, TO_STRING, WRITE_REPLACE, UNKNOWN }
+
+	/** DocumentView.writeReplace(), which views implement natively rather than as a default method */
+	private static final Method WRITE_REPLACE = findWriteReplace();
+
+	final Method method;
+	final Kind kind;
+
+	/** the struct key for GET and SET */
+	final String fieldName;
+
+	/** the declared return type for GET, the declared parameter type for SET */
+	final ValueType valueType;
+
+	/** for SET, the declared return type when the previous value is returned, otherwise null and the view is returned */
+	final ValueType previousValueType;
+
+	final boolean indirect;
+
+	/** MethodHandles.privateLookupIn on Java 9+, otherwise null */
+	private static final Method privateLookupIn = findPrivateLookupIn();
+
+	/** for DEFAULT, the unbound (proxy, args[]) handle, resolved on first call */
+	private volatile MethodHandle defaultMethod;
+
+	/** the view interface */
+	final Class<?> documentClass;
+
+	private ViewMethod(Class<?> documentClass, Method method, Kind kind, String fieldName, ValueType valueType, ValueType previousValueType) {
+		this.documentClass = documentClass;
+		this.method = method;
+		this.kind = kind;
+		this.fieldName = fieldName;
+		this.valueType = valueType;
+		this.previousValueType = previousValueType;
+		this.indirect = method.isAnnotationPresent(Indirect.class);
+	}
+
+	private ViewMethod(Class<?> documentClass, Method method, Kind kind) {
+		this(documentClass, method, kind, null, null, null);
+	}
+
+	boolean returnsPreviousValue() {
+		return previousValueType != null;
+	}
+
+	/**
+	 * Resolves a method in the same order the naming rules have always been applied: annotations, default methods, the
+	 * object and store methods, and finally get/set/with prefixes.
+	 */
+	static ViewMethod compile(Class<?> documentClass, Method method) {
+		if (method.isAnnotationPresent(Getter.class))
+			return getter(documentClass, method, method.getAnnotation(Getter.class).value());
+		if (method.isAnnotationPresent(Setter.class))
+			return setter(documentClass, method, method.getAnnotation(Setter.class).value());
+		if (method.equals(WRITE_REPLACE))
+			return new ViewMethod(documentClass, method, Kind.WRITE_REPLACE);
+		if (method.isDefault())
+			return new ViewMethod(documentClass, method, Kind.DEFAULT);
+		String methodName = method.getName();
+		if (methodName.equals("document"))
+			return new ViewMethod(documentClass, method, Kind.DOCUMENT);
+		if (methodName.equals("equals"))
+			return new ViewMethod(documentClass, method, Kind.EQUALS);
+		if (methodName.equals("hashCode"))
+			return new ViewMethod(documentClass, method, Kind.HASH_CODE);
+		if (DocumentStoreAware.class.isAssignableFrom(documentClass) && methodName.equals("getDocumentStore"))
+			return new ViewMethod(documentClass, method, Kind.GET_DOCUMENT_STORE);
+		if (DocumentStoreAware.class.isAssignableFrom(documentClass) && methodName.equals("setDocumentStore"))
+			return new ViewMethod(documentClass, method, Kind.SET_DOCUMENT_STORE);
+		if (methodName.startsWith("get"))
+			return getter(documentClass, method, methodName.substring(3));
+		if (methodName.startsWith("set"))
+			return setter(documentClass, method, methodName.substring(3));
+		if (methodName.startsWith("with"))
+			return setter(documentClass, method, methodName.substring(4));
+		if (methodName.equals("toString"))
+			return new ViewMethod(documentClass, method, Kind.TO_STRING);
+		return new ViewMethod(documentClass, method, Kind.UNKNOWN);
+	}
+
+	private static Method findWriteReplace() {
+		try {
+			return DocumentView.class.getMethod("writeReplace");
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ViewMethod getter(Class<?> documentClass, Method method, String fieldName) {
+		return new ViewMethod(documentClass, method, Kind.GET, fieldName, ValueType.of(method.getGenericReturnType()), null);
+	}
+
+	private static ViewMethod setter(Class<?> documentClass, Method method, String fieldName) {
+		if (method.getParameterCount() != 1)
+			return new ViewMethod(documentClass, method, Kind.UNKNOWN);
+		boolean returnsPrevious =
+				( !method.getName().startsWith("with") )
+				&& ( method.getReturnType() == method.getParameterTypes()[0] );
+		return new ViewMethod(
+				documentClass,
+				method,
+				Kind.SET,
+				fieldName,
+				ValueType.of(method.getGenericParameterTypes()[0]),
+				returnsPrevious ? ValueType.of(method.getGenericReturnType()) : null);
+	}
+
+	/**
+	 * Invokes a default method against a view. The special handle is resolved once per view class and method and
+	 * spread over the argument array, so each call is a single invokeExact.
+	 */
+	Object invokeDefault(Object proxy, Object [] args) throws Throwable {
+		MethodHandle handle = defaultMethod;
+		if (handle == null)
+			defaultMethod = handle = resolveDefaultMethod();
+		return (Object)handle.invokeExact(proxy, args);
+	}
+
+	private MethodHandle resolveDefaultMethod() throws ReflectiveOperationException {
+		MethodHandle handle = 
+				privateLookup(documentClass)
+					.findSpecial(documentClass, method.getName(), MethodType.methodType(method.getReturnType(), method.getParameterTypes()), documentClass);
+		return handle
+				.asType(handle.type().generic())
+				.asSpreader(Object[].class, method.getParameterCount());
+	}
+
+	/**
+	 * A lookup with private access to the view interface, which invokespecial on a default method requires.
+	 * Java 9+ provides privateLookupIn. Java 8 only offers the private Lookup constructor, see
+	 * https://blog.jooq.org/2018/03/28/correct-reflective-access-to-interface-default-methods-in-java-8-9-10/
+	 */
+	static Lookup privateLookup(Class<?> documentClass) {
+		try {
+			if (privateLookupIn != null) 
+				return (Lookup)privateLookupIn.invoke(null, documentClass, MethodHandles.lookup());
+			Constructor<Lookup> constructor = Lookup.class.getDeclaredConstructor(Class.class);
+			constructor.setAccessible(true);
+			return constructor.newInstance(documentClass);
+		} catch (Exception e) {
+			return MethodHandles.lookup();
+		}
+	}
+
+	private static Method findPrivateLookupIn() {
+		try {
+			return MethodHandles.class.getMethod("privateLookupIn", Class.class, Lookup.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + method.getName() + ( fieldName == null ? "" : "->" + fieldName );
+	}
+}
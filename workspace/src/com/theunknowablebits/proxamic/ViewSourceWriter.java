@@ -0,0 +1,226 @@
+package com.theunknowablebits.proxamic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the java source of a GeneratedView implementation for a DocumentView interface.
+ * <p>
+ * Getters and setters of struct native types (strings, primitives and their wrappers) become direct reads of the
+ * document's root struct, primitives being read through GeneratedView.asInt() and friends, and writes through
+ * GeneratedView.putField(), which records the change. Everything else is routed to GeneratedView.invoke() so its
+ * behaviour stays identical to the proxy handler. Default methods are inherited as is.
+ * <p>
+ * The writer is independent of where the interface description comes from: DocumentViewProcessor describes
+ * interfaces from the compiler's model, the runtime factory from reflection.
+ */
+final class ViewSourceWriter {
+
+	/** One abstract or default method of the view interface, with types in source form */
+	interface MethodModel {
+		String name();
+		/** the value of @Getter, or null */
+		String getterField();
+		/** the value of @Setter, or null */
+		String setterField();
+		boolean isDefault();
+		String returnType();
+		/** the erased return type as a canonical name, eg java.lang.String, int, void, a.b.Outer.Inner[] */
+		String erasedReturnType();
+		List<String> parameterTypes();
+		/** the erased parameter types as canonical names */
+		List<String> erasedParameterTypes();
+		/** true if the view interface can be returned where this method's return type is declared */
+		boolean returnsView();
+	}
+
+	/** Types stored in a struct as is, and so never converted */
+	static final Set<String> STRUCT_NATIVE_TYPES = new HashSet<>(Arrays.asList(
+			"java.lang.String", "java.lang.Integer", "java.lang.Long", "java.lang.Short", "java.lang.Byte",
+			"java.lang.Double", "java.lang.Float", "java.lang.Boolean", "java.lang.Character"));
+
+	static final Set<String> PRIMITIVE_TYPES = new HashSet<>(Arrays.asList(
+			"int", "long", "short", "byte", "double", "float", "boolean", "char"));
+
+	/** How a generated method is implemented. ViewClassWriter follows the same rules. */
+	enum Mode { SKIP, FIELD_GET, FIELD_PUT, FIELD_PUT_FLUENT, FIELD_PUT_VOID, INVOKE }
+
+	private final String packageName;
+	private final String viewType;
+	private final String simpleName;
+	private final List<MethodModel> methods;
+
+	/**
+	 * @param packageName the package of the view interface, empty for the default package
+	 * @param viewType the canonical name of the view interface
+	 * @param simpleName the simple name of the class to generate
+	 */
+	ViewSourceWriter(String packageName, String viewType, String simpleName, List<MethodModel> methods) {
+		this.packageName = packageName;
+		this.viewType = viewType;
+		this.simpleName = simpleName;
+		this.methods = methods;
+	}
+
+	String write() {
+		StringBuilder out = new StringBuilder();
+		if (!packageName.isEmpty())
+			out.append("package ").append(packageName).append(";\n\n");
+		out.append("/**\n * Generated from ").append(viewType).append(" by DocumentViewProcessor. Do not edit.\n */\n");
+		out.append("@SuppressWarnings({ \"unchecked\", \"rawtypes\", \"serial\" })\n");
+		out.append("final class ").append(simpleName)
+			.append(" extends com.theunknowablebits.proxamic.GeneratedView implements ").append(viewType).append(" {\n\n");
+
+		List<String> accessors = new ArrayList<>();
+		StringBuilder body = new StringBuilder();
+		for (MethodModel method: methods) {
+			Mode mode = mode(method);
+			if (mode == Mode.SKIP)
+				continue;
+			writeMethod(body, method, mode, mode == Mode.INVOKE ? accessors.size() : -1);
+			if (mode == Mode.INVOKE)
+				accessors.add(accessorExpression(method));
+		}
+
+		if (!accessors.isEmpty()) {
+			out.append("\tprivate static final Object [] ACCESSORS = {\n");
+			for (String accessor: accessors)
+				out.append("\t\t").append(accessor).append(",\n");
+			out.append("\t};\n\n");
+		}
+		out.append("\t").append(simpleName).append("(com.theunknowablebits.proxamic.BuffDocument document) {\n");
+		out.append("\t\tsuper(document);\n\t}\n");
+		out.append(body);
+		out.append("}\n");
+		return out.toString();
+	}
+
+	static Mode mode(MethodModel method) {
+		String name = method.name();
+		int parameterCount = method.parameterTypes().size();
+		if (method.isDefault())
+			return Mode.SKIP;
+		// implemented by GeneratedView:
+		if ( ( parameterCount == 0 ) && ( name.equals("document") || name.equals("hashCode") || name.equals("toString") ) )
+			return Mode.SKIP;
+		if ( ( parameterCount == 1 ) && name.equals("equals") && method.erasedParameterTypes().get(0).equals("java.lang.Object") )
+			return Mode.SKIP;
+
+		if (method.getterField() != null)
+			return getterMode(method);
+		if (method.setterField() != null)
+			return setterMode(method);
+		// these depend on the interface at runtime, so leave them to the dispatch table:
+		if (name.equals("document") || name.equals("equals") || name.equals("hashCode") || name.equals("toString")
+				|| name.equals("getDocumentStore") || name.equals("setDocumentStore"))
+			return Mode.INVOKE;
+		if (name.startsWith("get"))
+			return getterMode(method);
+		if (name.startsWith("set") || name.startsWith("with"))
+			return setterMode(method);
+		return Mode.INVOKE;
+	}
+
+	private static Mode getterMode(MethodModel method) {
+		if (method.parameterTypes().isEmpty() && isStructNative(method.erasedReturnType()))
+			return Mode.FIELD_GET;
+		return Mode.INVOKE;
+	}
+
+	private static Mode setterMode(MethodModel method) {
+		if ( ( method.parameterTypes().size() != 1 ) || !isStructNative(method.erasedParameterTypes().get(0)) )
+			return Mode.INVOKE;
+		if ( ( !method.name().startsWith("with") ) && method.erasedReturnType().equals(method.erasedParameterTypes().get(0)) )
+			return Mode.FIELD_PUT;
+		if (method.erasedReturnType().equals("void"))
+			return Mode.FIELD_PUT_VOID;
+		if (method.returnsView())
+			return Mode.FIELD_PUT_FLUENT;
+		return Mode.INVOKE;
+	}
+
+	private static boolean isStructNative(String type) {
+		return STRUCT_NATIVE_TYPES.contains(type) || PRIMITIVE_TYPES.contains(type);
+	}
+
+	/** the GeneratedView method reading a struct value as the given primitive, eg asInt */
+	static String primitiveReader(String primitiveType) {
+		return "as" + Character.toUpperCase(primitiveType.charAt(0)) + primitiveType.substring(1);
+	}
+
+	static String fieldName(MethodModel method) {
+		if (method.getterField() != null)
+			return method.getterField();
+		if (method.setterField() != null)
+			return method.setterField();
+		return method.name().substring(method.name().startsWith("with") ? 4 : 3);
+	}
+
+	private void writeMethod(StringBuilder out, MethodModel method, Mode mode, int accessorIndex) {
+		List<String> parameterTypes = method.parameterTypes();
+		out.append("\n\t@Override\n\tpublic ").append(method.returnType()).append(' ').append(method.name()).append('(');
+		for (int i = 0; i < parameterTypes.size(); i++)
+			out.append(i == 0 ? "" : ", ").append(parameterTypes.get(i)).append(" p").append(i);
+		out.append(") {\n\t\t");
+
+		String field = mode == Mode.INVOKE ? null : literal(fieldName(method));
+		switch (mode) {
+		case FIELD_GET:
+			out.append("return ").append(read(method)).append("document.root.get(").append(field).append("));");
+			break;
+		case FIELD_PUT:
+			out.append("return ").append(read(method)).append("putField(").append(field).append(", p0));");
+			break;
+		case FIELD_PUT_FLUENT:
+			out.append("putField(").append(field).append(", p0);\n\t\treturn this;");
+			break;
+		case FIELD_PUT_VOID:
+			out.append("putField(").append(field).append(", p0);");
+			break;
+		default:
+			if (!method.erasedReturnType().equals("void"))
+				out.append("return (").append(method.returnType()).append(")");
+			out.append("invoke(ACCESSORS[").append(accessorIndex).append("], ");
+			if (parameterTypes.isEmpty()) {
+				out.append("null");
+			} else {
+				out.append("new Object[] { ");
+				for (int i = 0; i < parameterTypes.size(); i++)
+					out.append(i == 0 ? "" : ", ").append('p').append(i);
+				out.append(" }");
+			}
+			out.append(");");
+		}
+		out.append("\n\t}\n");
+	}
+
+	/** the cast or conversion of a struct value to the method's return type, up to the opening of its operand */
+	private static String read(MethodModel method) {
+		if (PRIMITIVE_TYPES.contains(method.erasedReturnType()))
+			return primitiveReader(method.erasedReturnType()) + "(";
+		return "(" + method.returnType() + ")(";
+	}
+
+	private String accessorExpression(MethodModel method) {
+		StringBuilder out = new StringBuilder("accessor(").append(viewType).append(".class, ").append(literal(method.name()));
+		for (String parameterType: method.erasedParameterTypes())
+			out.append(", ").append(parameterType).append(".class");
+		return out.append(')').toString();
+	}
+
+	static String literal(String value) {
+		StringBuilder out = new StringBuilder("\"");
+		for (char c: value.toCharArray()) {
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < 0x20 || c > 0x7e)
+				out.append(String.format("\\u%04x", (int)c));
+			else
+				out.append(c);
+		}
+		return out.append('"').toString();
+	}
+}
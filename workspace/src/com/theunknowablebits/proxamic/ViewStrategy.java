@@ -0,0 +1,23 @@
+package com.theunknowablebits.proxamic;
+
+/**
+ * How BuffDocument implements the views returned from as().
+ * 
+ * @see BuffDocument#setDefaultViewStrategy(ViewStrategy)
+ * @see BuffDocument#setViewStrategy(ViewStrategy)
+ */
+public enum ViewStrategy {
+
+	/** Always use a dynamic proxy */
+	PROXY,
+
+	/** Use the class generated by DocumentViewProcessor when there is one, otherwise a dynamic proxy */
+	GENERATED,
+
+	/** 
+	 * As GENERATED, but when there is no compile time class one is generated on first use. Falls back to a dynamic 
+	 * proxy for views that cannot be generated, such as non public views on Java 8.
+	 */
+	RUNTIME_GENERATED
+
+}
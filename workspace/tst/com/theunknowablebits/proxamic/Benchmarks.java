@@ -0,0 +1,231 @@
+package com.theunknowablebits.proxamic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+
+/**
+ * Times the stores and documents, printing rather than asserting, and is kept out of the unit tests, which only
+ * check behavior. Run it as a program, optionally naming the benchmarks to run.
+ *
+ * @author Dana
+ */
+public final class Benchmarks {
+
+	static long sink;
+
+	public static void main(String [] args) throws Exception {
+		List<String> names = Arrays.asList(args);
+		if (names.isEmpty() || names.contains("json"))
+			transcoding();
+		if (names.isEmpty() || names.contains("schema"))
+			schemaReads();
+		if (names.isEmpty() || names.contains("codecs"))
+			dictionaries();
+		if (names.isEmpty() || names.contains("log"))
+			logThroughput();
+		if (names.isEmpty() || names.contains("batches"))
+			groupCommit();
+		if (names.isEmpty() || names.contains("index"))
+			indexedOpen();
+		if (names.isEmpty() || names.contains("transactions"))
+			contention();
+	}
+
+	/** Compares reading one field, and transcoding, against BuffDocument */
+	static void transcoding() {
+		byte [] text = JsonDocumentTest.TEXT.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buff = JsonDocumentTest.json(JsonDocumentTest.TEXT).toBuffDocument().toByteBuffer();
+		for (int round = 0; round < 3; round++) {
+			int count = 20_000;
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				sink += new JsonDocument(ByteBuffer.wrap(text)).as(CharacterRecord.class).name().length();
+			long json = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				sink += new BuffDocument(buff.duplicate()).as(CharacterRecord.class).name().length();
+			long buffs = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				sink += new JsonDocument(ByteBuffer.wrap(text)).toBuffDocument().toByteBuffer().remaining();
+			long toBuff = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				sink += JsonDocument.transcode(new BuffDocument(buff.duplicate())).toByteBuffer().remaining();
+			long toJson = System.nanoTime();
+			System.out.printf("read one field: json %dns, buff %dns; transcode: json to buff %dns, buff to json %dns%n",
+					(json - start) / count, (buffs - json) / count, (toBuff - buffs) / count, (toJson - toBuff) / count);
+		}
+	}
+
+	/** Compares reading one field of a SchemaDocument against BuffDocument */
+	static void schemaReads() {
+		SchemaDocument schemaDocument = new SchemaDocument(SchemaDocumentTest.characters);
+		SchemaDocumentTest.character(schemaDocument);
+		BuffDocument buffDocument = new BuffDocument();
+		SchemaDocumentTest.character(buffDocument);
+		ByteBuffer schemaBytes = schemaDocument.toByteBuffer(), buffBytes = buffDocument.toByteBuffer();
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 20_000; i++)
+				sink += new SchemaDocument(SchemaDocumentTest.characters, schemaBytes).as(CharacterRecord.class).getLevel();
+			long schema = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < 20_000; i++)
+				sink -= new BuffDocument(buffBytes).as(CharacterRecord.class).getLevel();
+			long buff = System.nanoTime() - start;
+			System.out.printf("read Level: schema %d ns, buff %d ns%n", schema / 20_000, buff / 20_000);
+		}
+	}
+
+	/** Prints the compression of plain and trained codecs */
+	static void dictionaries() {
+		byte [] dictionary = CompressingCodec.trainDictionary(RecordCodecTest.characters(100), 4096);
+		List<CharacterRecord> documents = RecordCodecTest.characters(200).subList(100, 200);
+		for (int d = 0; d < 2; d++) {
+			CompressingCodec plain = RecordCodecTest.codecs(null).get(d), trained = RecordCodecTest.codecs(dictionary).get(d);
+			for (CharacterRecord document: documents) {
+				trained.encode(document.document().toByteBuffer());
+				plain.encode(document.document().toByteBuffer());
+			}
+			System.out.printf("%s: %s%n%s: %s%n", plain, plain.statistics(), trained, trained.statistics());
+		}
+	}
+
+	/** Times writes and reads under each sync mode */
+	static void logThroughput() throws IOException {
+		inLog((docStore) -> {
+			for (LogDocumentStore.Sync sync: LogDocumentStore.Sync.values()) {
+				docStore.setSync(sync, 10);
+				int count = sync == LogDocumentStore.Sync.ALWAYS ? 200 : 5000;
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					docStore.put(docStore.newInstance(sync + " " + i).as(CharacterRecord.class).usingName("Character " + i).withLevel(i));
+				long writes = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					sink += docStore.get(CharacterRecord.class, sync + " " + i).getLevel();
+				long reads = System.nanoTime() - start;
+				System.out.printf("%s: %d writes/s, %d reads/s%n", sync, count * 1_000_000_000L / writes, count * 1_000_000_000L / reads);
+			}
+		});
+	}
+
+	/** Times batches from concurrent writers, which are forced together */
+	static void groupCommit() throws IOException {
+		inLog((docStore) -> {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int thread = t;
+				threads.add(new Thread(() -> {
+					for (int i = 0; i < 50; i++)
+						docStore.apply(new Batch()
+								.put(docStore.newInstance("character " + thread + " " + i).as(CharacterRecord.class).withLevel(i).document())
+								.put(docStore.newInstance("other " + thread + " " + i).as(CharacterRecord.class).withLevel(i).document()));
+				}));
+			}
+			long start = System.nanoTime();
+			threads.forEach(Thread::start);
+			join(threads);
+			System.out.printf("400 batches in %d ms%n", ( System.nanoTime() - start ) / 1_000_000);
+		});
+	}
+
+	/** Times opening a store from the index of its compacted segment */
+	static void indexedOpen() throws IOException {
+		Path directory = Files.createTempDirectory("proxamic");
+		try {
+			try (LogDocumentStore docStore = new LogDocumentStore(directory)) {
+				for (int i = 0; i < 2000; i++)
+					docStore.put(docStore.newInstance("character " + i).as(CharacterRecord.class).usingName("Character " + i).withLevel(i));
+				docStore.compact();
+			}
+			long start = System.nanoTime();
+			try (LogDocumentStore docStore = new LogDocumentStore(directory)) {
+				System.out.printf("opened 2000 indexed records in %d us%n", ( System.nanoTime() - start ) / 1000);
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/** Times optimistic and pessimistic transfers between a few contended accounts */
+	static void contention() {
+		MemoryDocumentStore docStore = new MemoryDocumentStore();
+		for (int i = 0; i < 4; i++)
+			docStore.put(docStore.newInstance("account " + i).as(CharacterRecord.class).withLevel(0));
+		for (boolean optimistic: new boolean[] { false, true }) {
+			AtomicInteger commits = new AtomicInteger(), conflicts = new AtomicInteger();
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				threads.add(new Thread(() -> {
+					Random random = new Random();
+					for (int i = 0; i < 500; i++) {
+						String from = "account " + random.nextInt(4), to = "account " + random.nextInt(4);
+						Consumer<DocumentStore> transfer = (tDocStore) -> {
+							tDocStore.get(CharacterRecord.class, from).getLevel();
+							CharacterRecord account = tDocStore.get(CharacterRecord.class, to);
+							tDocStore.put(account.withLevel(account.getLevel() + 1));
+						};
+						for (boolean committed = false; !committed; ) {
+							try {
+								if (optimistic)
+									docStore.transactOptimistically(transfer);
+								else
+									docStore.transact(transfer);
+								committed = true;
+								commits.incrementAndGet();
+							} catch (ConcurrentModificationException e) {
+								conflicts.incrementAndGet();
+								Thread.yield();
+							}
+						}
+					}
+				}));
+			}
+			long start = System.nanoTime();
+			threads.forEach(Thread::start);
+			join(threads);
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("%s: %d transactions/s, %d conflicts%n", optimistic ? "optimistic" : "pessimistic", commits.get() * 1_000_000_000L / elapsed, conflicts.get());
+		}
+	}
+
+	private static void inLog(Consumer<LogDocumentStore> benchmark) throws IOException {
+		Path directory = Files.createTempDirectory("proxamic");
+		try (LogDocumentStore docStore = new LogDocumentStore(directory)) {
+			benchmark.accept(docStore);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	private static void join(List<Thread> threads) {
+		try {
+			for (Thread thread: threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(file);
+		}
+	}
+
+}
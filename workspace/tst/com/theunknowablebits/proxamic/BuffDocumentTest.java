@@ -1,17 +1,23 @@
 package com.theunknowablebits.proxamic;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
@@ -19,8 +25,18 @@ import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.UUID;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -39,8 +55,71 @@ import com.theunknowablebits.proxamic.exampledata.InventoryItem;
 @DisplayName("BuffDocument")
 class BuffDocumentTest {
 
+	/** keeps the results of allocation loops live, so they are not optimized away */
+	static volatile long sink;
+
 	public static interface Bob extends DocumentView { }
 
+	interface Greeter extends DocumentView {
+		@Getter("Name") String name();
+		@Setter("Name") Greeter withName(String name);
+		default String greet(String greeting, int times) {
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < times; i++)
+				result.append(greeting).append(' ').append(name()).append(i < times-1 ? " " : "");
+			return result.toString();
+		}
+	}
+
+	interface Counter extends DocumentView {
+		int getCount();
+		Counter withCount(int count);
+		long getTotal();
+		long setTotal(long total);
+		@Getter("Ratio") double ratio();
+		@Setter("Ratio") void ratio(double ratio);
+		boolean isEnabled();
+		@Getter("Enabled") boolean enabled();
+		@Setter("Enabled") Counter enabled(boolean enabled);
+		@Getter("Samples") int [] samples();
+		@Setter("Samples") Counter samples(int [] samples);
+	}
+
+	enum Color { RED, GREEN }
+
+	static final class Point {
+		final int x, y;
+
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	interface Stamped extends DocumentView {
+		Date getDate();
+		Stamped withDate(Date date);
+		Instant getInstant();
+		Stamped withInstant(Instant instant);
+		BigDecimal getAmount();
+		Stamped withAmount(BigDecimal amount);
+		UUID getId();
+		Stamped withId(UUID id);
+		Color getColor();
+		Stamped withColor(Color color);
+		List<Color> getColors();
+		Point getPoint();
+		Stamped withPoint(Point point);
+	}
+
+	/** the bytes allocated by the current thread, or -1 where the vm cannot say */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+			return -1;
+		return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
 	@BeforeAll
 	static void setUpBeforeClass() throws Exception {
 	}
@@ -75,6 +154,53 @@ class BuffDocumentTest {
 		}
 	}
 
+	static void assertPrimitives(BuffDocument document) {
+		Counter counter = document.as(Counter.class);
+		assertEquals(0, counter.getCount());
+		assertEquals(0L, counter.getTotal());
+		assertEquals(0d, counter.ratio());
+		assertFalse(counter.enabled());
+		assertEquals(counter, counter.withCount(7));
+		assertEquals(7, counter.getCount());
+		assertEquals(0L, counter.setTotal(1L << 40));
+		assertEquals(1L << 40, counter.setTotal(3));
+		counter.ratio(0.5);
+		assertEquals(0.5, counter.ratio());
+		assertTrue(counter.enabled(true).enabled());
+
+		document.root.put("Count", 9L); // written elsewhere as another width
+		assertEquals(9, counter.getCount());
+
+		assertThrows(RuntimeException.class, () -> counter.isEnabled());
+
+		counter.samples(new int [] { 1, 2, 3 });
+		int [] samples = new BuffDocument(document.toByteBuffer()).as(Counter.class).samples();
+		assertEquals(3, samples.length);
+		assertEquals(3, samples[2]);
+	}
+
+	static void assertPrimitiveReadsDoNotAllocate(BuffDocument document) {
+		assumeTrue(allocatedBytes() >= 0, "requires thread allocation counters");
+		Counter counter = document.as(Counter.class).withCount(100_000);
+		counter.setTotal(1L << 40);
+		long sink = 0;
+		for (int round = 0; round < 3; round++) {
+			long start = allocatedBytes();
+			for (int i = 0; i < 100_000; i++)
+				sink += counter.getCount() + counter.getTotal();
+			long viewBytes = allocatedBytes() - start;
+			start = allocatedBytes();
+			for (int i = 0; i < 100_000; i++)
+				sink += ((Number)document.root.get("Count")).intValue() + ((Number)document.root.get("Total")).longValue();
+			long structBytes = allocatedBytes() - start;
+			// whatever the struct itself allocates, the view must add nothing per access
+			if (viewBytes <= structBytes + 1024)
+				return;
+		}
+		BuffDocumentTest.sink = sink;
+		fail("primitive reads allocate");
+	}
+
 	@Nested
 	@DisplayName("assumptions")
 	class Assumptions {
@@ -151,6 +277,47 @@ class BuffDocumentTest {
 		}
 		
 
+		@Test
+		@DisplayName("writes to streams and channels")
+		void writeTo() throws IOException {
+			document.as(CharacterRecord.class).usingName("Dana").withLevel(20);
+			byte [] bytes = document.toBytes();
+			assertArrayEquals(bytes, document.toBytes());
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			document.writeTo(stream);
+			assertArrayEquals(bytes, stream.toByteArray());
+
+			ByteArrayOutputStream channel = new ByteArrayOutputStream();
+			document.writeTo(Channels.newChannel(channel));
+			assertArrayEquals(bytes, channel.toByteArray());
+
+			ByteBuffer shared = document.readOnlyByteBuffer();
+			assertTrue(shared.isReadOnly());
+			assertEquals(bytes.length, shared.remaining());
+			assertThrows(ReadOnlyBufferException.class, () -> shared.put(0, (byte)0));
+			assertEquals("Dana", new BuffDocument(shared).as(CharacterRecord.class).name());
+		}
+
+		@Test
+		@DisplayName("keeps its encoding whole when callers consume it")
+		void consumedEncoding() {
+			document.as(CharacterRecord.class).usingName("Dana").withLevel(20);
+			byte [] bytes = document.toBytes();
+			ByteBuffer consumed = document.toByteBuffer();
+			consumed.get(new byte[consumed.remaining()]);
+			assertEquals(bytes.length, document.toByteBuffer().remaining());
+			assertArrayEquals(bytes, document.toBytes());
+		}
+
+		@Test
+		@DisplayName("serializes its bytes")
+		void serialization2() throws IOException, ClassNotFoundException {
+			document.as(CharacterRecord.class).usingName("Dana");
+			document.setDocumentStore(new LocalDocumentStore());
+			assertEquals("Dana", serialize(document).as(CharacterRecord.class).name());
+		}
+
 		@Nested
 		@DisplayName("document view")
 		class DocumentViews {
@@ -171,6 +338,21 @@ class BuffDocumentTest {
 				assertEquals("Dana",record.name());
 			}
 			
+			@Test
+			@DisplayName("serializes as document and view interface only")
+			void compactSerialization() throws IOException, ClassNotFoundException {
+				record.name("Dana");
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+					out.writeObject(record);
+				}
+				String stream = new String(bytes.toByteArray(), "ISO-8859-1");
+				assertFalse(stream.contains("BuffHandler"));
+				assertFalse(stream.contains("java.lang.reflect.Proxy"));
+				assertTrue(stream.contains(CharacterRecord.class.getName()));
+				assertEquals("Dana", serialize(record).name());
+			}
+
 			@Test
 			@DisplayName("primitives and fluent behavior")
 			void getAndSetPrimitives() {
@@ -223,6 +405,14 @@ class BuffDocumentTest {
 				);
 			}
 
+			@DisplayName("default methods with arguments on non public views")
+			@Test
+			void defaultMethodArguments() {
+				Greeter greeter = document.as(Greeter.class).withName("Dana");
+				assertEquals("Hello Dana Hello Dana", greeter.greet("Hello", 2));
+				assertEquals("", greeter.greet("Hello", 0));
+			}
+
 			@Test
 			@DisplayName("equals and hashcode")
 			void objectIdentity() {
@@ -237,6 +427,184 @@ class BuffDocumentTest {
 				assertNotEquals(record3.hashCode(), record.hashCode());
 			}
 
+			@Test
+			@DisplayName("primitive accessors")
+			void primitives() {
+				assertPrimitives(document);
+			}
+
+			@Test
+			@DisplayName("primitive reads do not allocate")
+			void primitiveAllocation() {
+				assertPrimitiveReadsDoNotAllocate(document);
+			}
+
+			@Test
+			@DisplayName("built in converters")
+			void converters() {
+				Date date = new Date();
+				Instant instant = Instant.ofEpochSecond(1_600_000_000L, 123_456_789);
+				UUID id = UUID.randomUUID();
+				Stamped stamped = document.as(Stamped.class)
+						.withDate(date)
+						.withInstant(instant)
+						.withAmount(new BigDecimal("12.50"))
+						.withId(id)
+						.withColor(Color.GREEN);
+				stamped.getColors().add(Color.RED);
+				assertEquals(date.getTime(), document.root.get("Date"));
+				assertEquals("GREEN", document.root.get("Color"));
+
+				stamped = new BuffDocument(document.toByteBuffer()).as(Stamped.class);
+				assertEquals(date, stamped.getDate());
+				assertEquals(instant, stamped.getInstant());
+				assertEquals(new BigDecimal("12.50"), stamped.getAmount());
+				assertEquals(id, stamped.getId());
+				assertEquals(Color.GREEN, stamped.getColor());
+				assertEquals(Color.RED, stamped.getColors().get(0));
+				assertEquals(Instant.MAX, stamped.withInstant(Instant.MAX).getInstant());
+			}
+
+			@Test
+			@DisplayName("converted types read legacy values")
+			void legacyConvertedValues() {
+				Date date = new Date();
+				document.root.put("Date", date);
+				document.root.put("Amount", BigDecimal.TEN);
+				assertEquals(date, document.as(Stamped.class).getDate());
+				assertEquals(BigDecimal.TEN, document.as(Stamped.class).getAmount());
+			}
+
+			@Test
+			@DisplayName("registered converters")
+			void registeredConverters() {
+				assertThrows(IllegalArgumentException.class, () -> BuffDocument.registerConverter(String.class, null));
+				assertThrows(IllegalArgumentException.class, () -> BuffDocument.registerConverter(Stamped.class, null));
+				Stamped stamped = document.as(Stamped.class);
+				BuffDocument.registerConverter(Point.class, new Converter<Point>() {
+					@Override
+					public Object toStructValue(Point value) {
+						return value.x + "," + value.y;
+					}
+
+					@Override
+					public Point fromStructValue(Object structValue) {
+						String [] xy = ((String)structValue).split(",");
+						return new Point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+					}
+				});
+				try {
+					stamped.withPoint(new Point(1, 2));
+					assertEquals("1,2", document.root.get("Point"));
+					assertEquals(2, new BuffDocument(document.toByteBuffer()).as(Stamped.class).getPoint().y);
+				} finally {
+					BuffDocument.registerConverter(Point.class, null);
+				}
+			}
+
+			@Test
+			@DisplayName("child wrappers are reused until replaced")
+			void childWrappers() {
+				record.abilityScoreList().add(document.newInstance(AbilityScore.class).withName("Wisdom"));
+				record.inventoryItems().put("belt", document.newInstance(InventoryItem.class).withName("Girdle of Giant Strength"));
+				assertSame(record.getCharacterHistory(), record.getCharacterHistory());
+				assertSame(record.abilityScoreList(), record.abilityScoreList());
+				assertSame(record.abilityScoreList().get(0), record.abilityScoreList().get(0));
+				assertSame(record.inventoryItems(), record.inventoryItems());
+				assertSame(record.inventoryItems().get("belt"), record.inventoryItems().get("belt"));
+
+				List<AbilityScore> before = record.abilityScoreList();
+				assertEquals(1, record.uncheckedAbilityScoreList().size()); // same field read as another type
+				record.abilityScores(getAbilityScores());
+				assertSame(before, record.abilityScoreList()); // array setters write in place
+				assertEquals(6, record.abilityScoreList().size());
+				assertEquals("Strength", record.abilityScoreList().get(0).name());
+
+				AbilityScore first = record.abilityScoreList().get(0);
+				record.abilityScoreList().remove(0);
+				assertNotSame(first, record.abilityScoreList().get(0));
+				assertEquals("Intellligence", record.abilityScoreList().get(0).name());
+
+				record.document().remove("InventoryItems");
+				record.document().remove("Abilities");
+				assertNotSame(before, record.abilityScoreList());
+				assertTrue(record.inventoryItems().isEmpty());
+			}
+
+			@Test
+			@DisplayName("repeated navigation does not allocate")
+			void navigationAllocation() {
+				assumeTrue(allocatedBytes() >= 0, "requires thread allocation counters");
+				record.abilityScoreList().add(document.newInstance(AbilityScore.class).withName("Wisdom"));
+				record.getCharacterHistory().records();
+				long sink = 0;
+				for (int round = 0; round < 3; round++) {
+					long start = allocatedBytes();
+					for (int i = 0; i < 100_000; i++)
+						sink += record.abilityScoreList().get(0).name().length() + record.getCharacterHistory().records().size();
+					if (allocatedBytes() - start < 1024)
+						return;
+				}
+				BuffDocumentTest.sink = sink;
+				fail("navigation allocates");
+			}
+
+			@Test
+			@DisplayName("changes are tracked by field")
+			void dirtyTracking() {
+				record.usingName("Dana").abilityScoreList().add(document.newInstance(AbilityScore.class).withName("Wisdom"));
+				BuffDocument loaded = new BuffDocument(record.document().toByteBuffer());
+				CharacterRecord copy = loaded.as(CharacterRecord.class);
+				assertEquals("Dana", copy.name());
+				assertEquals("Wisdom", copy.abilityScoreList().get(0).name());
+				assertFalse(loaded.isDirty());
+				assertSame(loaded.toByteBuffer().array(), loaded.toByteBuffer().array());
+
+				copy.abilityScoreList().get(0).withValue(18);
+				assertTrue(loaded.isDirty());
+				assertEquals(Collections.singleton("Abilities"), loaded.dirtyFields());
+				assertEquals(18, new BuffDocument(loaded.toByteBuffer()).as(CharacterRecord.class).abilityScoreList().get(0).value());
+
+				loaded.markClean();
+				assertTrue(loaded.dirtyFields().isEmpty());
+				copy.inventoryItems().put("belt", document.newInstance(InventoryItem.class).withName("Girdle of Giant Strength"));
+				copy.usingName("Bob");
+				assertEquals(new HashSet<>(Arrays.asList("InventoryItems", "Name")), loaded.dirtyFields());
+				assertTrue(new BuffDocument().isDirty());
+			}
+
+			@Test
+			@DisplayName("patches carry changed fields")
+			void patches() {
+				record.usingName("Dana").withLevel(3).abilityScoreList().add(document.newInstance(AbilityScore.class).withName("Wisdom"));
+				ByteBuffer bytes = record.document().toByteBuffer();
+				BuffDocument changed = new BuffDocument(bytes);
+				changed.as(CharacterRecord.class).withLevel(4).abilityScoreList().get(0).withValue(18);
+				changed.remove("Name");
+
+				Patch patch = new Patch(Patch.of(changed).toByteBuffer());
+				assertEquals(new HashSet<>(Arrays.asList("Level", "Abilities")), patch.setFields());
+				assertEquals(Arrays.asList("Name"), patch.removedFields());
+				assertTrue(Patch.of(new BuffDocument(bytes)).isEmpty());
+
+				BuffDocument target = new BuffDocument(bytes);
+				CharacterRecord patched = target.as(CharacterRecord.class);
+				assertEquals("Wisdom", patched.abilityScoreList().get(0).name());
+				patch.applyTo(target);
+				assertNull(patched.name());
+				assertEquals(4, patched.getLevel());
+				assertEquals(18, patched.abilityScoreList().get(0).value());
+				assertEquals(patch.setFields().size() + 1, target.dirtyFields().size());
+			}
+
+			@Test
+			@DisplayName("views of a class share one proxy class")
+			void proxyClassReuse() {
+				CharacterRecord record2 = new BuffDocument().as(CharacterRecord.class);
+				assertSame(record.getClass(), record2.getClass());
+				assertNotSame(record, record.document().as(CharacterRecord.class));
+			}
+
 			private AbilityScore [] getAbilityScores() {
 				String [] names = { "Strength", "Intellligence", "Wisdom", "Dexterity", "Constitution", "Charisma" };
 				Integer [] values = { 12, 17, 14, 15, 12, 17 };
@@ -263,6 +631,43 @@ class BuffDocumentTest {
 				}
 			}
 
+			@Test
+			@DisplayName("arrays reuse unchanged elements")
+			void arrayElementReuse() {
+				record.abilityScores(getAbilityScores());
+				AbilityScore [] scores = record.abilityScores();
+				assertNotSame(scores, record.abilityScores());
+				assertSame(scores[0], record.abilityScores()[0]);
+				scores[0] = null;
+				assertEquals("Strength", record.abilityScores()[0].name());
+
+				record.abilityScoreList().set(1, document.newInstance(AbilityScore.class).withName("Luck"));
+				AbilityScore [] changed = record.abilityScores();
+				assertEquals("Luck", changed[1].name());
+				assertSame(scores[2], changed[2]);
+			}
+
+			@Test
+			@DisplayName("array setters update in place")
+			void arrayInPlace() {
+				record.abilityScores(getAbilityScores());
+				Object array = ((BuffDocument)record.document()).root.get("Abilities");
+				AbilityScore [] scores = record.abilityScores();
+				scores[0].withValue(3);
+				AbilityScore [] previous = record.abilityScores(new AbilityScore [] { scores[0], scores[5] });
+				assertSame(array, ((BuffDocument)record.document()).root.get("Abilities"));
+				assertEquals(6, previous.length);
+				assertEquals("Intellligence", previous[1].name());
+				assertEquals(2, record.abilityScores().length);
+				assertEquals(3, record.abilityScores()[0].value());
+				assertEquals("Charisma", record.abilityScoreList().get(1).name());
+
+				record.abilityScores(getAbilityScores());
+				assertEquals(6, record.abilityScoreList().size());
+				record = new BuffDocument(record.document().toByteBuffer()).as(CharacterRecord.class);
+				assertEquals("Charisma", record.abilityScores()[5].name());
+			}
+
 			@Test
 			@DisplayName("typed lists") 
 			void lists() {
@@ -291,6 +696,44 @@ class BuffDocumentTest {
 				
 			}
 			
+			@Test
+			@DisplayName("lists split evenly for parallel streams")
+			void listSpliterator() {
+				List<AbilityScore> scores = record.abilityScoreList();
+				for (int i = 0; i < 1000; i++)
+					scores.add(document.newInstance(AbilityScore.class).withValue(i));
+				assertTrue(scores instanceof RandomAccess);
+
+				Spliterator<AbilityScore> spliterator = scores.spliterator();
+				assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED));
+				Spliterator<AbilityScore> prefix = spliterator.trySplit();
+				assertEquals(500, prefix.estimateSize());
+				assertEquals(500, spliterator.estimateSize());
+				prefix.tryAdvance(score -> assertEquals(0, score.value()));
+				spliterator.tryAdvance(score -> assertEquals(500, score.value()));
+
+				assertEquals(499500, scores.parallelStream().mapToInt(AbilityScore::value).sum());
+				assertEquals(499500, scores.stream().mapToInt(AbilityScore::value).sum());
+			}
+
+			@Test
+			@DisplayName("maps split evenly for parallel streams")
+			void mapSpliterator() {
+				Map<String, InventoryItem> items = record.inventoryItems();
+				for (int i = 0; i < 1000; i++)
+					items.put("item" + i, document.newInstance(InventoryItem.class).withName("Item " + i));
+
+				Spliterator<Map.Entry<String, InventoryItem>> spliterator = items.entrySet().spliterator();
+				assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT));
+				assertEquals(500, spliterator.trySplit().estimateSize());
+
+				assertEquals(1000, items.entrySet().parallelStream().filter(e -> e.getValue().name().equals("Item " + e.getKey().substring(4))).count());
+				assertEquals(1000, items.values().parallelStream().map(InventoryItem::name).distinct().count());
+				assertEquals(1000, items.values().size());
+				items.values().remove(items.get("item0"));
+				assertEquals(999, items.size());
+			}
+
 			@SuppressWarnings("unchecked")
 			@Test
 			@DisplayName("unchecked lists") 
@@ -341,6 +784,95 @@ class BuffDocumentTest {
 
 
 		}
+
+		@Nested
+		@DisplayName("runtime generated views")
+		class RuntimeGeneratedViews {
+
+			@BeforeEach
+			void init() {
+				document.setViewStrategy(ViewStrategy.RUNTIME_GENERATED);
+			}
+
+			@Test
+			@DisplayName("replace proxies")
+			void generated() {
+				CharacterRecord record = document.as(CharacterRecord.class);
+				assertTrue(record instanceof GeneratedView);
+				BuffDocument other = new BuffDocument();
+				other.setViewStrategy(ViewStrategy.RUNTIME_GENERATED);
+				assertSame(record.getClass(), other.as(CharacterRecord.class).getClass());
+				assertFalse(Proxy.isProxyClass(record.getClass()));
+			}
+
+			@Test
+			@DisplayName("can be selected per document")
+			void strategy() {
+				assertEquals(ViewStrategy.RUNTIME_GENERATED, document.getViewStrategy());
+				document.setViewStrategy(ViewStrategy.PROXY);
+				assertTrue(Proxy.isProxyClass(document.as(CharacterRecord.class).getClass()));
+				document.setViewStrategy(null);
+				assertEquals(BuffDocument.getDefaultViewStrategy(), document.getViewStrategy());
+			}
+
+			@Test
+			@DisplayName("behave as proxies")
+			void behaviour() {
+				CharacterRecord record = document.as(CharacterRecord.class);
+				assertEquals(record, record.usingName("Dana"));
+				assertEquals("Dana", record.name("Dana2"));
+				assertEquals(record, record.withLevel(20));
+				record.setAge(BigDecimal.TEN);
+				assertEquals(BigDecimal.TEN, record.getAge());
+				assertEquals("Dana2, Level 20 Software Engineer", record.characterClass("Software Engineer").sheetHeader());
+				assertThrows(RuntimeException.class, () -> record.unrecognizedMethod());
+				assertEquals(record, record.document().as(CharacterRecord.class));
+				assertEquals(record.hashCode(), record.document().hashCode());
+
+				record.inventoryItems().put("belt", document.newInstance(InventoryItem.class).withName("Girdle of Giant Strength"));
+				assertTrue(record.inventoryItems().get("belt") instanceof GeneratedView);
+				assertEquals("Girdle of Giant Strength", record.inventoryItems().get("belt").name());
+			}
+
+			@Test
+			@DisplayName("primitive accessors")
+			void primitives() {
+				assertTrue(document.as(Counter.class) instanceof GeneratedView);
+				assertPrimitives(document);
+			}
+
+			@Test
+			@DisplayName("primitive reads do not allocate")
+			void primitiveAllocation() {
+				assertPrimitiveReadsDoNotAllocate(document);
+			}
+
+			@Test
+			@DisplayName("on non public views")
+			void nonPublic() {
+				Greeter greeter = document.as(Greeter.class).withName("Dana");
+				// Java 8 cannot define a class beside a non public interface, so falls back to the proxy:
+				boolean java8 = System.getProperty("java.specification.version").startsWith("1.");
+				assertEquals(!java8, greeter instanceof GeneratedView);
+				assertEquals("Hello Dana Hello Dana", greeter.greet("Hello", 2));
+			}
+
+			@Test
+			@DisplayName("track changes")
+			void dirtyTracking() {
+				document.markClean();
+				document.as(CharacterRecord.class).usingName("Dana");
+				assertEquals(Collections.singleton("Name"), document.dirtyFields());
+			}
+
+			@Test
+			@DisplayName("serialize as their view interface")
+			void serializes() throws IOException, ClassNotFoundException {
+				CharacterRecord record = document.as(CharacterRecord.class).usingName("Dana");
+				record = serialize(record);
+				assertEquals("Dana", record.name());
+			}
+		}
 	}
 
 	
@@ -0,0 +1,65 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.theunknowablebits.proxamic.exampledata.AbilityScore;
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+
+@DisplayName("DocumentCodec")
+class DocumentCodecTest {
+
+	DocumentCodec codec = new DocumentCodec();
+
+	@Test
+	@DisplayName("round trips documents")
+	void documents() throws IOException {
+		List<Document> documents = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			documents.add(new BuffDocument().as(CharacterRecord.class).usingName("Character " + i).document());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.writeDocuments(out, documents);
+
+		List<Document> read = codec.readDocuments(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(10, read.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals("Character " + i, read.get(i).as(CharacterRecord.class).name());
+	}
+
+	@Test
+	@DisplayName("round trips views of mixed classes")
+	void views() throws IOException, ClassNotFoundException {
+		List<DocumentView> views = Arrays.asList(
+				new BuffDocument().as(CharacterRecord.class).usingName("Dana"),
+				new BuffDocument().as(AbilityScore.class).withName("Wisdom"),
+				new BuffDocument().as(CharacterRecord.class).usingName("Bob"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.writeViews(out, views);
+
+		List<DocumentView> read = codec.readViews(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(3, read.size());
+		assertEquals("Dana", ((CharacterRecord)read.get(0)).name());
+		assertEquals("Wisdom", ((AbilityScore)read.get(1)).name());
+		assertEquals("Bob", ((CharacterRecord)read.get(2)).name());
+		assertTrue(read.get(2) instanceof CharacterRecord);
+	}
+
+	@Test
+	@DisplayName("rejects other streams")
+	void corrupt() {
+		assertThrows(StreamCorruptedException.class, () -> codec.readDocuments(new ByteArrayInputStream(new byte[16])));
+	}
+
+}
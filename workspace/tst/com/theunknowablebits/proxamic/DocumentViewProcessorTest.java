@@ -0,0 +1,88 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+@DisplayName("DocumentViewProcessor")
+class DocumentViewProcessorTest {
+
+	private static final String SOURCE =
+			"package generated.views;\n" +
+			"import java.util.List;\n" +
+			"import com.theunknowablebits.proxamic.*;\n" +
+			"public interface Spell extends DocumentView {\n" +
+			"	@Getter(\"Name\") String name();\n" +
+			"	@Setter(\"Name\") Spell withName(String name);\n" +
+			"	Integer getLevel();\n" +
+			"	Integer setLevel(Integer level);\n" +
+			"	int getPages();\n" +
+			"	int setPages(int pages);\n" +
+			"	@Getter(\"Components\") List<String> components();\n" +
+			"	default String describe() { return name() + \" (\" + getLevel() + \")\"; }\n" +
+			"}\n";
+
+	Path dir;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		dir = Files.createTempDirectory("proxamic");
+	}
+
+	@Test
+	@DisplayName("generated views replace proxies")
+	void generatedViews() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assumeTrue(compiler != null, "requires a JDK");
+
+		Path source = dir.resolve("generated/views/Spell.java");
+		Files.createDirectories(source.getParent());
+		Files.write(source, SOURCE.getBytes(StandardCharsets.UTF_8));
+		List<String> arguments = Arrays.asList(
+				"-d", dir.toString(),
+				"-classpath", System.getProperty("java.class.path"),
+				"-processor", DocumentViewProcessor.class.getName(),
+				source.toString());
+		assertEquals(0, compiler.run(null, null, null, arguments.toArray(new String[0])));
+		assertTrue(new File(dir.toFile(), "generated/views/Spell$BuffView.class").exists());
+
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, getClass().getClassLoader())) {
+			@SuppressWarnings("unchecked")
+			Class<? extends DocumentView> spellClass = (Class<? extends DocumentView>)loader.loadClass("generated.views.Spell");
+			BuffDocument document = new BuffDocument();
+			DocumentView spell = document.as(spellClass);
+			assertTrue(spell instanceof GeneratedView);
+			assertSame(document, spell.document());
+
+			assertSame(spell, spellClass.getMethod("withName", String.class).invoke(spell, "Fireball"));
+			assertNull(spellClass.getMethod("setLevel", Integer.class).invoke(spell, 3));
+			assertEquals(3, spellClass.getMethod("setLevel", Integer.class).invoke(spell, 4));
+			assertEquals("Fireball (4)", spellClass.getMethod("describe").invoke(spell));
+			assertEquals(0, spellClass.getMethod("getPages").invoke(spell));
+			assertEquals(0, spellClass.getMethod("setPages", int.class).invoke(spell, 12));
+			assertEquals(12, spellClass.getMethod("getPages").invoke(spell));
+			assertEquals(0, ((List<?>)spellClass.getMethod("components").invoke(spell)).size());
+			assertEquals(spell, document.as(spellClass));
+		}
+	}
+
+}
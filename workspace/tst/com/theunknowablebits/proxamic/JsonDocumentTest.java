@@ -0,0 +1,199 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.theunknowablebits.proxamic.exampledata.AbilityScore;
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+import com.theunknowablebits.proxamic.exampledata.InventoryItem;
+
+@DisplayName("JsonDocument")
+class JsonDocumentTest {
+
+	static final String TEXT =
+			"{ \"Name\": \"Dana\", \"Level\": 25, \"Class\": \"Software Engineer\",\n" +
+			"  \"Age\": \"42.5\",\n" +
+			"  \"Abilities\": [ { \"Name\": \"Wisdom\", \"Value\": 18 }, { \"Name\": \"Str\\\"ength\", \"Value\": 9 } ],\n" +
+			"  \"InventoryItems\": { \"belt\": { \"Name\": \"Girdle of Giant Strength\" } } }";
+
+	static JsonDocument json(String text) {
+		return new JsonDocument(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	@DisplayName("reads views")
+	void views() {
+		CharacterRecord record = json(TEXT).as(CharacterRecord.class);
+		assertEquals("Dana, Level 25 Software Engineer", record.sheetHeader());
+		assertEquals(new BigDecimal("42.5"), record.getAge());
+		assertEquals(2, record.abilityScoreList().size());
+		assertEquals("Str\"ength", record.abilityScores()[1].name());
+		assertEquals(18, record.abilityScoreList().get(0).value());
+		assertEquals("Girdle of Giant Strength", record.inventoryItems().get("belt").name());
+	}
+
+	@Test
+	@DisplayName("encodes untouched fields as they were read")
+	void splicing() {
+		JsonDocument document = json(TEXT);
+		CharacterRecord record = document.as(CharacterRecord.class);
+		assertEquals("Dana", record.name());
+		assertFalse(document.isDirty());
+		assertEquals(TEXT, document.toString());
+
+		record.withLevel(26).abilityScoreList().get(1).withValue(10);
+		document.remove("Class");
+		record.inventoryItems().put("hat", document.newInstance(InventoryItem.class).withName("Hat"));
+		assertTrue(document.isDirty());
+		String text = document.toString();
+		assertTrue(text.startsWith("{\"Name\": \"Dana\",\"Level\":26,\"Age\": \"42.5\","), text);
+		assertTrue(text.contains("{\"Name\":\"Str\\\"ength\",\"Value\":10}"), text);
+
+		CharacterRecord read = json(text).as(CharacterRecord.class);
+		assertEquals(26, read.getLevel());
+		assertNull(read.characterClass());
+		assertEquals(10, read.abilityScoreList().get(1).value());
+		assertEquals("Hat", read.inventoryItems().get("hat").name());
+		assertEquals(text, json(text).toString());
+	}
+
+	@Test
+	@DisplayName("tracks changes by field")
+	void dirtyTracking() {
+		JsonDocument document = json(TEXT);
+		document.as(CharacterRecord.class).abilityScoreList().get(0).withValue(19);
+		assertEquals(Collections.singleton("Abilities"), document.dirtyFields());
+		document.markClean();
+		assertFalse(document.isDirty());
+		assertTrue(new JsonDocument().isDirty());
+	}
+
+	@Test
+	@DisplayName("builds new documents")
+	void newDocuments() {
+		JsonDocument document = new JsonDocument();
+		CharacterRecord record = document.as(CharacterRecord.class).usingName("Dana\n").withLevel(3);
+		record.abilityScores(new AbilityScore[] { document.newInstance(AbilityScore.class).withName("Wisdom").withValue(18) });
+		assertEquals("{\"Name\":\"Dana\\n\",\"Level\":3,\"Abilities\":[{\"Name\":\"Wisdom\",\"Value\":18}]}", document.toString());
+		assertThrows(IllegalArgumentException.class, () -> record.abilityScoreList().add(new BuffDocument().as(AbilityScore.class)));
+	}
+
+	@Test
+	@DisplayName("copies views that belong to other documents")
+	void sharedViews() {
+		JsonDocument document = new JsonDocument(), other = new JsonDocument();
+		CharacterRecord record = document.as(CharacterRecord.class);
+		record.abilityScores(new AbilityScore[] { document.newInstance(AbilityScore.class).withName("Wisdom").withValue(18) });
+		CharacterRecord copy = other.as(CharacterRecord.class);
+		copy.abilityScores(new AbilityScore[] { record.abilityScores()[0] });
+		other.markClean();
+
+		record.abilityScores()[0].withValue(5);
+		assertFalse(other.isDirty());
+		assertEquals(18, copy.abilityScores()[0].value());
+		assertEquals(18, json(other.toString()).as(CharacterRecord.class).abilityScores()[0].value());
+		assertEquals(5, json(document.toString()).as(CharacterRecord.class).abilityScores()[0].value());
+
+		// nor do projections share with their source:
+		CharacterRecord projected = document.project("Abilities").as(CharacterRecord.class);
+		record.abilityScores()[0].withValue(6);
+		assertEquals(5, projected.abilityScores()[0].value());
+	}
+
+	@Test
+	@DisplayName("rejects malformed text")
+	void malformed() {
+		assertThrows(IllegalArgumentException.class, () -> json("{ \"Name\": \"Dana\" ").as(CharacterRecord.class).name());
+		assertThrows(IllegalArgumentException.class, () -> json("{ \"Level\": 2x }").as(CharacterRecord.class).getLevel());
+	}
+
+	@Test
+	@DisplayName("projects without reading other fields")
+	void projection() {
+		JsonDocument document = json("{ \"Name\": \"Dana\", \"Level\": 25, \"Class\": [1, 2x] }");
+		CharacterRecord record = document.project("Name", "Level").as(CharacterRecord.class);
+		assertEquals("Dana, Level 25 null", record.sheetHeader());
+		assertFalse(record.document().isDirty());
+		assertThrows(IllegalArgumentException.class, () -> document.as(CharacterRecord.class).characterClass());
+	}
+
+	@Test
+	@DisplayName("plugs into stores")
+	void stores() {
+		MemoryDocumentStore store = new MemoryDocumentStore(JsonDocument::new, JsonDocument::new);
+		store.put(store.newInstance("dana").as(CharacterRecord.class).usingName("Dana").withLevel(3));
+		CharacterRecord record = store.get(CharacterRecord.class, "dana");
+		assertTrue(record.document() instanceof JsonDocument);
+		CharacterRecord other = store.get(CharacterRecord.class, "dana");
+		store.patch(record.withLevel(4));
+		assertEquals(4, store.get(CharacterRecord.class, "dana").getLevel());
+		assertThrows(ConcurrentModificationException.class, () -> store.put(other.withLevel(5)));
+	}
+
+	@Test
+	@DisplayName("serializes")
+	void serializes() throws IOException, ClassNotFoundException {
+		CharacterRecord record = json(TEXT).as(CharacterRecord.class);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(record);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			assertEquals("Dana", ((CharacterRecord)in.readObject()).name());
+		}
+	}
+
+	@Test
+	@DisplayName("stores the edits of deserialized documents")
+	void storesDeserialized() throws IOException, ClassNotFoundException {
+		MemoryDocumentStore store = new MemoryDocumentStore(JsonDocument::new, JsonDocument::new);
+		store.put(store.newInstance("dana").as(CharacterRecord.class).usingName("Dana").withLevel(3));
+		store.put(serialized(store.get(CharacterRecord.class, "dana").withLevel(4)));
+		assertEquals(4, store.get(CharacterRecord.class, "dana").getLevel());
+		store.patch(serialized(store.get(CharacterRecord.class, "dana").usingName("Bob")));
+		assertEquals("Bob", store.get(CharacterRecord.class, "dana").name());
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T serialized(T record) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(record);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (T)in.readObject();
+		}
+	}
+
+	@Test
+	@DisplayName("transcodes to and from BuffDocument")
+	void transcoding() {
+		BuffDocument buff = json(TEXT).toBuffDocument();
+		CharacterRecord record = buff.as(CharacterRecord.class);
+		assertEquals("Dana", record.name());
+		assertEquals("Wisdom", record.abilityScoreList().get(0).name());
+		assertEquals("Girdle of Giant Strength", record.inventoryItems().get("belt").name());
+
+		JsonDocument json = JsonDocument.transcode(buff);
+		assertEquals(25, json.as(CharacterRecord.class).getLevel());
+		assertEquals("Str\"ength", json.as(CharacterRecord.class).abilityScoreList().get(1).name());
+	}
+
+}
@@ -8,7 +8,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.List;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -133,7 +136,41 @@ class LocalDocumentStoreTest {
 			
 			
 		}
+
+		@Test
+		@DisplayName("patch")
+		void testPatch() {
+			docStore.patch(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").characterClass("SoftwareEngineer"));
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class, "danas character");
+			CharacterRecord other = docStore.get(CharacterRecord.class, "danas character");
+
+			// only the changed fields are written:
+			docStore.patch(retrieved.withLevel(25));
+			retrieved.document().remove("Class");
+			docStore.patch(retrieved);
+			CharacterRecord patched = docStore.get(CharacterRecord.class, "danas character");
+			assertEquals("Dananator", patched.name());
+			assertEquals(25, patched.getLevel());
+			assertNull(patched.characterClass());
+
+			// patches are checked against the version they were read at:
+			assertThrows(ConcurrentModificationException.class, () -> docStore.patch(other.usingName("Bob")));
+		}
 		
+		@Test
+		@DisplayName("projected get")
+		void testProjectedGet() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25).characterClass("SoftwareEngineer"));
+			CharacterRecord projected = docStore.get("danas character", CharacterRecord.class, "Name", "Level");
+			assertEquals("Dananator", projected.name());
+			assertEquals(25, projected.getLevel());
+			assertNull(projected.characterClass());
+			assertNull(docStore.get("nobody", CharacterRecord.class, "Name").name());
+
+			// projections are detached from the store:
+			assertThrows(IllegalArgumentException.class, () -> docStore.put(projected.withLevel(26)));
+		}
+
 	}
 
 	public static class DelegateDocumentStore implements DocumentStore, Serializable {
@@ -184,6 +221,183 @@ class LocalDocumentStoreTest {
 	}
 	
 	
+	@Nested
+	@DisplayName("snapshots")
+	class SnapshotReads {
+
+		@Test
+		@DisplayName("read as of when they were taken")
+		void testPointInTime() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("old character").as(CharacterRecord.class).usingName("Old"));
+			try (Snapshot snapshot = docStore.snapshot()) {
+				docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(26));
+				docStore.delete(docStore.get("old character"));
+				docStore.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New"));
+
+				assertEquals(25, snapshot.get(CharacterRecord.class, "danas character").getLevel());
+				assertEquals("Old", snapshot.get(CharacterRecord.class, "old character").name());
+				assertNull(snapshot.get(CharacterRecord.class, "new character").name());
+				assertEquals(26, docStore.get(CharacterRecord.class, "danas character").getLevel());
+				assertNull(docStore.get(CharacterRecord.class, "old character").name());
+
+				// what a snapshot reads is checked against the current version when put:
+				assertThrows(ConcurrentModificationException.class, () -> docStore.put(snapshot.get(CharacterRecord.class, "danas character").withLevel(27)));
+				try (Snapshot current = docStore.snapshot()) {
+					docStore.put(current.get(CharacterRecord.class, "danas character").withLevel(27));
+				}
+				assertEquals(27, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			}
+		}
+
+		@Test
+		@DisplayName("drop old versions as they close")
+		void testWatermark() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			docStore.put(docStore.newInstance("old character").as(CharacterRecord.class).usingName("Old"));
+			Snapshot first = docStore.snapshot();
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(1));
+			Snapshot second = docStore.snapshot();
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(2));
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(3));
+			docStore.delete(docStore.get("old character"));
+			// versions are kept back to the one the oldest snapshot reads:
+			assertEquals(4, docStore.versions("danas character"));
+			assertEquals(2, docStore.versions("old character"));
+
+			first.close();
+			assertEquals(3, docStore.versions("danas character"));
+			assertEquals(1, second.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals("Old", second.get(CharacterRecord.class, "old character").name());
+			second.close();
+			second.close();
+			assertEquals(1, docStore.versions("danas character"));
+			assertEquals(0, docStore.versions("old character"));
+			assertThrows(IllegalStateException.class, () -> second.get("danas character"));
+
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(4));
+			assertEquals(1, docStore.versions("danas character"));
+		}
+
+		@Test
+		@DisplayName("repeat reads while writers run")
+		void testRepeatableReads() throws InterruptedException {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(0));
+			Thread writer = new Thread(() -> {
+				for (int i = 1; i <= 2000; i++)
+					docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(i));
+			});
+			writer.start();
+			while (writer.isAlive()) {
+				try (Snapshot snapshot = docStore.snapshot()) {
+					int level = snapshot.get(CharacterRecord.class, "danas character").getLevel();
+					for (int i = 0; i < 10; i++)
+						assertEquals(level, snapshot.get(CharacterRecord.class, "danas character").getLevel());
+				}
+			}
+			writer.join();
+			assertEquals(2000, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals(1, docStore.versions("danas character"));
+		}
+	}
+
+	@Nested
+	@DisplayName("batches")
+	class Batches {
+
+		@Test
+		@DisplayName("apply all or nothing")
+		void testAtomic() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("bobs character").as(CharacterRecord.class).usingName("Bobinator"));
+			CharacterRecord stale = docStore.get(CharacterRecord.class, "danas character");
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(26));
+
+			CharacterRecord bob = docStore.get(CharacterRecord.class, "bobs character");
+			Batch conflicting = new Batch()
+					.put(bob.usingName("Bob").document())
+					.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New").document())
+					.put(stale.withLevel(27).document());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.apply(conflicting));
+			assertEquals("Bobinator", docStore.get(CharacterRecord.class, "bobs character").name());
+			assertNull(docStore.get(CharacterRecord.class, "new character").name());
+			assertEquals(26, docStore.get(CharacterRecord.class, "danas character").getLevel());
+
+			docStore.apply(new Batch()
+					.put(bob.document())
+					.patch(docStore.get(CharacterRecord.class, "danas character").withLevel(27).document())
+					.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New").document()));
+			assertEquals("Bob", docStore.get(CharacterRecord.class, "bobs character").name());
+			assertEquals(27, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			docStore.put(bob.withLevel(3));
+
+			docStore.deleteAll(Arrays.asList(docStore.get("bobs character"), docStore.get("new character")));
+			assertNull(docStore.get(CharacterRecord.class, "bobs character").name());
+			assertNull(docStore.get(CharacterRecord.class, "new character").name());
+		}
+
+		@Test
+		@DisplayName("respect locks")
+		void testLocks() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			CharacterRecord locked = docStore.lock(CharacterRecord.class, "danas character");
+			Batch batch = new Batch().put(docStore.get(CharacterRecord.class, "danas character").withLevel(1).document());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.apply(batch));
+			docStore.apply(new Batch().put(locked.withLevel(2).document()));
+			assertEquals(2, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertNotNull(docStore.lock("danas character"));
+		}
+
+		@Test
+		@DisplayName("commit concurrent transactions together")
+		void testConcurrentCommits() throws InterruptedException {
+			docStore.put(docStore.newInstance("counter").as(CharacterRecord.class).withLevel(0));
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				threads.add(new Thread(() -> {
+					for (int i = 0; i < 100; i++) {
+						int n = i;
+						// the counter is locked while a transaction holds it, so others retry:
+						for (boolean committed = false; !committed; ) {
+							try {
+								docStore.transact(store -> {
+									CharacterRecord counter = store.get(CharacterRecord.class, "counter");
+									counter.setLevel(counter.getLevel() + 1);
+									store.put(counter);
+									store.put(store.newInstance(CharacterRecord.class, "character " + thread + " " + n).usingName("Character"));
+								});
+								committed = true;
+							} catch (ConcurrentModificationException e) {
+								Thread.yield();
+							}
+						}
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread thread: threads)
+				thread.join();
+			assertEquals(400, docStore.get(CharacterRecord.class, "counter").getLevel());
+			assertEquals("Character", docStore.get(CharacterRecord.class, "character 3 99").name());
+		}
+
+		@Test
+		@DisplayName("conflicting transactions write nothing")
+		void testConflictingTransaction() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			assertThrows(ConcurrentModificationException.class, () -> docStore.transact(store -> {
+				store.put(store.get(CharacterRecord.class, "danas character").withLevel(30));
+				store.put(store.newInstance(CharacterRecord.class, "new character").usingName("New"));
+				docStore.put(docStore.newInstance(CharacterRecord.class, "new character").usingName("Meanwhile"));
+			}));
+			assertNull(docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals("Meanwhile", docStore.get(CharacterRecord.class, "new character").name());
+			// the transaction's locks are released:
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(31));
+		}
+	}
+
 	@Nested
 	@DisplayName("serialization")
 	class Serialization {
@@ -329,6 +543,49 @@ class LocalDocumentStoreTest {
 			assertEquals("Dananator", docStore.get(CharacterRecord.class, "danas character").name());
 			
 		}
+
+		@Test
+		@DisplayName("optimistic reads take no locks")
+		public void optimisticReads() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			docStore.transactOptimistically((tDocStore)->{
+				CharacterRecord read = tDocStore.get(CharacterRecord.class, "danas character");
+				CharacterRecord other = tDocStore.get(CharacterRecord.class, "other character");
+				// others can lock, and write what the transaction does not depend on:
+				docStore.release(docStore.lock("danas character"));
+				tDocStore.put(other.withLevel(read.getLevel() + 1));
+			});
+			assertEquals(26, docStore.get(CharacterRecord.class, "other character").getLevel());
+			docStore.release(docStore.lock("other character"));
+		}
+
+		@Test
+		@DisplayName("optimistic conflicts write nothing")
+		public void optimisticConflicts() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			TransactionConflictException conflict = assertThrows(TransactionConflictException.class, () -> {
+				docStore.transactOptimistically((tDocStore)->{
+					CharacterRecord read = tDocStore.get(CharacterRecord.class, "danas character");
+					docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(30));
+					tDocStore.put(tDocStore.get(CharacterRecord.class, "other character").withLevel(read.getLevel() + 1));
+				});
+			});
+			assertTrue(conflict instanceof ConcurrentModificationException);
+			assertEquals(1, docStore.get(CharacterRecord.class, "other character").getLevel());
+
+			// explicit locks are still held, and released:
+			docStore.transactOptimistically((tDocStore)->{
+				CharacterRecord locked = tDocStore.lock(CharacterRecord.class, "danas character");
+				assertThrows(ConcurrentModificationException.class, () -> docStore.lock("danas character"));
+				tDocStore.put(tDocStore.get(CharacterRecord.class, "other character").withLevel(locked.getLevel() + 1));
+			});
+			assertEquals(31, docStore.get(CharacterRecord.class, "other character").getLevel());
+			docStore.release(docStore.lock("danas character"));
+		}
 	
 	}
 	
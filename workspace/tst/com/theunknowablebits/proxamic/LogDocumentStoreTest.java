@@ -0,0 +1,378 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+
+@DisplayName("LogDocumentStore")
+class LogDocumentStoreTest {
+
+	Path directory;
+	LogDocumentStore docStore;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		directory = Files.createTempDirectory("proxamic");
+		docStore = new LogDocumentStore(directory);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		docStore.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file: files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(file);
+		}
+	}
+
+	LogDocumentStore reopen() {
+		docStore.close();
+		return docStore = new LogDocumentStore(directory);
+	}
+
+	List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.toString().endsWith(".segment")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Nested
+	@DisplayName("basic operations")
+	class BasicOperations {
+
+		@Test
+		@DisplayName("crud")
+		void testCrud() {
+			CharacterRecord otherRecord = docStore.get(CharacterRecord.class, "danas character");
+			CharacterRecord characterRecord = docStore.newInstance("danas character").as(CharacterRecord.class);
+			docStore.put(characterRecord.usingName("Dananator").characterClass("SoftwareEngineer").withLevel(25));
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class,"danas character");
+			assertEquals("Dananator", retrieved.name() );
+			assertNotSame(characterRecord, retrieved);
+			assertEquals("Dananator", docStore.get("danas character", CharacterRecord.class, "Name").name());
+			assertThrows( ConcurrentModificationException.class, () -> docStore.put(docStore.newInstance(CharacterRecord.class,"danas character")) );
+			assertThrows( ConcurrentModificationException.class, () -> docStore.delete(otherRecord) );
+			docStore.delete(characterRecord);
+			assertThrows( ConcurrentModificationException.class, () -> docStore.put(characterRecord) );
+			docStore.put(otherRecord);
+		}
+
+		@Test
+		@DisplayName("lock and release")
+		void testLockRelease() {
+			final CharacterRecord characterRecord = docStore.newInstance("danas character").as(CharacterRecord.class);
+			docStore.put(characterRecord.usingName("Dananator"));
+			CharacterRecord retrieved = docStore.lock(CharacterRecord.class,"danas character");
+			assertThrows(ConcurrentModificationException.class,()->docStore.put(characterRecord));
+			assertThrows(ConcurrentModificationException.class, ()->docStore.lock(CharacterRecord.class, "danas character"));
+			docStore.put(retrieved.usingName("Locked"));
+			assertEquals("Locked", docStore.lock(CharacterRecord.class, "danas character").name());
+
+			// locking a missing key holds it without storing anything:
+			CharacterRecord missing = docStore.lock(CharacterRecord.class, "missing");
+			assertNull(docStore.get(CharacterRecord.class, "missing").name());
+			docStore.put(missing.usingName("Found"));
+			assertEquals("Found", docStore.get(CharacterRecord.class, "missing").name());
+		}
+	}
+
+	@Nested
+	@DisplayName("durability")
+	class Durability {
+
+		@Test
+		@DisplayName("survives reopening")
+		void testReopen() {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana").withLevel(25));
+			docStore.put(docStore.newInstance("bob").as(CharacterRecord.class).usingName("Bob"));
+			CharacterRecord stale = docStore.get(CharacterRecord.class, "dana");
+			docStore.put(docStore.get(CharacterRecord.class, "dana").withLevel(26));
+			docStore.delete(docStore.get(CharacterRecord.class, "bob"));
+
+			reopen();
+			CharacterRecord dana = docStore.get(CharacterRecord.class, "dana");
+			assertEquals(26, dana.getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "bob").name());
+			assertThrows(IllegalStateException.class, () -> new LogDocumentStore(directory));
+
+			// versions carry over:
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(stale.withLevel(1)));
+			docStore.put(dana.withLevel(27));
+			assertEquals(27, reopen().get(CharacterRecord.class, "dana").getLevel());
+		}
+
+		@Test
+		@DisplayName("cuts off a torn entry")
+		void testTornEntry() throws IOException {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana"));
+			docStore.put(docStore.newInstance("bob").as(CharacterRecord.class).usingName("Bob"));
+			docStore.close();
+			Path newest = segments().get(segments().size() - 1);
+			try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+				channel.truncate(channel.size() - 3);
+				channel.write(ByteBuffer.wrap(new byte[] { 1, 2 }), channel.size());
+			}
+
+			docStore = new LogDocumentStore(directory);
+			assertEquals("Dana", docStore.get(CharacterRecord.class, "dana").name());
+			assertNull(docStore.get(CharacterRecord.class, "bob").name());
+			docStore.put(docStore.get(CharacterRecord.class, "bob").usingName("Bob"));
+			assertEquals("Bob", reopen().get(CharacterRecord.class, "bob").name());
+		}
+
+		@Test
+		@DisplayName("rejects corruption before the newest segment")
+		void testCorruption() throws IOException {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana"));
+			Path sealed = segments().get(0);
+			reopen().close();
+			try (FileChannel channel = FileChannel.open(sealed, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.wrap(new byte[] { 0x7F }), channel.size() - 1);
+			}
+			assertThrows(java.io.UncheckedIOException.class, () -> new LogDocumentStore(directory));
+		}
+	}
+
+	@Nested
+	@DisplayName("batches")
+	class Batches {
+
+		@Test
+		@DisplayName("apply all or nothing")
+		void testAtomic() {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana").withLevel(25));
+			docStore.put(docStore.newInstance("bob").as(CharacterRecord.class).usingName("Bob"));
+			CharacterRecord stale = docStore.get(CharacterRecord.class, "dana");
+			docStore.put(docStore.get(CharacterRecord.class, "dana").withLevel(26));
+
+			CharacterRecord bob = docStore.get(CharacterRecord.class, "bob");
+			Batch conflicting = new Batch().put(bob.withLevel(1).document()).put(stale.withLevel(27).document());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.apply(conflicting));
+			assertNull(docStore.get(CharacterRecord.class, "bob").getLevel());
+
+			docStore.apply(new Batch()
+					.put(bob.document())
+					.delete(docStore.get("dana"))
+					.put(docStore.newInstance("carol").as(CharacterRecord.class).usingName("Carol").document()));
+			docStore.put(bob.withLevel(2));
+			reopen();
+			assertEquals(2, docStore.get(CharacterRecord.class, "bob").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "dana").name());
+			assertEquals("Carol", docStore.get(CharacterRecord.class, "carol").name());
+		}
+
+		@Test
+		@DisplayName("drop a torn batch whole")
+		void testTornBatch() throws IOException {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana"));
+			docStore.putAll(Arrays.asList(
+					docStore.get("dana").as(CharacterRecord.class).withLevel(1).document(),
+					docStore.newInstance("bob").as(CharacterRecord.class).usingName("Bob").document()));
+			docStore.close();
+			Path newest = segments().get(segments().size() - 1);
+			try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+				channel.truncate(channel.size() - 3);
+			}
+
+			docStore = new LogDocumentStore(directory);
+			assertEquals("Dana", docStore.get(CharacterRecord.class, "dana").name());
+			assertNull(docStore.get(CharacterRecord.class, "dana").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "bob").name());
+		}
+
+		@Test
+		@DisplayName("commits concurrent batches together")
+		void testGroupCommit() throws InterruptedException {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int thread = t;
+				threads.add(new Thread(() -> {
+					for (int i = 0; i < 50; i++)
+						docStore.apply(new Batch()
+								.put(docStore.newInstance("character " + thread + " " + i).as(CharacterRecord.class).withLevel(i).document())
+								.put(docStore.newInstance("other " + thread + " " + i).as(CharacterRecord.class).withLevel(i).document()));
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread thread: threads)
+				thread.join();
+			reopen();
+			for (int t = 0; t < 8; t++)
+				assertEquals(49, docStore.get(CharacterRecord.class, "other " + t + " 49").getLevel());
+		}
+	}
+
+	@Nested
+	@DisplayName("compaction")
+	class Compaction {
+
+		@Test
+		@DisplayName("keeps its output when nothing was written since the last")
+		void testRepeatedCompaction() throws IOException {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana"));
+			docStore.compact();
+			assertEquals(0, docStore.compact());
+			docStore.put(docStore.newInstance("bob").as(CharacterRecord.class).usingName("Bob"));
+			docStore.compact();
+			docStore.compact();
+			reopen();
+			assertEquals("Dana", docStore.get(CharacterRecord.class, "dana").name());
+			assertEquals("Bob", docStore.get(CharacterRecord.class, "bob").name());
+		}
+
+		@Test
+		@DisplayName("reclaims superseded records")
+		void testCompact() throws IOException {
+			docStore.setSegmentSize(4096);
+			for (int round = 0; round < 10; round++)
+				for (int i = 0; i < 50; i++) {
+					CharacterRecord character = docStore.get(CharacterRecord.class, "character " + i);
+					docStore.put(character.usingName("Character " + i).withLevel(round));
+				}
+			for (int i = 0; i < 50; i += 2)
+				docStore.delete(docStore.get(CharacterRecord.class, "character " + i));
+			CharacterRecord locked = docStore.lock(CharacterRecord.class, "character 1");
+			int before = segments().size();
+			assertTrue(before > 2);
+
+			assertTrue(docStore.compact() > 0);
+			assertEquals(2, segments().size());
+			for (int i = 1; i < 50; i += 2)
+				assertEquals(9, docStore.get(CharacterRecord.class, "character " + i).getLevel());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(docStore.get(CharacterRecord.class, "character 1").withLevel(0)));
+			docStore.put(locked.withLevel(10));
+
+			reopen();
+			assertEquals(10, docStore.get(CharacterRecord.class, "character 1").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "character 2").name());
+			assertEquals(9, docStore.get(CharacterRecord.class, "character 3").getLevel());
+		}
+
+		@Test
+		@DisplayName("runs alongside writes")
+		void testConcurrentCompaction() throws InterruptedException {
+			docStore.setSegmentSize(8192);
+			docStore.setSync(LogDocumentStore.Sync.NEVER, 0);
+			List<Thread> writers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int thread = t;
+				writers.add(new Thread(() -> {
+					for (int round = 0; round < 50; round++)
+						for (int i = thread; i < 40; i += 4) {
+							CharacterRecord character = docStore.get(CharacterRecord.class, "character " + i);
+							docStore.put(character.usingName("Character " + i).withLevel(round));
+						}
+				}));
+			}
+			for (Thread writer: writers)
+				writer.start();
+			while (writers.get(0).isAlive())
+				docStore.compact();
+			for (Thread writer: writers)
+				writer.join();
+			docStore.compact();
+			for (int i = 0; i < 40; i++)
+				assertEquals(49, docStore.get(CharacterRecord.class, "character " + i).getLevel());
+			reopen();
+			for (int i = 0; i < 40; i++)
+				assertEquals(49, docStore.get(CharacterRecord.class, "character " + i).getLevel());
+		}
+	}
+
+	@Nested
+	@DisplayName("mapped segments")
+	class MappedSegments {
+
+		@Test
+		@DisplayName("read sealed records without copying")
+		void testZeroCopy() {
+			docStore.put(docStore.newInstance("dana").as(CharacterRecord.class).usingName("Dana"));
+			assertFalse(docStore.get("dana").toByteBuffer().isDirect());
+			docStore.compact();
+			CharacterRecord dana = docStore.get(CharacterRecord.class, "dana");
+			ByteBuffer bytes = dana.document().toByteBuffer();
+			assertTrue(bytes.isDirect());
+			assertTrue(bytes.isReadOnly());
+			docStore.put(dana.withLevel(3));
+			assertEquals(3, docStore.get(CharacterRecord.class, "dana").getLevel());
+			assertEquals("Dana", docStore.get("dana", CharacterRecord.class, "Name").name());
+		}
+
+		@Test
+		@DisplayName("open from the index of the compacted segment")
+		void testIndex() throws IOException {
+			for (int i = 0; i < 2000; i++)
+				docStore.put(docStore.newInstance("character " + i).as(CharacterRecord.class).usingName("Character " + i).withLevel(i));
+			docStore.compact();
+			CharacterRecord stale = docStore.get(CharacterRecord.class, "character 7");
+			docStore.put(docStore.get(CharacterRecord.class, "character 7").withLevel(0));
+			docStore.delete(docStore.get(CharacterRecord.class, "character 8"));
+			docStore.close();
+			try (Stream<Path> files = Files.list(directory)) {
+				assertEquals(1, files.filter(file -> file.toString().endsWith(".index")).count());
+			}
+
+			docStore = new LogDocumentStore(directory);
+			assertEquals(1999, docStore.get(CharacterRecord.class, "character 1999").getLevel());
+			assertEquals(0, docStore.get(CharacterRecord.class, "character 7").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "character 8").name());
+			assertNull(docStore.get(CharacterRecord.class, "nobody").name());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(stale.withLevel(1)));
+
+			// keys only in the index can be written, deleted and locked:
+			docStore.put(docStore.get(CharacterRecord.class, "character 9").withLevel(-9));
+			docStore.delete(docStore.get(CharacterRecord.class, "character 10"));
+			CharacterRecord locked = docStore.lock(CharacterRecord.class, "character 11");
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(docStore.get(CharacterRecord.class, "character 11").withLevel(0)));
+
+			docStore.compact();
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(docStore.get(CharacterRecord.class, "character 11").withLevel(0)));
+			docStore.put(locked.withLevel(-11));
+			for (int i = 12; i < 2000; i++)
+				assertEquals(i, docStore.get(CharacterRecord.class, "character " + i).getLevel());
+
+			reopen();
+			assertEquals(-9, docStore.get(CharacterRecord.class, "character 9").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "character 10").name());
+			assertEquals(-11, docStore.get(CharacterRecord.class, "character 11").getLevel());
+			assertNull(docStore.get(CharacterRecord.class, "character 8").name());
+			assertEquals(1500, docStore.get(CharacterRecord.class, "character 1500").getLevel());
+		}
+	}
+
+	@Test
+	@DisplayName("writes and reads under each sync mode")
+	void testSyncModes() {
+		for (LogDocumentStore.Sync sync: LogDocumentStore.Sync.values()) {
+			docStore.setSync(sync, 10);
+			for (int i = 0; i < 20; i++)
+				docStore.put(docStore.newInstance(sync + " " + i).as(CharacterRecord.class).usingName("Character " + i).withLevel(i));
+			for (int i = 0; i < 20; i++)
+				assertEquals(i, docStore.get(CharacterRecord.class, sync + " " + i).getLevel());
+		}
+		reopen();
+		for (LogDocumentStore.Sync sync: LogDocumentStore.Sync.values())
+			assertEquals(19, docStore.get(CharacterRecord.class, sync + " 19").getLevel());
+	}
+
+}
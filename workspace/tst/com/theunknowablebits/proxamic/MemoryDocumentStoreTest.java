@@ -8,7 +8,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -166,7 +173,72 @@ class MemoryDocumentStoreTest {
 			
 			
 		}
+
+		@Test
+		@DisplayName("unchanged documents are not written again")
+		void testUnchangedPut() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class, "danas character");
+			CharacterRecord other = docStore.get(CharacterRecord.class, "danas character");
+			assertFalse(retrieved.document().isDirty());
+
+			// nothing is written, so other is still current:
+			docStore.put(retrieved);
+			docStore.put(other.usingName("Dana"));
+			assertFalse(other.document().isDirty());
+			assertEquals("Dana", docStore.get(CharacterRecord.class, "danas character").name());
+
+			// but retrieved is now out of date:
+			assertThrows(ConcurrentModificationException.class, () -> docStore.put(retrieved.usingName("Bob")));
+		}
+
+		@Test
+		@DisplayName("reads keep the encoding they were read from")
+		void testKeptEncoding() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			// the stored copy carries its key and version, so neither read is changed and both share its bytes:
+			assertSame(docStore.get("danas character").toByteBuffer().array(), docStore.get("danas character").toByteBuffer().array());
+			try (Snapshot snapshot = docStore.snapshot()) {
+				assertSame(docStore.get("danas character").toByteBuffer().array(), snapshot.get("danas character").toByteBuffer().array());
+			}
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(2));
+			assertEquals(2, docStore.get(CharacterRecord.class, "danas character").getLevel());
+		}
+
+		@Test
+		@DisplayName("patch")
+		void testPatch() {
+			docStore.patch(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").characterClass("SoftwareEngineer"));
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class, "danas character");
+			CharacterRecord other = docStore.get(CharacterRecord.class, "danas character");
+
+			// only the changed fields are written:
+			docStore.patch(retrieved.withLevel(25));
+			retrieved.document().remove("Class");
+			docStore.patch(retrieved);
+			CharacterRecord patched = docStore.get(CharacterRecord.class, "danas character");
+			assertEquals("Dananator", patched.name());
+			assertEquals(25, patched.getLevel());
+			assertNull(patched.characterClass());
+
+			// patches are checked against the version they were read at:
+			assertThrows(ConcurrentModificationException.class, () -> docStore.patch(other.usingName("Bob")));
+		}
 		
+		@Test
+		@DisplayName("projected get")
+		void testProjectedGet() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25).characterClass("SoftwareEngineer"));
+			CharacterRecord projected = docStore.get("danas character", CharacterRecord.class, "Name", "Level");
+			assertEquals("Dananator", projected.name());
+			assertEquals(25, projected.getLevel());
+			assertNull(projected.characterClass());
+			assertNull(docStore.get("nobody", CharacterRecord.class, "Name").name());
+
+			// projections are detached from the store:
+			assertThrows(IllegalArgumentException.class, () -> docStore.put(projected.withLevel(26)));
+		}
+
 	}
 
 	public static class DelegateDocumentStore implements DocumentStore, Serializable {
@@ -217,6 +289,381 @@ class MemoryDocumentStoreTest {
 	}
 	
 	
+	@Nested
+	@DisplayName("off heap storage")
+	class OffHeapStorage {
+		SlabAllocator slabs;
+
+		@BeforeEach
+		void setUp() {
+			slabs = new SlabAllocator(64 * 1024, 4096);
+			docStore.setSlabAllocator(slabs);
+		}
+
+		@Test
+		@DisplayName("crud")
+		void testCrud() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class, "danas character");
+			assertEquals("Dananator", retrieved.name());
+			assertEquals("Dananator", docStore.get("danas character", CharacterRecord.class, "Name").name());
+			docStore.patch(retrieved.withLevel(26));
+			assertEquals(26, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertTrue(slabs.records() >= 1);
+			docStore.delete(docStore.get(CharacterRecord.class, "danas character"));
+			assertNull(docStore.get(CharacterRecord.class, "danas character").name());
+			assertThrows(IllegalStateException.class, () -> docStore.setSlabAllocator(slabs));
+		}
+
+		@Test
+		@DisplayName("keeps slots that are still being read")
+		void testLeases() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			CharacterRecord first = docStore.get(CharacterRecord.class, "danas character");
+			for (int i = 0; i < 20; i++) {
+				CharacterRecord current = docStore.get(CharacterRecord.class, "danas character");
+				docStore.put(current.usingName("Dananator " + i));
+			}
+			assertEquals("Dananator", first.document().as(CharacterRecord.class).name());
+			assertEquals("Dananator 19", docStore.get(CharacterRecord.class, "danas character").name());
+		}
+
+		@Test
+		@DisplayName("encodes read documents to the heap, not to their slots")
+		void testEncodingOutlivesLease() {
+			docStore.put(docStore.newInstance("k1").as(CharacterRecord.class).usingName("first"));
+			ByteBuffer held = docStore.get("k1").toByteBuffer();
+			assertFalse(held.isDirect());
+			docStore.delete(docStore.get("k1"));
+			for (int i = 0; i < 3; i++)
+				System.gc();
+			for (int i = 0; i < 50; i++)
+				docStore.put(docStore.get(CharacterRecord.class, "k2").usingName("second " + i));
+			assertEquals("first", new BuffDocument(held).as(CharacterRecord.class).name());
+		}
+
+		@Test
+		@DisplayName("never reads a reused slot through a stale handle")
+		void testStaleHandles() {
+			long first = slabs.allocate(ByteBuffer.wrap("first".getBytes()));
+			slabs.release(first);
+			long second = slabs.allocate(ByteBuffer.wrap("second".getBytes()));
+			assertNotEquals(first, second);
+			assertNull(slabs.read(first, ByteBuffer::remaining));
+			assertEquals(6, slabs.read(second, ByteBuffer::remaining));
+		}
+
+		@Test
+		@DisplayName("reclaims released slots leased to unreachable readers before failing")
+		void testReclaim() {
+			List<Long> handles = new ArrayList<>();
+			try {
+				for (;;)
+					handles.add(slabs.allocate(ByteBuffer.allocate(2000)));
+			} catch (IllegalStateException full) {
+				assertTrue(full.getMessage().contains("0 released bytes"), full.getMessage());
+			}
+			// leased to results that are dropped at once:
+			for (long handle: handles) {
+				assertNotNull(slabs.read(handle, bytes -> new byte[1]));
+				slabs.release(handle);
+			}
+			for (int i = 0; i < handles.size(); i++)
+				slabs.allocate(ByteBuffer.allocate(2000));
+		}
+
+		@Test
+		@DisplayName("fails puts beyond capacity")
+		void testCapacity() {
+			StringBuilder large = new StringBuilder();
+			for (int i = 0; i < 2000; i++)
+				large.append("filler ");
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			assertThrows(IllegalStateException.class, () -> {
+				for (int i = 0; i < 100; i++)
+					docStore.put(docStore.newInstance("character " + i).as(CharacterRecord.class).usingName(large.toString()));
+			});
+			assertTrue(slabs.reserved() <= slabs.capacity());
+			CharacterRecord retrieved = docStore.get(CharacterRecord.class, "danas character");
+			assertEquals("Dananator", retrieved.name());
+			docStore.put(retrieved.usingName("Still writable"));
+		}
+
+		@Test
+		@DisplayName("compacts")
+		void testCompaction() throws InterruptedException {
+			for (int i = 0; i < 200; i++)
+				docStore.put(docStore.newInstance("character " + i).as(CharacterRecord.class).usingName("Character " + i));
+			for (int i = 0; i < 200; i++)
+				if (i % 10 != 0)
+					docStore.delete(docStore.get(CharacterRecord.class, "character " + i));
+			// deleted slots are freed once the documents read from them are collected:
+			for (int tries = 0; ( tries < 100 ) && ( slabs.records() > 20 ); tries++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertTrue(docStore.compact() > 0);
+			for (int i = 0; i < 200; i += 10)
+				assertEquals("Character " + i, docStore.get(CharacterRecord.class, "character " + i).name());
+			long reserved = slabs.reserved();
+			slabs.trim();
+			assertTrue(slabs.reserved() < reserved, slabs.toString());
+		}
+	}
+
+	@Nested
+	@DisplayName("snapshots")
+	class SnapshotReads {
+
+		@Test
+		@DisplayName("read as of when they were taken")
+		void testPointInTime() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("old character").as(CharacterRecord.class).usingName("Old"));
+			try (Snapshot snapshot = docStore.snapshot()) {
+				docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(26));
+				docStore.delete(docStore.get("old character"));
+				docStore.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New"));
+
+				assertEquals(25, snapshot.get(CharacterRecord.class, "danas character").getLevel());
+				assertEquals("Old", snapshot.get(CharacterRecord.class, "old character").name());
+				assertNull(snapshot.get(CharacterRecord.class, "new character").name());
+				assertEquals(26, docStore.get(CharacterRecord.class, "danas character").getLevel());
+				assertNull(docStore.get(CharacterRecord.class, "old character").name());
+
+				// what a snapshot reads is checked against the current version when put:
+				assertThrows(ConcurrentModificationException.class, () -> docStore.put(snapshot.get(CharacterRecord.class, "danas character").withLevel(27)));
+				try (Snapshot current = docStore.snapshot()) {
+					docStore.put(current.get(CharacterRecord.class, "danas character").withLevel(27));
+				}
+				assertEquals(27, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			}
+		}
+
+		@Test
+		@DisplayName("drop old versions as they close")
+		void testWatermark() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			docStore.put(docStore.newInstance("old character").as(CharacterRecord.class).usingName("Old"));
+			Snapshot first = docStore.snapshot();
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(1));
+			Snapshot second = docStore.snapshot();
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(2));
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(3));
+			docStore.delete(docStore.get("old character"));
+			// versions are kept back to the one the oldest snapshot reads:
+			assertEquals(4, docStore.versions("danas character"));
+			assertEquals(2, docStore.versions("old character"));
+
+			first.close();
+			assertEquals(3, docStore.versions("danas character"));
+			assertEquals(1, second.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals("Old", second.get(CharacterRecord.class, "old character").name());
+			second.close();
+			second.close();
+			assertEquals(1, docStore.versions("danas character"));
+			assertEquals(0, docStore.versions("old character"));
+			assertThrows(IllegalStateException.class, () -> second.get("danas character"));
+
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(4));
+			assertEquals(1, docStore.versions("danas character"));
+		}
+
+		@Test
+		@DisplayName("repeat reads while writers run")
+		void testRepeatableReads() throws InterruptedException {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(0));
+			Thread writer = new Thread(() -> {
+				for (int i = 1; i <= 2000; i++)
+					docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(i));
+			});
+			writer.start();
+			while (writer.isAlive()) {
+				try (Snapshot snapshot = docStore.snapshot()) {
+					int level = snapshot.get(CharacterRecord.class, "danas character").getLevel();
+					for (int i = 0; i < 10; i++)
+						assertEquals(level, snapshot.get(CharacterRecord.class, "danas character").getLevel());
+				}
+			}
+			writer.join();
+			assertEquals(2000, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals(1, docStore.versions("danas character"));
+		}
+
+		@Test
+		@DisplayName("see every write that a write they see was based on")
+		void testCausalReads() throws InterruptedException {
+			docStore.put(docStore.newInstance("a").as(CharacterRecord.class).withLevel(0));
+			docStore.put(docStore.newInstance("b").as(CharacterRecord.class).withLevel(0));
+			Thread first = new Thread(() -> {
+				for (int i = 1; i <= 2000; i++)
+					docStore.put(docStore.get(CharacterRecord.class, "a").withLevel(i));
+			});
+			// copies what it reads of a into b, so b is never ahead of a:
+			Thread second = new Thread(() -> {
+				while (first.isAlive())
+					docStore.put(docStore.get(CharacterRecord.class, "b").withLevel(docStore.get(CharacterRecord.class, "a").getLevel()));
+			});
+			first.start();
+			second.start();
+			while (second.isAlive()) {
+				try (Snapshot snapshot = docStore.snapshot()) {
+					int b = snapshot.get(CharacterRecord.class, "b").getLevel();
+					assertTrue(b <= snapshot.get(CharacterRecord.class, "a").getLevel());
+				}
+			}
+			first.join();
+			second.join();
+		}
+	}
+
+	@Nested
+	@DisplayName("batches")
+	class Batches {
+
+		@Test
+		@DisplayName("with checks are refused by stores that write one at a time")
+		void testUncheckable() {
+			DocumentStore delegate = new DelegateDocumentStore();
+			delegate.put(delegate.newInstance("checked character").as(CharacterRecord.class).withLevel(1));
+			CharacterRecord read = delegate.get(CharacterRecord.class, "checked character");
+			assertThrows(UnsupportedOperationException.class, () -> delegate.apply(new Batch()
+					.put(delegate.newInstance("unchecked character").as(CharacterRecord.class).withLevel(2).document())
+					.check(read.document())));
+			assertNull(delegate.get(CharacterRecord.class, "unchecked character").getLevel());
+			assertThrows(UnsupportedOperationException.class, () -> delegate.transactOptimistically((tDocStore) -> {
+				tDocStore.put(tDocStore.get(CharacterRecord.class, "unchecked character").withLevel(tDocStore.get(CharacterRecord.class, "checked character").getLevel()));
+			}));
+			assertNull(delegate.get(CharacterRecord.class, "unchecked character").getLevel());
+		}
+
+		@Test
+		@DisplayName("of any size")
+		void testLargeBatches() {
+			List<Document> documents = new ArrayList<>();
+			for (int i = 0; i < 10_000; i++)
+				documents.add(docStore.newInstance("character " + i).as(CharacterRecord.class).withLevel(i).document());
+			docStore.apply(new Batch().putAll(documents));
+			assertEquals(9999, docStore.get(CharacterRecord.class, "character 9999").getLevel());
+		}
+
+		@Test
+		@DisplayName("are seen whole by snapshots")
+		void testSnapshotAtomicity() throws InterruptedException {
+			for (int k = 0; k < 8; k++)
+				docStore.put(docStore.newInstance("character " + k).as(CharacterRecord.class).withLevel(0));
+			Thread writer = new Thread(() -> {
+				for (int i = 1; i <= 1000; i++) {
+					Batch batch = new Batch();
+					for (int k = 0; k < 8; k++)
+						batch.put(docStore.get(CharacterRecord.class, "character " + k).withLevel(i).document());
+					docStore.apply(batch);
+				}
+			});
+			writer.start();
+			while (writer.isAlive()) {
+				try (Snapshot snapshot = docStore.snapshot()) {
+					int level = snapshot.get(CharacterRecord.class, "character 0").getLevel();
+					for (int k = 1; k < 8; k++)
+						assertEquals(level, snapshot.get(CharacterRecord.class, "character " + k).getLevel());
+				}
+			}
+			writer.join();
+		}
+
+		@Test
+		@DisplayName("apply all or nothing")
+		void testAtomic() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("bobs character").as(CharacterRecord.class).usingName("Bobinator"));
+			CharacterRecord stale = docStore.get(CharacterRecord.class, "danas character");
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(26));
+
+			CharacterRecord bob = docStore.get(CharacterRecord.class, "bobs character");
+			Batch conflicting = new Batch()
+					.put(bob.usingName("Bob").document())
+					.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New").document())
+					.put(stale.withLevel(27).document());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.apply(conflicting));
+			assertEquals("Bobinator", docStore.get(CharacterRecord.class, "bobs character").name());
+			assertNull(docStore.get(CharacterRecord.class, "new character").name());
+			assertEquals(26, docStore.get(CharacterRecord.class, "danas character").getLevel());
+
+			docStore.apply(new Batch()
+					.put(bob.document())
+					.patch(docStore.get(CharacterRecord.class, "danas character").withLevel(27).document())
+					.put(docStore.newInstance("new character").as(CharacterRecord.class).usingName("New").document()));
+			assertEquals("Bob", docStore.get(CharacterRecord.class, "bobs character").name());
+			assertEquals(27, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			docStore.put(bob.withLevel(3));
+
+			docStore.deleteAll(Arrays.asList(docStore.get("bobs character"), docStore.get("new character")));
+			assertNull(docStore.get(CharacterRecord.class, "bobs character").name());
+			assertNull(docStore.get(CharacterRecord.class, "new character").name());
+		}
+
+		@Test
+		@DisplayName("respect locks")
+		void testLocks() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			CharacterRecord locked = docStore.lock(CharacterRecord.class, "danas character");
+			Batch batch = new Batch().put(docStore.get(CharacterRecord.class, "danas character").withLevel(1).document());
+			assertThrows(ConcurrentModificationException.class, () -> docStore.apply(batch));
+			docStore.apply(new Batch().put(locked.withLevel(2).document()));
+			assertEquals(2, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertNotNull(docStore.lock("danas character"));
+		}
+
+		@Test
+		@DisplayName("commit concurrent transactions together")
+		void testConcurrentCommits() throws InterruptedException {
+			docStore.put(docStore.newInstance("counter").as(CharacterRecord.class).withLevel(0));
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				threads.add(new Thread(() -> {
+					for (int i = 0; i < 100; i++) {
+						int n = i;
+						// the counter is locked while a transaction holds it, so others retry:
+						for (boolean committed = false; !committed; ) {
+							try {
+								docStore.transact(store -> {
+									CharacterRecord counter = store.get(CharacterRecord.class, "counter");
+									counter.setLevel(counter.getLevel() + 1);
+									store.put(counter);
+									store.put(store.newInstance(CharacterRecord.class, "character " + thread + " " + n).usingName("Character"));
+								});
+								committed = true;
+							} catch (ConcurrentModificationException e) {
+								Thread.yield();
+							}
+						}
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread thread: threads)
+				thread.join();
+			assertEquals(400, docStore.get(CharacterRecord.class, "counter").getLevel());
+			assertEquals("Character", docStore.get(CharacterRecord.class, "character 3 99").name());
+		}
+
+		@Test
+		@DisplayName("conflicting transactions write nothing")
+		void testConflictingTransaction() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			assertThrows(ConcurrentModificationException.class, () -> docStore.transact(store -> {
+				store.put(store.get(CharacterRecord.class, "danas character").withLevel(30));
+				store.put(store.newInstance(CharacterRecord.class, "new character").usingName("New"));
+				docStore.put(docStore.newInstance(CharacterRecord.class, "new character").usingName("Meanwhile"));
+			}));
+			assertNull(docStore.get(CharacterRecord.class, "danas character").getLevel());
+			assertEquals("Meanwhile", docStore.get(CharacterRecord.class, "new character").name());
+			// the transaction's locks are released:
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(31));
+		}
+	}
+
 	@Nested
 	@DisplayName("serialization")
 	class Serialization {
@@ -238,6 +685,19 @@ class MemoryDocumentStoreTest {
 			assertArrayEquals(record.document().toBytes(), newRecord.document().toBytes());
 			assertEquals(delegateDocStore.getID(record),delegateDocStore.getID(newRecord));
 		}
+
+		@Test
+		@DisplayName("stores the edits of deserialized documents")
+		public void editedDocument() throws ClassNotFoundException, IOException {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			docStore.put(serialized(docStore.get(CharacterRecord.class, "danas character").usingName("Bob")));
+			assertEquals("Bob", docStore.get(CharacterRecord.class, "danas character").name());
+			docStore.patch(serialized(docStore.get(CharacterRecord.class, "danas character").withLevel(3)));
+			assertEquals(3, docStore.get(CharacterRecord.class, "danas character").getLevel());
+			docStore.apply(new Batch().patch(serialized(docStore.get(CharacterRecord.class, "danas character").usingName("Al")).document()));
+			assertEquals("Al", docStore.get(CharacterRecord.class, "danas character").name());
+			assertEquals(3, docStore.get(CharacterRecord.class, "danas character").getLevel());
+		}
 		
 		@SuppressWarnings("unchecked")
 		private <T> T serialized(T record) throws IOException, ClassNotFoundException 
@@ -394,6 +854,21 @@ class MemoryDocumentStoreTest {
 			assertEquals("Software Engineer 4", docStore.get(CharacterRecord.class, "danas character").characterClass());
 		}
 		
+		@Test
+		@DisplayName("unchanged documents are only released")
+		public void unchangedDocuments() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator"));
+			CharacterRecord outside = docStore.get(CharacterRecord.class, "danas character");
+
+			docStore.transact((docStore)->{
+				docStore.put(docStore.get(CharacterRecord.class, "danas character"));
+			});
+
+			// nothing was written, and the lock is gone:
+			docStore.put(outside.usingName("Dana"));
+			assertEquals("Dana", docStore.get(CharacterRecord.class, "danas character").name());
+		}
+		
 		@Test
 		@DisplayName("rollback")
 		public void rollbacks() {
@@ -416,6 +891,134 @@ class MemoryDocumentStoreTest {
 			assertEquals("Dananator", docStore.get(CharacterRecord.class, "danas character").name());
 			
 		}
+
+		@Test
+		@DisplayName("optimistic reads take no locks")
+		public void optimisticReads() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			docStore.transactOptimistically((tDocStore)->{
+				CharacterRecord read = tDocStore.get(CharacterRecord.class, "danas character");
+				CharacterRecord other = tDocStore.get(CharacterRecord.class, "other character");
+				// others can lock, and write what the transaction does not depend on:
+				docStore.release(docStore.lock("danas character"));
+				tDocStore.put(other.withLevel(read.getLevel() + 1));
+			});
+			assertEquals(26, docStore.get(CharacterRecord.class, "other character").getLevel());
+			docStore.release(docStore.lock("other character"));
+		}
+
+		@Test
+		@DisplayName("optimistic reads take no locks within executions")
+		public void optimisticReadsInExecutions() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			docStore.execute((eDocStore)->eDocStore.transactOptimistically((tDocStore)->{
+				CharacterRecord read = tDocStore.get(CharacterRecord.class, "danas character");
+				CharacterRecord other = tDocStore.get(CharacterRecord.class, "other character");
+				tDocStore.put(other.withLevel(read.getLevel() + 1));
+			}));
+			assertEquals(26, docStore.get(CharacterRecord.class, "other character").getLevel());
+			// the read was checked rather than locked, so is free to write:
+			docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(30));
+			assertEquals(30, docStore.get(CharacterRecord.class, "danas character").getLevel());
+		}
+
+		@Test
+		@DisplayName("optimistic conflicts write nothing")
+		public void optimisticConflicts() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			TransactionConflictException conflict = assertThrows(TransactionConflictException.class, () -> {
+				docStore.transactOptimistically((tDocStore)->{
+					CharacterRecord read = tDocStore.get(CharacterRecord.class, "danas character");
+					docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(30));
+					tDocStore.put(tDocStore.get(CharacterRecord.class, "other character").withLevel(read.getLevel() + 1));
+				});
+			});
+			assertTrue(conflict instanceof ConcurrentModificationException);
+			assertEquals(1, docStore.get(CharacterRecord.class, "other character").getLevel());
+
+			// explicit locks are still held, and released:
+			docStore.transactOptimistically((tDocStore)->{
+				CharacterRecord locked = tDocStore.lock(CharacterRecord.class, "danas character");
+				assertThrows(ConcurrentModificationException.class, () -> docStore.lock("danas character"));
+				tDocStore.put(tDocStore.get(CharacterRecord.class, "other character").withLevel(locked.getLevel() + 1));
+			});
+			assertEquals(31, docStore.get(CharacterRecord.class, "other character").getLevel());
+			docStore.release(docStore.lock("danas character"));
+		}
+
+		@Test
+		@DisplayName("projected reads are checked like any other")
+		public void projectedReads() {
+			docStore.put(docStore.newInstance("danas character").as(CharacterRecord.class).usingName("Dananator").withLevel(25));
+			docStore.put(docStore.newInstance("other character").as(CharacterRecord.class).usingName("Other").withLevel(1));
+
+			assertThrows(TransactionConflictException.class, () -> {
+				docStore.transactOptimistically((tDocStore)->{
+					CharacterRecord read = tDocStore.get("danas character", CharacterRecord.class, "Level");
+					docStore.put(docStore.get(CharacterRecord.class, "danas character").withLevel(30));
+					tDocStore.put(tDocStore.get(CharacterRecord.class, "other character").withLevel(read.getLevel() + 1));
+				});
+			});
+			assertEquals(1, docStore.get(CharacterRecord.class, "other character").getLevel());
+
+			// and locked when pessimistic:
+			docStore.transact((tDocStore)->{
+				assertEquals(30, tDocStore.get("danas character", CharacterRecord.class, "Level").getLevel());
+				assertThrows(ConcurrentModificationException.class, () -> docStore.lock("danas character"));
+			});
+			docStore.release(docStore.lock("danas character"));
+		}
+
+		@Test
+		@DisplayName("optimistic and pessimistic transactions lose no updates under contention")
+		public void contention() throws InterruptedException {
+			for (int i = 0; i < 4; i++)
+				docStore.put(docStore.newInstance("account " + i).as(CharacterRecord.class).withLevel(0));
+			for (boolean optimistic: new boolean[] { false, true }) {
+				AtomicInteger commits = new AtomicInteger();
+				List<Thread> threads = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					threads.add(new Thread(() -> {
+						Random random = new Random();
+						for (int i = 0; i < 100; i++) {
+							String from = "account " + random.nextInt(4), to = "account " + random.nextInt(4);
+							// reads one account and writes another, as a transfer checking a balance would:
+							Consumer<DocumentStore> transfer = (tDocStore) -> {
+								tDocStore.get(CharacterRecord.class, from).getLevel();
+								CharacterRecord account = tDocStore.get(CharacterRecord.class, to);
+								tDocStore.put(account.withLevel(account.getLevel() + 1));
+							};
+							for (boolean committed = false; !committed; ) {
+								try {
+									if (optimistic)
+										docStore.transactOptimistically(transfer);
+									else
+										docStore.transact(transfer);
+									committed = true;
+									commits.incrementAndGet();
+								} catch (ConcurrentModificationException e) {
+									Thread.yield();
+								}
+							}
+						}
+					}));
+				}
+				threads.forEach(Thread::start);
+				for (Thread thread: threads)
+					thread.join();
+				assertEquals(800, commits.get());
+			}
+			int total = 0;
+			for (int i = 0; i < 4; i++)
+				total += docStore.get(CharacterRecord.class, "account " + i).getLevel();
+			assertEquals(1600, total);
+		}
 	
 	}
 	
@@ -0,0 +1,229 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.theunknowablebits.proxamic.exampledata.AbilityScore;
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+
+@DisplayName("RecordCodec")
+class RecordCodecTest {
+
+	static List<CharacterRecord> characters(int count) {
+		List<CharacterRecord> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			BuffDocument document = new BuffDocument();
+			CharacterRecord character = document.as(CharacterRecord.class).usingName("Character " + i).withLevel(i % 20).characterClass(i % 2 == 0 ? "Software Engineer" : "Wizard");
+			character.abilityScores(new AbilityScore[] {
+					document.newInstance(AbilityScore.class).withName("Wisdom").withValue(i % 18),
+					document.newInstance(AbilityScore.class).withName("Strength").withValue(i % 7) });
+			result.add(character);
+		}
+		return result;
+	}
+
+	static byte [] roundTrip(RecordCodec codec, byte [] bytes) {
+		ByteBuffer record = codec.encode(ByteBuffer.wrap(bytes));
+		ByteBuffer decoded = codec.decode(record);
+		byte [] result = new byte[decoded.remaining()];
+		decoded.get(result);
+		assertEquals(0, record.position());
+		return result;
+	}
+
+	static List<CompressingCodec> codecs(byte [] dictionary) {
+		return Arrays.asList(new LzCodec(0, dictionary), new DeflateCodec(6, 0, dictionary));
+	}
+
+	@Test
+	@DisplayName("round trips bytes")
+	void roundTrips() {
+		Random random = new Random(42);
+		byte [] noise = new byte[5000];
+		random.nextBytes(noise);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 400; i++)
+			text.append(i % 7 == 0 ? "x" : "the quick brown fox ").append(i);
+		byte [] repetitive = text.toString().getBytes(StandardCharsets.UTF_8);
+		byte [] runs = new byte[70_000];
+		Arrays.fill(runs, 35_000, runs.length, (byte)7);
+
+		for (byte [] dictionary: Arrays.asList(null, "the quick brown fox jumps".getBytes(StandardCharsets.UTF_8)))
+			for (CompressingCodec codec: codecs(dictionary))
+				for (byte [] bytes: Arrays.asList(new byte[0], new byte[] { 1, 2, 3 }, noise, repetitive, runs))
+					assertTrue(Arrays.equals(bytes, roundTrip(codec, bytes)), codec.toString());
+		assertTrue(Arrays.equals(repetitive, roundTrip(RecordCodec.NONE, repetitive)));
+	}
+
+	@Test
+	@DisplayName("stores small and incompressible documents as they are")
+	void stored() {
+		LzCodec codec = new LzCodec(64, null);
+		ByteBuffer small = ByteBuffer.wrap(new byte[63]);
+		assertEquals(64, codec.encode(small).remaining());
+		byte [] noise = new byte[1000];
+		new Random(42).nextBytes(noise);
+		assertEquals(1001, codec.encode(ByteBuffer.wrap(noise)).remaining());
+		assertTrue(codec.encode(ByteBuffer.wrap(new byte[1000])).remaining() < 100);
+		assertEquals(3, codec.statistics().recordsEncoded());
+		assertEquals(1, codec.statistics().recordsCompressed());
+
+		ByteBuffer bytes = ByteBuffer.wrap(new byte[10]);
+		assertSame(bytes, RecordCodec.NONE.encode(bytes));
+	}
+
+	@Test
+	@DisplayName("trains dictionaries that improve the ratio")
+	void dictionaries() {
+		byte [] dictionary = CompressingCodec.trainDictionary(characters(100), 4096);
+		assertTrue(dictionary.length > 0);
+		List<CharacterRecord> documents = characters(200).subList(100, 200);
+		for (int d = 0; d < 2; d++) {
+			CompressingCodec plain = codecs(null).get(d), trained = codecs(dictionary).get(d);
+			for (CharacterRecord document: documents) {
+				ByteBuffer bytes = document.document().toByteBuffer();
+				assertEquals(bytes, trained.decode(trained.encode(bytes)));
+				plain.encode(bytes);
+			}
+			assertTrue(trained.statistics().ratio() > plain.statistics().ratio(), trained.toString());
+		}
+	}
+
+	@Test
+	@DisplayName("rejects corrupt records")
+	void corrupt() {
+		for (CompressingCodec codec: codecs(null)) {
+			ByteBuffer record = codec.encode(ByteBuffer.wrap(new byte[1000]));
+			record.put(record.limit() - 1, (byte)0x7F);
+			record.limit(record.limit() - 1);
+			assertThrows(IllegalArgumentException.class, () -> codec.decode(record), codec.toString());
+			assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[] { 9 })));
+		}
+	}
+
+	@Test
+	@DisplayName("stores field names as symbols")
+	void symbols() {
+		SymbolCodec codec = new SymbolCodec(new SymbolTable(), RecordCodec.NONE);
+		BuffDocument document = (BuffDocument)characters(1).get(0).document();
+		document.as(CharacterRecord.class).inventoryItems();
+		document.root.put("\u0001odd", "escaped");
+		ByteBuffer bytes = document.toByteBuffer();
+		ByteBuffer record = codec.encode(bytes);
+		assertTrue(record.remaining() < bytes.remaining());
+
+		BuffDocument read = new BuffDocument(codec.decode(record));
+		CharacterRecord character = read.as(CharacterRecord.class);
+		assertEquals("Character 0", character.name());
+		assertEquals("Strength", character.abilityScoreList().get(1).name());
+		assertEquals("escaped", read.root.get("\u0001odd"));
+		assertEquals(document.root.keySet(), read.root.keySet());
+	}
+
+	@Test
+	@DisplayName("keeps new symbols before the records using them")
+	void symbolPersistence() throws IOException {
+		List<byte[]> kept = new ArrayList<>();
+		SymbolCodec codec = new SymbolCodec(new SymbolTable(), RecordCodec.NONE, (symbols) -> {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				symbols.writeTo(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			kept.add(out.toByteArray());
+		});
+		ByteBuffer record = codec.encode(characters(1).get(0).document().toByteBuffer());
+		assertEquals(1, kept.size());
+		codec.encode(characters(1).get(0).document().toByteBuffer());
+		assertEquals(1, kept.size()); // no new names
+
+		// the kept table alone reads the record:
+		SymbolTable read = SymbolTable.readFrom(new ByteArrayInputStream(kept.get(0)));
+		CharacterRecord character = new BuffDocument(new SymbolCodec(read, RecordCodec.NONE).decode(record)).as(CharacterRecord.class);
+		assertEquals("Character 0", character.name());
+
+		// and a table that cannot be kept fails the write:
+		SymbolCodec failing = new SymbolCodec(new SymbolTable(), RecordCodec.NONE, (symbols) -> { throw new UncheckedIOException(new IOException("disk full")); });
+		assertThrows(UncheckedIOException.class, () -> failing.encode(characters(1).get(0).document().toByteBuffer()));
+	}
+
+	@Test
+	@DisplayName("numbers symbols once, up to capacity, and persists them")
+	void symbolTables() throws InterruptedException, IOException {
+		SymbolTable symbols = new SymbolTable(900);
+		Set<String> assigned = ConcurrentHashMap.newKeySet();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 1200; i++) {
+					String symbol = symbols.symbol("field " + i);
+					if (symbol != null) {
+						assigned.add(symbol);
+						assertEquals("field " + i, symbols.name(symbol));
+					}
+				}
+			}));
+		}
+		for (Thread thread: threads)
+			thread.start();
+		for (Thread thread: threads)
+			thread.join();
+		assertEquals(900, symbols.size());
+		assertEquals(900, assigned.size());
+		for (String symbol: assigned)
+			assertTrue(symbol.length() <= 2);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		symbols.writeTo(out);
+		SymbolTable read = SymbolTable.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		for (String symbol: assigned)
+			assertEquals(symbols.name(symbol), read.name(symbol));
+		assertThrows(IllegalArgumentException.class, () -> read.name("\u001F\u001F"));
+	}
+
+	@Test
+	@DisplayName("plugs into stores")
+	void stores() {
+		for (AbstractDocumentStore store: Arrays.asList(new MemoryDocumentStore(), new LocalDocumentStore())) {
+			LzCodec codec = new LzCodec(0, CompressingCodec.trainDictionary(characters(50), 2048));
+			store.setCodec(codec);
+			for (CharacterRecord character: characters(10))
+				store.put(store.newInstance(character.name()).as(CharacterRecord.class).usingName(character.name()).characterClass(character.characterClass()));
+			CharacterRecord read = store.get(CharacterRecord.class, "Character 3");
+			assertEquals("Wizard", read.characterClass());
+			store.patch(read.withLevel(12));
+			assertEquals(12, store.get(CharacterRecord.class, "Character 3").getLevel());
+			assertEquals("Character 3", store.get("Character 3", CharacterRecord.class, "Name").name());
+			assertEquals(11, codec.statistics().recordsEncoded());
+			assertTrue(codec.statistics().recordsDecoded() >= 3);
+		}
+
+		MemoryDocumentStore store = new MemoryDocumentStore();
+		store.setCodec(new SymbolCodec(new SymbolTable(), new LzCodec()));
+		store.put(store.newInstance("dana").as(CharacterRecord.class).usingName("Dana").withLevel(3));
+		CharacterRecord read = store.get(CharacterRecord.class, "dana");
+		assertEquals("Dana", read.name());
+		store.put(read.withLevel(4));
+		assertEquals(4, store.get(CharacterRecord.class, "dana").getLevel());
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.theunknowablebits.proxamic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.theunknowablebits.proxamic.exampledata.AbilityScore;
+import com.theunknowablebits.proxamic.exampledata.CharacterRecord;
+import com.theunknowablebits.proxamic.exampledata.InventoryItem;
+
+@DisplayName("SchemaDocument")
+class SchemaDocumentTest {
+
+	static final Schema characters = Schema.of(CharacterRecord.class);
+
+	static CharacterRecord character(Document document) {
+		CharacterRecord character = document.as(CharacterRecord.class).usingName("Dana").withLevel(25).characterClass("Software Engineer").setAge(new BigDecimal("42.5"));
+		character.abilityScores(new AbilityScore[] {
+				document.newInstance(AbilityScore.class).withName("Wisdom").withValue(18),
+				document.newInstance(AbilityScore.class).withName("Strength").withValue(9) });
+		character.inventoryItems().put("belt", document.newInstance(InventoryItem.class).withName("Girdle of Giant Strength"));
+		return character;
+	}
+
+	@Test
+	@DisplayName("lays out fields of fixed types by name")
+	void layout() {
+		assertEquals(Arrays.asList("Class", "Level", "Name"), characters.fieldNames());
+		assertEquals(Arrays.asList("Name", "Value"), Schema.of(AbilityScore.class).fieldNames());
+		assertTrue(characters == Schema.of(CharacterRecord.class));
+	}
+
+	@Test
+	@DisplayName("round trips views")
+	void roundTrips() {
+		SchemaDocument document = new SchemaDocument(characters);
+		character(document);
+		assertTrue(document.isDirty());
+
+		SchemaDocument read = new SchemaDocument(characters, document.toByteBuffer());
+		assertFalse(read.isDirty());
+		CharacterRecord character = read.as(CharacterRecord.class);
+		assertEquals("Dana, Level 25 Software Engineer", character.sheetHeader());
+		assertEquals("Dana", character.getName());
+		assertEquals(new BigDecimal("42.5"), character.getAge());
+		assertEquals("Strength", character.abilityScoreList().get(1).name());
+		assertEquals(18, character.abilityScores()[0].value());
+		assertEquals("Girdle of Giant Strength", character.inventoryItems().get("belt").name());
+		assertFalse(read.isDirty());
+		assertEquals(document.toByteBuffer(), read.toByteBuffer());
+
+		assertEquals("Dana", character.setName("Dan"));
+		character.abilityScores()[0].value(17);
+		assertTrue(read.isDirty());
+		CharacterRecord reread = new SchemaDocument(characters, read.toByteBuffer()).as(CharacterRecord.class);
+		assertEquals("Dan", reread.name());
+		assertEquals(25, reread.getLevel());
+		assertEquals(17, reread.abilityScores()[0].value());
+	}
+
+	@Test
+	@DisplayName("reads missing fields as null and removes fields")
+	void missing() {
+		SchemaDocument document = new SchemaDocument(characters);
+		CharacterRecord character = document.as(CharacterRecord.class).usingName("Dana");
+		assertNull(character.getLevel());
+		assertNull(character.characterClass());
+		assertNull(new SchemaDocument(characters, document.toByteBuffer()).as(CharacterRecord.class).getLevel());
+
+		character.withLevel(3).setAge(BigDecimal.ONE);
+		document.remove("Level");
+		document.remove("Age");
+		CharacterRecord read = new SchemaDocument(characters, document.toByteBuffer()).as(CharacterRecord.class);
+		assertEquals("Dana", read.name());
+		assertNull(read.getLevel());
+		assertNull(read.getAge());
+	}
+
+	@Test
+	@DisplayName("encodes smaller than BuffDocument")
+	void size() {
+		SchemaDocument document = new SchemaDocument(characters);
+		document.as(CharacterRecord.class).usingName("Dana").withLevel(25).characterClass("Software Engineer");
+		BuffDocument buff = new BuffDocument();
+		buff.as(CharacterRecord.class).usingName("Dana").withLevel(25).characterClass("Software Engineer");
+		assertTrue(document.toByteBuffer().remaining() < buff.toByteBuffer().remaining());
+		assertEquals(4 + 1 + 4 + 2 * 4 + "DanaSoftware Engineer".length(), document.toByteBuffer().remaining());
+	}
+
+	@Test
+	@DisplayName("rejects bytes of other layouts")
+	void mismatched() {
+		SchemaDocument abilities = new SchemaDocument(Schema.of(AbilityScore.class));
+		abilities.as(AbilityScore.class).withName("Wisdom");
+		assertThrows(IllegalArgumentException.class, () -> new SchemaDocument(characters, abilities.toByteBuffer()));
+		assertThrows(IllegalArgumentException.class, () -> new SchemaDocument(characters, new BuffDocument().toByteBuffer()));
+	}
+
+	@Test
+	@DisplayName("stores in document stores")
+	void stores() {
+		MemoryDocumentStore store = new MemoryDocumentStore(() -> new SchemaDocument(characters), bytes -> new SchemaDocument(characters, bytes));
+		store.put(character(store.newInstance("dana")));
+		CharacterRecord read = store.get(CharacterRecord.class, "dana");
+		assertTrue(read.document() instanceof SchemaDocument);
+		assertEquals("Wisdom", read.abilityScoreList().get(0).name());
+		CharacterRecord stale = store.get(CharacterRecord.class, "dana");
+		store.put(read.withLevel(26));
+		assertEquals(26, store.get(CharacterRecord.class, "dana").getLevel());
+		assertThrows(ConcurrentModificationException.class, () -> store.put(stale.withLevel(27)));
+	}
+
+	@Test
+	@DisplayName("serializes")
+	void serializes() throws IOException, ClassNotFoundException {
+		SchemaDocument document = new SchemaDocument(characters);
+		character(document);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(document.as(CharacterRecord.class));
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			CharacterRecord read = (CharacterRecord)in.readObject();
+			assertEquals("Dana, Level 25 Software Engineer", read.sheetHeader());
+			assertEquals(9, read.abilityScores()[1].value());
+		}
+	}
+
+	@Test
+	@DisplayName("stores the edits of deserialized documents")
+	void storesDeserialized() throws IOException, ClassNotFoundException {
+		MemoryDocumentStore store = new MemoryDocumentStore(() -> new SchemaDocument(characters), bytes -> new SchemaDocument(characters, bytes));
+		store.put(character(store.newInstance("dana")));
+		store.put(JsonDocumentTest.serialized(store.get(CharacterRecord.class, "dana").withLevel(26)));
+		assertEquals(26, store.get(CharacterRecord.class, "dana").getLevel());
+		store.patch(JsonDocumentTest.serialized(store.get(CharacterRecord.class, "dana").usingName("Bob")));
+		assertEquals("Bob", store.get(CharacterRecord.class, "dana").name());
+	}
+
+	@Test
+	@DisplayName("reads what BuffDocument reads")
+	void sameReads() {
+		SchemaDocument schemaDocument = new SchemaDocument(characters);
+		character(schemaDocument);
+		BuffDocument buffDocument = new BuffDocument();
+		character(buffDocument);
+		CharacterRecord schema = new SchemaDocument(characters, schemaDocument.toByteBuffer()).as(CharacterRecord.class);
+		CharacterRecord buff = new BuffDocument(buffDocument.toByteBuffer()).as(CharacterRecord.class);
+		assertEquals(buff.getLevel(), schema.getLevel());
+		assertEquals(buff.sheetHeader(), schema.sheetHeader());
+	}
+
+}